@@ -0,0 +1,84 @@
+package markboydcode.socketproxy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per chunk of {@link markboydcode.socketproxy.ConnectionLogger#log(int, byte[])} as seen by a spooling thread,
+ * in each capture format and either writing synchronously or handing chunks to the background
+ * {@link markboydcode.socketproxy.CaptureWriter}. Capture goes to a stream discarding its bytes so that the score is
+ * the proxy's own cost rather than the disk's.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConnectionLoggerBenchmark {
+
+    @Param({"64", "1024", "16384"})
+    public int chunkSize;
+
+    @Param({"TEXT", "BINARY"})
+    public CaptureFormat format;
+
+    /**
+     * 'sync' writes on the calling thread, 'async' submits to the shared capture writer.
+     */
+    @Param({"sync", "async"})
+    public String mode;
+
+    private ConnectionLogger logger;
+    private byte[] chunk;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        CaptureFile file = new CaptureFile(new DiscardingOutputStream(), format, System.currentTimeMillis());
+        if ("async".equals(mode)) {
+            CaptureWriter writer = CaptureWriter.getShared();
+            if (writer == null) {
+                writer = CaptureWriter.startShared(4096, CaptureWriter.Policy.BLOCK);
+            }
+            logger = new ConnectionLogger(LogMoniker.TODEST, writer, writer.open(file));
+        } else {
+            logger = new ConnectionLogger(LogMoniker.TODEST, file);
+        }
+        chunk = new byte[chunkSize];
+        for (int i = 0; i < chunk.length; i++) {
+            chunk[i] = (byte) i;
+        }
+    }
+
+    @Benchmark
+    public void log() throws IOException {
+        logger.log(chunkSize, chunk);
+    }
+
+    /**
+     * Stream that drops everything written to it.
+     */
+    static class DiscardingOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
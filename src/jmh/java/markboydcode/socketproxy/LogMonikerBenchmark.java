@@ -0,0 +1,46 @@
+package markboydcode.socketproxy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of encoding the delineation of a text capture record. {@link #getBytes()} is what encoding cost when every
+ * record called {@link markboydcode.socketproxy.LogMoniker#getBytes()} and formatted its length as a string,
+ * {@link #encodeRecordHeader()} what it costs now that {@link markboydcode.socketproxy.CaptureFormat} encodes into a
+ * reused scratch array.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LogMonikerBenchmark {
+
+    private final byte[] scratch = new byte[CaptureFormat.MAX_HEADER_LENGTH];
+    private int length = 1460;
+
+    @Benchmark
+    public int getBytes() {
+        byte[] moniker = LogMoniker.TODEST.getBytes();
+        byte[] decimal = Integer.toString(length).getBytes();
+        byte[] start = LogMoniker.STROBLK.getBytes();
+        byte[] end = LogMoniker.ENDOBLK.getBytes();
+        return moniker.length + decimal.length + start.length + end.length;
+    }
+
+    @Benchmark
+    public int encodeRecordHeader() {
+        return CaptureFormat.TEXT.encodeRecordHeader(scratch, 0, LogMoniker.TODEST, 0, length)
+                + CaptureFormat.TEXT.encodeRecordTrailer(scratch, 0);
+    }
+}
@@ -0,0 +1,114 @@
+package markboydcode.socketproxy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of a {@link markboydcode.socketproxy.Spooler} moving chunks between two loopback connections. Each
+ * operation writes one chunk into the spooler's source connection and reads it back from its sink connection, so the
+ * score times the chunk size is the bytes per second a single direction of a connection sustains.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SpoolerBenchmark {
+
+    /**
+     * Bytes written per operation.
+     */
+    @Param({"512", "4096", "65536"})
+    public int chunkSize;
+
+    /**
+     * 'stream' spools through a heap buffer like when capturing, 'channel' through a direct buffer like with -n.
+     */
+    @Param({"stream", "channel"})
+    public String mode;
+
+    private ServerSocketChannel server;
+    private Socket sender;
+    private Socket spoolIn;
+    private Socket spoolOut;
+    private Socket receiver;
+    private Spooler spooler;
+    private OutputStream senderOut;
+    private InputStream receiverIn;
+    private byte[] chunk;
+    private byte[] received;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        sender = SocketChannel.open(server.getLocalAddress()).socket();
+        spoolIn = server.accept().socket();
+        spoolOut = SocketChannel.open(server.getLocalAddress()).socket();
+        receiver = server.accept().socket();
+        for (Socket s : new Socket[] {sender, spoolIn, spoolOut, receiver}) {
+            s.setTcpNoDelay(true);
+        }
+
+        ConnectionHandler handler = new ConnectionHandler(spoolIn, new Route(0, "localhost", 0, "B"));
+        if ("channel".equals(mode)) {
+            spooler = Spooler.create(LogMoniker.TODEST, handler, spoolIn.getChannel(), spoolOut.getChannel());
+        } else {
+            spooler = Spooler.create(LogMoniker.TODEST, handler, null, spoolIn.getInputStream(), spoolOut.getOutputStream());
+        }
+
+        senderOut = sender.getOutputStream();
+        receiverIn = receiver.getInputStream();
+        chunk = new byte[chunkSize];
+        received = new byte[chunkSize];
+        for (int i = 0; i < chunk.length; i++) {
+            chunk[i] = (byte) i;
+        }
+    }
+
+    @Benchmark
+    public int spoolChunk() throws IOException {
+        senderOut.write(chunk);
+        int read = 0;
+        while (read < chunkSize) {
+            int n = receiverIn.read(received, read, chunkSize - read);
+            if (n == -1) {
+                throw new IOException("Spooler closed the connection.");
+            }
+            read += n;
+        }
+        return read;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        spooler.terminate();
+        for (Socket s : new Socket[] {sender, spoolIn, spoolOut, receiver}) {
+            s.close();
+        }
+        server.close();
+    }
+}
@@ -0,0 +1,135 @@
+package markboydcode.socketproxy.udp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Datagram round trips through a {@link markboydcode.socketproxy.udp.UdpListener} or
+ * {@link markboydcode.socketproxy.udp.UdpNioListener} to an in-process echo server. Each operation sends one datagram
+ * and waits for its echo, so the score is the packet rate of a single client in each direction. A datagram lost on
+ * the way is retried after a short timeout and shows up as a lower score.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UdpForwardingBenchmark {
+
+    @Param({"64", "512", "1400"})
+    public int datagramSize;
+
+    @Param({"thread", "nio"})
+    public String engine;
+
+    private DatagramSocket echo;
+    private Thread echoThread;
+    private DatagramSocket client;
+    private DatagramPacket request;
+    private DatagramPacket reply;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        echo = new DatagramSocket(0, loopback);
+        echoThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                DatagramPacket p = new DatagramPacket(new byte[65536], 65536);
+                while (!echo.isClosed()) {
+                    try {
+                        p.setLength(65536);
+                        echo.receive(p);
+                        echo.send(p);
+                    } catch (IOException e) {
+                        // closed at tear down
+                    }
+                }
+            }
+        }, "udp_echo");
+        echoThread.setDaemon(true);
+        echoThread.start();
+
+        int port = freePort();
+        String dest = loopback.getHostAddress();
+        final Runnable listener = "nio".equals(engine)
+                ? new UdpNioListener(port, dest, echo.getLocalPort(), "B", UdpListener.DEFAULT_IDLE_MILLIS, 1, 1, null)
+                : new UdpListener(port, dest, echo.getLocalPort(), "B", UdpListener.DEFAULT_IDLE_MILLIS, 1, null);
+        Thread t = new Thread(listener, "udp_listener");
+        t.setDaemon(true);
+        t.start();
+
+        client = new DatagramSocket();
+        client.setSoTimeout(100);
+        client.connect(loopback, port);
+        byte[] payload = new byte[datagramSize];
+        request = new DatagramPacket(payload, payload.length);
+        reply = new DatagramPacket(new byte[65536], 65536);
+
+        // wait for the listener to be bound, until then the connected client sees the port as unreachable
+        for (int i = 0; i < 50; i++) {
+            try {
+                if (roundTrip()) {
+                    break;
+                }
+            } catch (PortUnreachableException e) {
+                // not bound yet
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    @Benchmark
+    public boolean forward() throws IOException {
+        while (!roundTrip()) {
+            // lost, send it again
+        }
+        return true;
+    }
+
+    private boolean roundTrip() throws IOException {
+        client.send(request);
+        reply.setLength(65536);
+        try {
+            client.receive(reply);
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        }
+    }
+
+    private static int freePort() throws IOException {
+        DatagramSocket s = new DatagramSocket(0);
+        try {
+            return s.getLocalPort();
+        } finally {
+            s.close();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.close();
+        echo.close();
+    }
+}
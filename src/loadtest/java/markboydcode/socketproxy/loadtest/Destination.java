@@ -0,0 +1,200 @@
+package markboydcode.socketproxy.loadtest;
+
+import markboydcode.socketproxy.Threads;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Local destination the proxy under test forwards to. An echo destination writes every byte or datagram back to its
+ * sender, a sink destination only counts what it receives. Datagrams shorter than {@link #PROBE_LIMIT} are probes,
+ * echoed and not counted by either, with which the load test finds out whether the proxy in front of it is up. Each
+ * tcp connection is served by a thread of its own, virtual if the JVM offers them.
+ */
+public class Destination {
+
+    /**
+     * Length below which a datagram is a probe rather than load. Load datagrams carry an 8 byte sequence number.
+     */
+    public static final int PROBE_LIMIT = 8;
+
+    private final boolean udp;
+    private final boolean echo;
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder datagrams = new LongAdder();
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private ServerSocket serverSocket;
+    private DatagramSocket datagramSocket;
+    private volatile boolean closed = false;
+
+    private Destination(boolean udp, boolean echo) {
+        this.udp = udp;
+        this.echo = echo;
+    }
+
+    /**
+     * Starts a destination on an ephemeral port of the loopback interface.
+     *
+     * @param udp  true for udp, false for tcp
+     * @param echo true to echo, false to sink
+     * @return
+     * @throws IOException if the port can't be bound
+     */
+    public static Destination start(boolean udp, boolean echo) throws IOException {
+        final Destination d = new Destination(udp, echo);
+        InetSocketAddress local = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+        if (udp) {
+            d.datagramSocket = new DatagramSocket(local);
+            d.datagramSocket.setReceiveBufferSize(4 * 1024 * 1024);
+            d.datagramSocket.setSendBufferSize(4 * 1024 * 1024);
+            startDaemon("destination_udp", new Runnable() {
+                @Override
+                public void run() {
+                    d.receiveDatagrams();
+                }
+            });
+        }
+        else {
+            d.serverSocket = new ServerSocket();
+            d.serverSocket.bind(local, 1024);
+            startDaemon("destination_accept", new Runnable() {
+                @Override
+                public void run() {
+                    d.accept();
+                }
+            });
+        }
+        return d;
+    }
+
+    private static void startDaemon(String name, Runnable r) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void accept() {
+        while (!closed) {
+            final Socket s;
+            try {
+                s = serverSocket.accept();
+                s.setTcpNoDelay(true);
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("Destination unable to accept connection: " + e);
+                }
+                continue;
+            }
+            connections.add(s);
+            Threads.start("destination_" + s.getPort(), new Runnable() {
+                @Override
+                public void run() {
+                    serve(s);
+                }
+            });
+        }
+    }
+
+    private void serve(Socket s) {
+        byte[] buf = new byte[64 * 1024];
+        try {
+            InputStream in = s.getInputStream();
+            OutputStream out = s.getOutputStream();
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                bytes.add(n);
+                if (echo) {
+                    out.write(buf, 0, n);
+                }
+            }
+        } catch (IOException e) {
+            // reset by the proxy or the generator, nothing to count
+        } finally {
+            connections.remove(s);
+            try {
+                s.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+
+    private void receiveDatagrams() {
+        DatagramPacket p = new DatagramPacket(new byte[65536], 65536);
+        while (!closed) {
+            try {
+                p.setLength(65536);
+                datagramSocket.receive(p);
+                int n = p.getLength();
+                if (n >= PROBE_LIMIT) {
+                    datagrams.increment();
+                    bytes.add(n);
+                }
+                if (echo || n < PROBE_LIMIT) {
+                    datagramSocket.send(p);
+                }
+            } catch (SocketException e) {
+                // closed
+            } catch (IOException e) {
+                // a send racing a departed client, keep serving
+            }
+        }
+    }
+
+    public int getPort() {
+        return udp ? datagramSocket.getLocalPort() : serverSocket.getLocalPort();
+    }
+
+    /**
+     * Returns the number of bytes received since started.
+     *
+     * @return
+     */
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    /**
+     * Returns the number of datagrams other than probes received since started.
+     *
+     * @return
+     */
+    public long getDatagrams() {
+        return datagrams.sum();
+    }
+
+    /**
+     * Stops serving and closes all connections.
+     */
+    public void close() {
+        closed = true;
+        try {
+            if (udp) {
+                datagramSocket.close();
+            }
+            else {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            // closing anyway
+        }
+        for (Socket s : connections) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package markboydcode.socketproxy.loadtest;
+
+import markboydcode.socketproxy.Histogram;
+import markboydcode.socketproxy.Threads;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a workload against a port for a warm up period followed by a measured period. Long lived connections, or
+ * udp clients, each run on a thread of their own for the whole run. In request/response mode each writes a payload,
+ * waits for all of it to be echoed and records the round trip time. In streaming mode each writes payloads back to
+ * back into a sink. Churned connections are opened at a fixed rate on top of those, each doing a single request, or a
+ * single write when streaming, before closing. Only what happens in the measured period is counted, except for
+ * failures which are counted whenever they happen.
+ */
+public class LoadGenerator {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int READ_TIMEOUT_MILLIS = 5000;
+    private static final int UDP_TIMEOUT_MILLIS = 1000;
+
+    private final boolean udp;
+    private final boolean stream;
+    private final int connections;
+    private final int churnPerSecond;
+    private final int size;
+    private final long intervalMillis;
+    private final long warmupMillis;
+    private final long durationMillis;
+
+    private volatile long measureFrom;
+    private volatile long measureUntil;
+    private volatile boolean stopped;
+    private Result result;
+
+    /**
+     * @param udp            true to send datagrams rather than open tcp connections
+     * @param stream         true to stream into a sink rather than wait for echoes
+     * @param connections    number of long lived connections or udp clients
+     * @param churnPerSecond number of short lived connections or udp clients opened per second
+     * @param size           payload bytes per request, write or datagram
+     * @param intervalMillis pause of each long lived connection between requests or writes
+     * @param warmupMillis
+     * @param durationMillis
+     */
+    public LoadGenerator(boolean udp, boolean stream, int connections, int churnPerSecond, int size,
+                         long intervalMillis, long warmupMillis, long durationMillis) {
+        this.udp = udp;
+        this.stream = stream;
+        this.connections = connections;
+        this.churnPerSecond = churnPerSecond;
+        this.size = udp ? Math.max(Destination.PROBE_LIMIT, size) : size;
+        this.intervalMillis = intervalMillis;
+        this.warmupMillis = warmupMillis;
+        this.durationMillis = durationMillis;
+    }
+
+    /**
+     * Runs the workload against the port and returns what was measured.
+     *
+     * @param port        on the loopback interface, the proxy's or directly the destination's
+     * @param destination which counts what reaches it when streaming
+     * @return
+     * @throws InterruptedException
+     */
+    public Result run(final int port, Destination destination) throws InterruptedException {
+        result = new Result();
+        stopped = false;
+        long start = System.nanoTime();
+        measureFrom = start + warmupMillis * 1000000L;
+        measureUntil = measureFrom + durationMillis * 1000000L;
+        final InetSocketAddress target = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < connections; i++) {
+            threads.add(Threads.start("load_" + i, new Runnable() {
+                @Override
+                public void run() {
+                    if (udp) {
+                        runUdpClient(target, true);
+                    }
+                    else {
+                        runConnection(target, true);
+                    }
+                }
+            }));
+        }
+        Thread churner = null;
+        if (churnPerSecond > 0) {
+            churner = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    churn(target);
+                }
+            }, "load_churn");
+            churner.start();
+        }
+
+        LockSupport.parkNanos(measureFrom - System.nanoTime());
+        long bytesFrom = destination.getBytes();
+        long datagramsFrom = destination.getDatagrams();
+        LockSupport.parkNanos(measureUntil - System.nanoTime());
+        result.sinkBytes = destination.getBytes() - bytesFrom;
+        result.sinkDatagrams = destination.getDatagrams() - datagramsFrom;
+        stopped = true;
+
+        if (churner != null) {
+            churner.join();
+        }
+        for (Thread t : threads) {
+            t.join(READ_TIMEOUT_MILLIS + CONNECT_TIMEOUT_MILLIS);
+        }
+        result.seconds = durationMillis / 1000.0;
+        return result;
+    }
+
+    private boolean measuring(long now) {
+        return now >= measureFrom && now < measureUntil;
+    }
+
+    /**
+     * Opens churned connections at a fixed rate until stopped. A connection that would exceed the number expected to
+     * be in flight if each took as long as the connect timeout is skipped and counted as missed, which keeps a stalled
+     * proxy from accumulating unbounded threads here.
+     */
+    private void churn(final InetSocketAddress target) {
+        long period = 1000000000L / churnPerSecond;
+        int maxInFlight = Math.max(16, churnPerSecond * CONNECT_TIMEOUT_MILLIS / 1000);
+        final AtomicInteger inFlight = new AtomicInteger();
+        long next = System.nanoTime();
+        for (long i = 0; !stopped; i++) {
+            LockSupport.parkNanos(next - System.nanoTime());
+            next += period;
+            if (inFlight.get() >= maxInFlight) {
+                if (measuring(System.nanoTime())) {
+                    result.churnMissed.increment();
+                }
+                continue;
+            }
+            inFlight.incrementAndGet();
+            Threads.start("load_churn_" + i, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (udp) {
+                            runUdpClient(target, false);
+                        }
+                        else {
+                            runConnection(target, false);
+                        }
+                    } finally {
+                        inFlight.decrementAndGet();
+                    }
+                }
+            });
+        }
+    }
+
+    private void runConnection(InetSocketAddress target, boolean longLived) {
+        byte[] payload = new byte[size];
+        byte[] echoed = new byte[size];
+        for (int i = 0; i < size; i++) {
+            payload[i] = (byte) i;
+        }
+        long began = System.nanoTime();
+        Socket s = new Socket();
+        try {
+            s.setTcpNoDelay(true);
+            s.setSoTimeout(READ_TIMEOUT_MILLIS);
+            s.connect(target, CONNECT_TIMEOUT_MILLIS);
+            OutputStream out = s.getOutputStream();
+            InputStream in = s.getInputStream();
+            do {
+                long sent = System.nanoTime();
+                out.write(payload);
+                if (!stream) {
+                    readFully(in, echoed);
+                }
+                long now = System.nanoTime();
+                if (measuring(now)) {
+                    if (longLived) {
+                        result.requests.increment();
+                        result.bytes.add(size);
+                        if (!stream) {
+                            result.latency.record((now - sent) / 1000);
+                        }
+                    }
+                    else {
+                        result.churned.increment();
+                        result.churnLatency.record((now - began) / 1000);
+                    }
+                }
+                pause();
+            } while (longLived && !stopped);
+        } catch (IOException e) {
+            if (!stopped) {
+                result.countFailure(e);
+            }
+        } finally {
+            try {
+                s.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] b) throws IOException {
+        int read = 0;
+        while (read < b.length) {
+            int n = in.read(b, read, b.length - read);
+            if (n == -1) {
+                throw new EOFException("Closed by the proxy after " + read + " of " + b.length + " bytes echoed");
+            }
+            read += n;
+        }
+    }
+
+    /**
+     * Runs a udp client. Each datagram starts with a sequence number so that a late echo of an earlier datagram, one
+     * that already timed out, isn't mistaken for the echo of the current one.
+     */
+    private void runUdpClient(InetSocketAddress target, boolean longLived) {
+        byte[] payload = new byte[size];
+        ByteBuffer seq = ByteBuffer.wrap(payload);
+        DatagramPacket request = new DatagramPacket(payload, size);
+        DatagramPacket reply = new DatagramPacket(new byte[65536], 65536);
+        long began = System.nanoTime();
+        DatagramSocket s = null;
+        try {
+            s = new DatagramSocket();
+            s.setSoTimeout(UDP_TIMEOUT_MILLIS);
+            s.connect(target);
+            long n = 0;
+            do {
+                seq.putLong(0, n);
+                long sent = System.nanoTime();
+                s.send(request);
+                boolean echoed = stream;
+                while (!echoed) {
+                    reply.setLength(65536);
+                    try {
+                        s.receive(reply);
+                    } catch (SocketTimeoutException e) {
+                        break;
+                    }
+                    echoed = reply.getLength() == size && ByteBuffer.wrap(reply.getData()).getLong(0) == n;
+                }
+                long now = System.nanoTime();
+                if (measuring(now)) {
+                    if (!echoed) {
+                        result.lost.increment();
+                    }
+                    else if (longLived) {
+                        result.requests.increment();
+                        result.bytes.add(size);
+                        if (!stream) {
+                            result.latency.record((now - sent) / 1000);
+                        }
+                    }
+                    else {
+                        result.churned.increment();
+                        result.churnLatency.record((now - began) / 1000);
+                    }
+                }
+                n++;
+                pause();
+            } while (longLived && !stopped);
+        } catch (IOException e) {
+            if (!stopped) {
+                result.countFailure(e);
+            }
+        } finally {
+            if (s != null) {
+                s.close();
+            }
+        }
+    }
+
+    private void pause() {
+        if (intervalMillis > 0) {
+            LockSupport.parkNanos(intervalMillis * 1000000L);
+        }
+    }
+
+    /**
+     * What was measured during one run. Latencies are in microseconds.
+     */
+    public static class Result {
+        final Histogram latency = new Histogram("latency_microseconds", "Round trip of a request");
+        final Histogram churnLatency = new Histogram("churn_microseconds", "Lifetime of a churned connection");
+        final LongAdder requests = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder churned = new LongAdder();
+        final LongAdder churnMissed = new LongAdder();
+        final LongAdder lost = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        volatile String firstFailure;
+        long sinkBytes;
+        long sinkDatagrams;
+        double seconds;
+
+        void countFailure(IOException e) {
+            failures.increment();
+            if (firstFailure == null) {
+                firstFailure = e.toString();
+            }
+        }
+    }
+}
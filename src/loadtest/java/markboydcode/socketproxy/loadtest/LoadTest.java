@@ -0,0 +1,315 @@
+package markboydcode.socketproxy.loadtest;
+
+import markboydcode.socketproxy.Histogram;
+import markboydcode.socketproxy.Threads;
+import org.apache.commons.cli.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.DatagramSocket;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Macro benchmark of the proxy run entirely on one machine. Starts a local echo destination, or a sink one when
+ * streaming, drives the configured load directly against it to get a baseline, then starts the proxy in front of it
+ * in a JVM of its own and drives the same load through it. The report compares the two: throughput, latency quantiles
+ * and what the proxy added to them, and the proxy's peak resident memory and thread count. Run it with
+ * <code>./gradlew loadtest -PloadtestArgs='-conns 1000 -churn 200'</code>, or with java directly to pass the proxy
+ * arguments of more than one word like <code>-proxyargs "-e nio -n"</code>.
+ */
+public class LoadTest {
+
+    static final Option typeParam = OptionBuilder.withArgName("proxy-type")
+            .hasArg().withDescription("Type of traffic, 'tcp' or 'udp'. Defaults to 'tcp'").create("t");
+
+    static final Option modeParam = OptionBuilder.withArgName("mode")
+            .hasArg().withDescription("'rr' to wait for each payload to be echoed and measure latency, 'stream' to write payloads back to back into a sink and measure throughput. Defaults to 'rr'").create("mode");
+
+    static final Option connsParam = OptionBuilder.withArgName("count")
+            .hasArg().withDescription("Number of concurrent long lived connections or udp clients. Defaults to 100").create("conns");
+
+    static final Option churnParam = OptionBuilder.withArgName("per-second")
+            .hasArg().withDescription("Number of short lived connections or udp clients opened per second on top of the long lived ones, each doing one request. Defaults to 0").create("churn");
+
+    static final Option sizeParam = OptionBuilder.withArgName("bytes")
+            .hasArg().withDescription("Payload size of each request, write or datagram. Defaults to 512").create("size");
+
+    static final Option intervalParam = OptionBuilder.withArgName("millis")
+            .hasArg().withDescription("Pause of each long lived connection between requests. Defaults to 0").create("interval");
+
+    static final Option warmupParam = OptionBuilder.withArgName("seconds")
+            .hasArg().withDescription("Time load runs before it is measured. Defaults to 5").create("warmup");
+
+    static final Option durationParam = OptionBuilder.withArgName("seconds")
+            .hasArg().withDescription("Time load is measured for. Defaults to 30").create("duration");
+
+    static final Option proxyArgsParam = OptionBuilder.withArgName("args")
+            .hasArg().withDescription("Additional command line arguments of the proxy, like \"-e nio -n\"").create("proxyargs");
+
+    static final Option noBaselineParam = OptionBuilder
+            .withDescription("Don't measure the load directly against the destination first").create("nobaseline");
+
+    static final Option dirParam = OptionBuilder.withArgName("dir")
+            .hasArg().withDescription("Directory the proxy runs in, where its output and captures are written. Defaults to 'build/loadtest'").create("dir");
+
+    static final Option reportParam = OptionBuilder.withArgName("file")
+            .hasArg().withDescription("File the report is appended to as well as printed").create("report");
+
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    public static void main(String[] args) throws Exception {
+        Options opts = new Options();
+        for (Option o : Arrays.asList(typeParam, modeParam, connsParam, churnParam, sizeParam, intervalParam,
+                warmupParam, durationParam, proxyArgsParam, noBaselineParam, dirParam, reportParam)) {
+            opts.addOption(o);
+        }
+        CommandLine cl;
+        try {
+            cl = new GnuParser().parse(opts, args, false);
+        } catch (ParseException e) {
+            System.err.println("Parsing command line failed.  Reason: " + e.getMessage());
+            showHelpAndExit(opts);
+            return;
+        }
+
+        String type = cl.getOptionValue(typeParam.getOpt(), "tcp").toLowerCase();
+        String mode = cl.getOptionValue(modeParam.getOpt(), "rr").toLowerCase();
+        if (!"tcp".equals(type) && !"udp".equals(type) || !"rr".equals(mode) && !"stream".equals(mode)) {
+            System.err.println("Specified type '" + type + "' or mode '" + mode + "' is not supported.");
+            showHelpAndExit(opts);
+            return;
+        }
+        boolean udp = "udp".equals(type);
+        boolean stream = "stream".equals(mode);
+        int conns = parse(cl, connsParam, 100, opts);
+        int churn = parse(cl, churnParam, 0, opts);
+        int size = parse(cl, sizeParam, 512, opts);
+        int interval = parse(cl, intervalParam, 0, opts);
+        int warmup = parse(cl, warmupParam, 5, opts);
+        int duration = parse(cl, durationParam, 30, opts);
+        if (duration < 1 || size < 1 || conns + churn < 1 || udp && size > 65507) {
+            System.err.println("Nothing to measure with a duration of " + duration + "s, " + size + " byte payloads, "
+                    + conns + " connections and " + churn + " churned per second.");
+            showHelpAndExit(opts);
+            return;
+        }
+        List<String> proxyArgs = new ArrayList<String>();
+        String proxyArgsValue = cl.getOptionValue(proxyArgsParam.getOpt(), "").trim();
+        if (!proxyArgsValue.isEmpty()) {
+            proxyArgs.addAll(Arrays.asList(proxyArgsValue.split("\\s+")));
+        }
+        File dir = new File(cl.getOptionValue(dirParam.getOpt(), "build/loadtest"));
+
+        // the generator and destination need as many threads as the proxy's thread engine, keep them cheap
+        Threads.useVirtualThreads();
+
+        Destination destination = Destination.start(udp, !stream);
+        LoadGenerator generator = new LoadGenerator(udp, stream, conns, churn, size, interval, warmup * 1000L,
+                duration * 1000L);
+        String title = type + " " + mode + ", " + conns + " connections, " + churn + " churned/s, " + size
+                + " byte payloads" + (interval > 0 ? " every " + interval + "ms" : "") + ", " + duration
+                + "s after " + warmup + "s warm up, proxy args: " + (proxyArgs.isEmpty() ? "none" : proxyArgsValue);
+        System.out.println("Load test " + title);
+
+        LoadGenerator.Result direct = null;
+        if (!cl.hasOption(noBaselineParam.getOpt())) {
+            System.out.println("Measuring directly against the destination...");
+            direct = generator.run(destination.getPort(), destination);
+        }
+
+        System.out.println("Measuring through the proxy...");
+        int proxyPort = freePort(udp);
+        ProxyProcess proxy = ProxyProcess.start(dir, proxyPort, destination.getPort(), udp, proxyArgs);
+        LoadGenerator.Result proxied;
+        try {
+            proxied = generator.run(proxyPort, destination);
+        } finally {
+            proxy.stop();
+            destination.close();
+        }
+
+        String report = report(title, stream, direct, proxied, proxy);
+        System.out.println();
+        System.out.print(report);
+        if (cl.hasOption(reportParam.getOpt())) {
+            Writer w = new FileWriter(cl.getOptionValue(reportParam.getOpt()), true);
+            try {
+                w.write(report);
+                w.write("\n");
+            } finally {
+                w.close();
+            }
+        }
+        System.exit(0);
+    }
+
+    private static int freePort(boolean udp) throws IOException {
+        if (udp) {
+            DatagramSocket s = new DatagramSocket(0);
+            try {
+                return s.getLocalPort();
+            } finally {
+                s.close();
+            }
+        }
+        ServerSocket s = new ServerSocket(0);
+        try {
+            return s.getLocalPort();
+        } finally {
+            s.close();
+        }
+    }
+
+    /**
+     * Formats the report, a column per run and for latencies a column of what the proxy added.
+     */
+    static String report(String title, boolean stream, LoadGenerator.Result direct, LoadGenerator.Result proxied,
+                         ProxyProcess proxy) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Load test ").append(title).append(" @ ").append(new Date()).append('\n');
+        sb.append(String.format("%-24s%14s%14s%14s%n", "", direct != null ? "direct" : "", "proxied",
+                direct != null ? "added" : ""));
+        if (stream) {
+            row(sb, "writes/s", direct, proxied, false, new Value() {
+                public double of(LoadGenerator.Result r) {
+                    return r.requests.sum() / r.seconds;
+                }
+            });
+            row(sb, "sink MB/s", direct, proxied, false, new Value() {
+                public double of(LoadGenerator.Result r) {
+                    return r.sinkBytes / r.seconds / 1000000;
+                }
+            });
+            if (proxied.sinkDatagrams > 0) {
+                row(sb, "sink datagrams/s", direct, proxied, false, new Value() {
+                    public double of(LoadGenerator.Result r) {
+                        return r.sinkDatagrams / r.seconds;
+                    }
+                });
+                row(sb, "datagrams lost %", direct, proxied, false, new Value() {
+                    public double of(LoadGenerator.Result r) {
+                        return 100.0 * Math.max(0, r.requests.sum() - r.sinkDatagrams) / Math.max(1, r.requests.sum());
+                    }
+                });
+            }
+        }
+        else {
+            row(sb, "requests/s", direct, proxied, false, new Value() {
+                public double of(LoadGenerator.Result r) {
+                    return r.requests.sum() / r.seconds;
+                }
+            });
+            row(sb, "MB/s each way", direct, proxied, false, new Value() {
+                public double of(LoadGenerator.Result r) {
+                    return r.bytes.sum() / r.seconds / 1000000;
+                }
+            });
+            quantileRows(sb, "latency", direct, proxied, true);
+        }
+        row(sb, "churned/s", direct, proxied, false, new Value() {
+            public double of(LoadGenerator.Result r) {
+                return r.churned.sum() / r.seconds;
+            }
+        });
+        if (proxied.churned.sum() > 0) {
+            quantileRows(sb, "churn", direct, proxied, false);
+        }
+        row(sb, "churn missed", direct, proxied, false, new Value() {
+            public double of(LoadGenerator.Result r) {
+                return r.churnMissed.sum();
+            }
+        });
+        row(sb, "lost datagrams", direct, proxied, false, new Value() {
+            public double of(LoadGenerator.Result r) {
+                return r.lost.sum();
+            }
+        });
+        row(sb, "failures", direct, proxied, false, new Value() {
+            public double of(LoadGenerator.Result r) {
+                return r.failures.sum();
+            }
+        });
+        sb.append(String.format("%-24s%14s%14s%n", "proxy peak rss MB", "",
+                proxy.getPeakRssKb() < 0 ? "n/a" : String.format("%.1f", proxy.getPeakRssKb() / 1024.0)));
+        sb.append(String.format("%-24s%14s%14s%n", "proxy peak threads", "",
+                proxy.getPeakThreads() < 0 ? "n/a" : Long.toString(proxy.getPeakThreads())));
+        if (proxied.firstFailure != null) {
+            sb.append("first proxied failure: ").append(proxied.firstFailure).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static void quantileRows(StringBuilder sb, String what, LoadGenerator.Result direct,
+                                     LoadGenerator.Result proxied, final boolean requests) {
+        for (final double q : QUANTILES) {
+            String label = what + " p" + (q * 100 == Math.rint(q * 100) ? Integer.toString((int) (q * 100))
+                    : Double.toString(q * 100).replace(".", "")) + " us";
+            row(sb, label, direct, proxied, true, new Value() {
+                public double of(LoadGenerator.Result r) {
+                    return histogram(r, requests).getValueAt(q);
+                }
+            });
+        }
+        row(sb, what + " max us", direct, proxied, true, new Value() {
+            public double of(LoadGenerator.Result r) {
+                return histogram(r, requests).getMax();
+            }
+        });
+    }
+
+    private static Histogram.Snapshot histogram(LoadGenerator.Result r, boolean requests) {
+        return (requests ? r.latency : r.churnLatency).snapshot();
+    }
+
+    private static void row(StringBuilder sb, String label, LoadGenerator.Result direct, LoadGenerator.Result proxied,
+                            boolean added, Value value) {
+        double p = value.of(proxied);
+        if (direct == null) {
+            sb.append(String.format("%-24s%14s%14.1f%n", label, "", p));
+        }
+        else if (added) {
+            double d = value.of(direct);
+            sb.append(String.format("%-24s%14.1f%14.1f%14.1f%n", label, d, p, p - d));
+        }
+        else {
+            sb.append(String.format("%-24s%14.1f%14.1f%n", label, value.of(direct), p));
+        }
+    }
+
+    /**
+     * A figure of a run.
+     */
+    interface Value {
+        double of(LoadGenerator.Result r);
+    }
+
+    private static int parse(CommandLine cl, Option opt, int defaultValue, Options opts) {
+        String val = cl.getOptionValue(opt.getOpt());
+        if (val == null) {
+            return defaultValue;
+        }
+        try {
+            int result = Integer.parseInt(val);
+            if (result >= 0) {
+                return result;
+            }
+        } catch (NumberFormatException nfe) {
+            // shown below
+        }
+        System.err.println("Specified " + opt.getArgName() + " '" + val + "' of -" + opt.getOpt()
+                + " is not a non negative integer.");
+        showHelpAndExit(opts);
+        return defaultValue;
+    }
+
+    private static void showHelpAndExit(Options opts) {
+        new HelpFormatter().printHelp("gradlew loadtest -PloadtestArgs='[options]'", opts);
+        System.exit(1);
+    }
+}
@@ -0,0 +1,234 @@
+package markboydcode.socketproxy.loadtest;
+
+import markboydcode.socketproxy.Main;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The proxy under test, run by {@link markboydcode.socketproxy.Main} in a JVM of its own so that its resident memory
+ * and thread count are not mixed up with those of the load generator. Both are sampled from
+ * <code>/proc/&lt;pid&gt;/status</code> while it runs, so they are only reported on Linux and when the JVM exposes
+ * the child's pid (java 9 and later). The proxy runs in the given directory where its capture files and its output,
+ * <code>proxy.log</code>, are written.
+ */
+public class ProxyProcess {
+
+    private static final long SAMPLE_MILLIS = 200;
+    private static final long STARTUP_MILLIS = 15000;
+
+    private final Process process;
+    private final long pid;
+    private volatile long peakRssKb = -1;
+    private volatile long peakThreads = -1;
+    private volatile boolean sampling = true;
+    private Thread sampler;
+
+    private ProxyProcess(Process process) {
+        this.process = process;
+        this.pid = pidOf(process);
+    }
+
+    /**
+     * Starts the proxy on the port in front of the destination, with the given additional command line arguments, and
+     * waits until it accepts connections or echoes probe datagrams.
+     *
+     * @param dir       working directory of the proxy
+     * @param port      local port the proxy listens on
+     * @param destPort  port of the destination on the loopback interface
+     * @param udp
+     * @param proxyArgs additional arguments like "-e nio -n"
+     * @return
+     * @throws IOException if the proxy can't be started or doesn't come up
+     */
+    public static ProxyProcess start(File dir, int port, int destPort, boolean udp, List<String> proxyArgs)
+            throws IOException {
+        dir.mkdirs();
+        List<String> cmd = new ArrayList<String>();
+        cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        cmd.add("-cp");
+        cmd.add(absoluteClassPath());
+        cmd.add(Main.class.getName());
+        cmd.add("-p");
+        cmd.add(Integer.toString(port));
+        cmd.add("-d");
+        cmd.add(InetAddress.getLoopbackAddress().getHostAddress() + ":" + destPort);
+        cmd.add("-t");
+        cmd.add(udp ? "udp" : "tcp");
+        cmd.add("-x");
+        cmd.add("L");
+        cmd.addAll(proxyArgs);
+
+        ProcessBuilder pb = new ProcessBuilder(cmd);
+        pb.directory(dir);
+        pb.redirectErrorStream(true);
+        pb.redirectOutput(new File(dir, "proxy.log"));
+        final ProxyProcess proxy = new ProxyProcess(pb.start());
+
+        long deadline = System.currentTimeMillis() + STARTUP_MILLIS;
+        while (!proxy.isUp(port, udp)) {
+            if (!proxy.isAlive() || System.currentTimeMillis() > deadline) {
+                proxy.stop();
+                throw new IOException("Proxy didn't come up, see " + new File(dir, "proxy.log"));
+            }
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for the proxy");
+            }
+        }
+
+        proxy.sampler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (proxy.sampling) {
+                    proxy.sample();
+                    try {
+                        Thread.sleep(SAMPLE_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "proxy_sampler");
+        proxy.sampler.setDaemon(true);
+        proxy.sampler.start();
+        return proxy;
+    }
+
+    /**
+     * Returns the class path of this JVM with every entry made absolute so that it resolves from the proxy's
+     * directory.
+     */
+    private static String absoluteClassPath() {
+        StringBuilder sb = new StringBuilder();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (sb.length() > 0) {
+                sb.append(File.pathSeparator);
+            }
+            sb.append(new File(entry).getAbsolutePath());
+        }
+        return sb.toString();
+    }
+
+    private static long pidOf(Process p) {
+        try {
+            return (Long) Process.class.getMethod("pid").invoke(p);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private boolean isAlive() {
+        try {
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    private boolean isUp(int port, boolean udp) {
+        InetSocketAddress proxy = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        try {
+            if (udp) {
+                DatagramSocket s = new DatagramSocket();
+                try {
+                    s.setSoTimeout(200);
+                    s.connect(proxy);
+                    s.send(new DatagramPacket(new byte[1], 1));
+                    s.receive(new DatagramPacket(new byte[Destination.PROBE_LIMIT], Destination.PROBE_LIMIT));
+                    return true;
+                } finally {
+                    s.close();
+                }
+            }
+            Socket s = new Socket();
+            try {
+                s.connect(proxy, 200);
+                return true;
+            } finally {
+                s.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads the current thread count and high water mark of resident memory of the proxy.
+     */
+    private void sample() {
+        File status = new File("/proc/" + pid + "/status");
+        if (pid < 0 || !status.canRead()) {
+            return;
+        }
+        try {
+            BufferedReader r = new BufferedReader(new FileReader(status));
+            try {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    if (line.startsWith("VmHWM:")) {
+                        peakRssKb = Math.max(peakRssKb, firstNumber(line));
+                    }
+                    else if (line.startsWith("Threads:")) {
+                        peakThreads = Math.max(peakThreads, firstNumber(line));
+                    }
+                }
+            } finally {
+                r.close();
+            }
+        } catch (IOException e) {
+            // exited between the check and the read
+        }
+    }
+
+    private static long firstNumber(String line) {
+        return Long.parseLong(line.replaceAll("[^0-9]+", " ").trim().split(" ")[0]);
+    }
+
+    /**
+     * Returns the peak resident memory of the proxy in kilobytes, or -1 if it couldn't be sampled.
+     *
+     * @return
+     */
+    public long getPeakRssKb() {
+        return peakRssKb;
+    }
+
+    /**
+     * Returns the highest number of threads the proxy was seen running, or -1 if it couldn't be sampled.
+     *
+     * @return
+     */
+    public long getPeakThreads() {
+        return peakThreads;
+    }
+
+    /**
+     * Takes a last sample and kills the proxy.
+     */
+    public void stop() {
+        sampling = false;
+        if (sampler != null) {
+            sampler.interrupt();
+            sample();
+        }
+        process.destroy();
+        try {
+            process.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
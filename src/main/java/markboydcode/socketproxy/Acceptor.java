@@ -0,0 +1,290 @@
+package markboydcode.socketproxy;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Accept loop of a listener. Waits on a selector for the server channel to become acceptable and then accepts every
+ * pending connection, up to {@link #BATCH_SIZE}, before handing them to the listener at once, so a storm of
+ * connections costs one wakeup per batch rather than one per connection.
+ * <p>
+ * Failing to accept, like when the process runs out of file descriptors, doesn't end the loop. It backs off for
+ * {@link #MIN_BACKOFF_MILLIS}, doubling up to {@link #MAX_BACKOFF_MILLIS} while failures persist, and logs only the
+ * first failure and the recovery, leaving pending connections in the backlog until resources are freed. Only closing
+ * the server channel ends the loop.
+ * <p>
+ * With {@link markboydcode.socketproxy.Admission} control each accepted connection has to be admitted before it is
+ * handed on. Those that aren't are reset, held by the acceptor and retried on every pass until they get in or their
+ * time in the queue has passed, or left in the backlog by not accepting while the route is saturated, as the route's
+ * {@link markboydcode.socketproxy.Admission.Action} says. While connections are held or accepting is paused the
+ * acceptor wakes up every {@link #POLL_MILLIS} to retry them. An acceptor holds at most {@link #MAX_HELD} connections,
+ * further ones are reset right away rather than each holding a file descriptor for the whole time in the queue.
+ */
+public class Acceptor implements Runnable {
+
+    public static final int DEFAULT_BACKLOG = 1024;
+    static final int BATCH_SIZE = 64;
+    static final long MIN_BACKOFF_MILLIS = 10;
+    static final long MAX_BACKOFF_MILLIS = 1000;
+    static final long POLL_MILLIS = 10;
+    static final int MAX_HELD = 1024;
+
+    /**
+     * Receives the connections accepted by an acceptor.
+     */
+    public interface Handler {
+        /**
+         * Takes ownership of accepted connections. Called on the acceptor's thread.
+         *
+         * @param batch accepted channels in blocking mode, reused by the acceptor once this returns
+         */
+        void accepted(List<SocketChannel> batch);
+    }
+
+    /**
+     * Accepted connection waiting to be admitted.
+     */
+    private static class Held {
+        final SocketChannel channel;
+        final InetAddress client;
+        final long deadline;
+        Admission.Limit limit;
+
+        Held(SocketChannel channel, InetAddress client, long deadline, Admission.Limit limit) {
+            this.channel = channel;
+            this.client = client;
+            this.deadline = deadline;
+            this.limit = limit;
+        }
+    }
+
+    private final String name;
+    private final ServerSocketChannel channel;
+    private final Admission admission;
+    private final Handler handler;
+    private final List<SocketChannel> batch = new ArrayList<SocketChannel>(BATCH_SIZE);
+    private final List<Held> held = new ArrayList<Held>();
+
+    /**
+     * @param name      for log lines and the thread
+     * @param channel   bound server channel, possibly shared with other acceptors
+     * @param admission of the route, null to hand on every connection
+     * @param handler
+     */
+    public Acceptor(String name, ServerSocketChannel channel, Admission admission, Handler handler) {
+        this.name = name;
+        this.channel = channel;
+        this.admission = admission;
+        this.handler = handler;
+    }
+
+    /**
+     * Opens the server channels of a listener. With more than one acceptor each gets a channel of its own bound with
+     * SO_REUSEPORT, so that the kernel spreads connections across their backlogs, or all share one channel where the
+     * platform doesn't support SO_REUSEPORT.
+     *
+     * @param port
+     * @param backlog   of each channel
+     * @param acceptors
+     * @return a channel per acceptor, the same one repeated when shared
+     * @throws IOException if a channel can't be opened or bound
+     */
+    public static ServerSocketChannel[] open(int port, int backlog, int acceptors) throws IOException {
+        ServerSocketChannel[] channels = new ServerSocketChannel[acceptors];
+        try {
+            channels[0] = ServerSocketChannel.open();
+            boolean reusePort = acceptors > 1 && SocketOptions.supportsReusePort(channels[0]);
+            for (int i = 0; i < channels.length; i++) {
+                if (i > 0 && !reusePort) {
+                    channels[i] = channels[0];
+                    continue;
+                }
+                if (i > 0) {
+                    channels[i] = ServerSocketChannel.open();
+                }
+                if (reusePort) {
+                    SocketOptions.setReusePort(channels[i]);
+                }
+                channels[i].bind(new InetSocketAddress(port), backlog);
+            }
+        } catch (IOException e) {
+            for (ServerSocketChannel ss : channels) {
+                if (ss != null) {
+                    ss.close();
+                }
+            }
+            throw e;
+        }
+        return channels;
+    }
+
+    /**
+     * Runs an acceptor per channel, the first on the calling thread and the others on threads of their own.
+     *
+     * @param name     prefix of the acceptors' names
+     * @param channels  as returned by {@link #open(int, int, int)}
+     * @param admission of the route, shared by all acceptors, null to hand on every connection
+     * @param handler   shared by all acceptors, so called concurrently if there are several
+     */
+    public static void serve(String name, ServerSocketChannel[] channels, Admission admission, Handler handler) {
+        for (int i = 1; i < channels.length; i++) {
+            Thread t = new Thread(new Acceptor(name + "_" + i, channels[i], admission, handler));
+            t.setName(name + "_" + i);
+            t.start();
+        }
+        new Acceptor(name + "_0", channels[0], admission, handler).run();
+    }
+
+    @Override
+    public void run() {
+        Selector selector;
+        SelectionKey key;
+        try {
+            selector = Selector.open();
+            synchronized (channel) {
+                // acceptors sharing a channel mustn't race changing its blocking mode against registering it
+                channel.configureBlocking(false);
+                key = channel.register(selector, SelectionKey.OP_ACCEPT);
+            }
+        } catch (IOException e) {
+            System.err.println(name + " unable to wait for connections. Terminating...");
+            e.printStackTrace();
+            return;
+        }
+
+        long backoff = 0;
+        int failures = 0;
+        while (channel.isOpen()) {
+            try {
+                if (backoff == 0) {
+                    boolean paused = isPaused();
+                    key.interestOps(paused ? 0 : SelectionKey.OP_ACCEPT);
+                    if (paused || !held.isEmpty()) {
+                        selector.select(POLL_MILLIS);
+                    }
+                    else {
+                        selector.select();
+                    }
+                    selector.selectedKeys().clear();
+                }
+                admitHeld();
+                SocketChannel s;
+                while (batch.size() < BATCH_SIZE && !isPaused() && (s = channel.accept()) != null) {
+                    admit(s);
+                }
+                if (failures > 0) {
+                    System.out.println(name + " accepting again after " + failures + " failures @ " + new Date());
+                    failures = 0;
+                }
+                backoff = 0;
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                // like EMFILE, the connection stays in the backlog until descriptors are freed
+                Metrics.get().acceptFailed();
+                if (failures++ == 0) {
+                    System.err.println(name + " unable to accept connection, backing off: " + e + " @ " + new Date());
+                }
+                backoff = backoff == 0 ? MIN_BACKOFF_MILLIS : Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+            }
+            if (!batch.isEmpty()) {
+                handler.accepted(batch);
+                batch.clear();
+            }
+            if (backoff > 0) {
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+        for (Held h : held) {
+            Admission.shed(h.channel, h.limit);
+            Metrics.get().connectionDequeued();
+        }
+        held.clear();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+    /**
+     * Indicates that accepting is paused since the route is saturated.
+     *
+     * @return
+     */
+    private boolean isPaused() {
+        return admission != null && admission.getAction() == Admission.Action.PAUSE && admission.isSaturated();
+    }
+
+    /**
+     * Adds the newly accepted connection to the batch if admitted, or resets or holds it otherwise.
+     *
+     * @param s
+     */
+    private void admit(SocketChannel s) {
+        if (admission == null) {
+            batch.add(s);
+            return;
+        }
+        InetAddress client = s.socket().getInetAddress();
+        Admission.Limit limit = admission.tryAdmit(client);
+        if (limit == null) {
+            batch.add(s);
+        }
+        else if (admission.getAction() == Admission.Action.REJECT || held.size() >= MAX_HELD) {
+            Admission.shed(s, limit);
+        }
+        else {
+            // queued, or paused for the total limits but exceeding the client's
+            held.add(new Held(s, client, System.currentTimeMillis() + admission.getQueueMillis(), limit));
+            Metrics.get().connectionQueued();
+        }
+    }
+
+    /**
+     * Moves held connections that are admitted by now to the batch, in the order they were accepted, and resets those
+     * whose time in the queue has passed. Once a total limit stands in the way of one connection it stands in the way
+     * of all that follow, which are then only checked for their time in the queue.
+     */
+    private void admitHeld() {
+        if (held.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Admission.Limit saturated = null;
+        Iterator<Held> it = held.iterator();
+        while (it.hasNext()) {
+            Held h = it.next();
+            Admission.Limit limit = saturated != null ? saturated : admission.tryAdmit(h.client);
+            if (limit == Admission.Limit.CONNECTIONS || limit == Admission.Limit.RATE) {
+                saturated = limit;
+            }
+            if (limit == null) {
+                batch.add(h.channel);
+            }
+            else if (now >= h.deadline) {
+                Admission.shed(h.channel, limit);
+            }
+            else {
+                h.limit = limit;
+                continue;
+            }
+            it.remove();
+            Metrics.get().connectionDequeued();
+        }
+    }
+}
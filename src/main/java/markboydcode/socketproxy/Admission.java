@@ -0,0 +1,266 @@
+package markboydcode.socketproxy;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admission control of a tcp route: limits the connections open at once, in total and per client address, and the
+ * rate they are accepted at, in total and per client address. Rates are enforced with token buckets holding a second's
+ * worth of connections, so bursts up to the rate pass at once.
+ * <p>
+ * What an {@link markboydcode.socketproxy.Acceptor} does with a connection exceeding a limit is the route's
+ * {@link Action}: hold it until it fits or its time in the queue runs out, reset it right away, or stop accepting
+ * altogether while the route is saturated so that connections wait in the kernel's backlog. Pausing can only prevent
+ * exceeding the total limits, connections exceeding the limits of their client are queued instead. Connections that
+ * don't get in are reset, so clients see a refused connection rather than a hang, and counted as shed by the limit
+ * they exceeded.
+ * <p>
+ * Every admitted connection has to be {@link #release(java.net.InetAddress) released} once it has ended. Thread safe.
+ */
+public class Admission {
+
+    public static final long DEFAULT_QUEUE_MILLIS = 1000;
+
+    /**
+     * What is done with a connection exceeding a limit.
+     */
+    public enum Action {
+        /**
+         * Hold the connection until it fits or its time in the queue has passed, then reset it.
+         */
+        QUEUE,
+        /**
+         * Reset the connection right away.
+         */
+        REJECT,
+        /**
+         * Stop accepting while the total limits are reached, queue connections exceeding their client's limits.
+         */
+        PAUSE
+    }
+
+    /**
+     * The limits a connection can exceed. Besides those of admission control a connection exceeds the {@code WORKERS}
+     * limit when the thread engine's worker pool has no room left to queue its startup, see
+     * {@link markboydcode.socketproxy.Threads#execute(String, Runnable)}.
+     */
+    public enum Limit {
+        CONNECTIONS, CLIENT_CONNECTIONS, RATE, CLIENT_RATE, WORKERS
+    }
+
+    /**
+     * Open connections and accept tokens of a single client address.
+     */
+    private static class Client {
+        int active;
+        final TokenBucket bucket;
+
+        Client(int rate, long now) {
+            this.bucket = rate > 0 ? new TokenBucket(rate, now) : null;
+        }
+    }
+
+    /**
+     * Tokens refilled continuously at the rate, holding at most a second's worth. Guarded by the admission's lock.
+     */
+    private static class TokenBucket {
+        private final int rate;
+        private double tokens;
+        private long refilledAt;
+
+        TokenBucket(int rate, long now) {
+            this.rate = rate;
+            this.tokens = rate;
+            this.refilledAt = now;
+        }
+
+        boolean hasToken(long now) {
+            tokens = Math.min(rate, tokens + (now - refilledAt) * rate / 1e9);
+            refilledAt = now;
+            return tokens >= 1;
+        }
+
+        void take() {
+            tokens--;
+        }
+
+        boolean isFull(long now) {
+            return tokens + (now - refilledAt) * rate / 1e9 >= rate;
+        }
+    }
+
+    private final int maxConnections;
+    private final int maxClientConnections;
+    private final int clientRate;
+    private final Action action;
+    private final long queueMillis;
+    private final TokenBucket bucket;
+    private final Map<InetAddress, Client> clients = new HashMap<InetAddress, Client>();
+    private final Lock lock = new ReentrantLock();
+    private int active = 0;
+    private long sweptAt;
+
+    /**
+     * @param maxConnections       open at once, zero for no limit
+     * @param maxClientConnections open at once per client address, zero for no limit
+     * @param rate                 connections accepted per second, zero for no limit
+     * @param clientRate           connections accepted per second per client address, zero for no limit
+     * @param action
+     * @param queueMillis          a connection may be held for before it is reset, when queued
+     */
+    public Admission(int maxConnections, int maxClientConnections, int rate, int clientRate, Action action,
+                     long queueMillis) {
+        this.maxConnections = maxConnections;
+        this.maxClientConnections = maxClientConnections;
+        this.clientRate = clientRate;
+        this.action = action;
+        this.queueMillis = queueMillis;
+        long now = System.nanoTime();
+        this.bucket = rate > 0 ? new TokenBucket(rate, now) : null;
+        this.sweptAt = now;
+    }
+
+    /**
+     * Creates admission control with the given limits unless there are none.
+     *
+     * @return null if all limits are zero
+     * @see #Admission(int, int, int, int, markboydcode.socketproxy.Admission.Action, long)
+     */
+    public static Admission create(int maxConnections, int maxClientConnections, int rate, int clientRate,
+                                   Action action, long queueMillis) {
+        if (maxConnections <= 0 && maxClientConnections <= 0 && rate <= 0 && clientRate <= 0) {
+            return null;
+        }
+        return new Admission(maxConnections, maxClientConnections, rate, clientRate, action, queueMillis);
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    public long getQueueMillis() {
+        return queueMillis;
+    }
+
+    /**
+     * Indicates that no connection can be admitted, whatever its client, as the total limits are reached.
+     *
+     * @return
+     */
+    public boolean isSaturated() {
+        lock.lock();
+        try {
+            return (maxConnections > 0 && active >= maxConnections)
+                    || (bucket != null && !bucket.hasToken(System.nanoTime()));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Admits a connection of the client if no limit stands in its way, counting it as open.
+     *
+     * @param client address of the connection's client
+     * @return null if admitted, otherwise the first limit the connection exceeds
+     */
+    public Limit tryAdmit(InetAddress client) {
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            if (maxConnections > 0 && active >= maxConnections) {
+                return Limit.CONNECTIONS;
+            }
+            if (bucket != null && !bucket.hasToken(now)) {
+                return Limit.RATE;
+            }
+            Client c = null;
+            if (maxClientConnections > 0 || clientRate > 0) {
+                sweep(now);
+                c = clients.get(client);
+                if (c == null) {
+                    c = new Client(clientRate, now);
+                    clients.put(client, c);
+                }
+                if (maxClientConnections > 0 && c.active >= maxClientConnections) {
+                    return Limit.CLIENT_CONNECTIONS;
+                }
+                if (c.bucket != null && !c.bucket.hasToken(now)) {
+                    return Limit.CLIENT_RATE;
+                }
+                c.active++;
+                if (c.bucket != null) {
+                    c.bucket.take();
+                }
+            }
+            active++;
+            if (bucket != null) {
+                bucket.take();
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Counts an admitted connection of the client as ended.
+     *
+     * @param client
+     */
+    public void release(InetAddress client) {
+        lock.lock();
+        try {
+            active--;
+            Client c = clients.get(client);
+            if (c != null) {
+                c.active--;
+                if (c.active == 0 && c.bucket == null) {
+                    clients.remove(client);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Resets a connection that didn't get in and counts it as shed.
+     *
+     * @param channel
+     * @param limit   the connection exceeded
+     */
+    public static void shed(SocketChannel channel, Limit limit) {
+        Metrics.get().connectionShed(limit);
+        try {
+            // linger of zero makes close send a RST rather than a FIN
+            channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+            channel.close();
+        } catch (IOException e) {
+            // gone anyway
+        }
+    }
+
+    /**
+     * Forgets clients without open connections whose buckets have refilled, at most once a second.
+     */
+    private void sweep(long now) {
+        if (now - sweptAt < 1000000000L) {
+            return;
+        }
+        sweptAt = now;
+        Iterator<Client> it = clients.values().iterator();
+        while (it.hasNext()) {
+            Client c = it.next();
+            if (c.active == 0 && (c.bucket == null || c.bucket.isFull(now))) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package markboydcode.socketproxy;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bandwidth limits of a route as a hierarchy of {@link markboydcode.socketproxy.Throttle}s: one shared by all routes of
+ * the process, one of the route and one per client address of the route. Bytes in both directions of a connection, or
+ * of a client's udp session, count against all three, so that a bulk client is held to its own rate before it can
+ * take the route's or the host's bandwidth from the others.
+ * <p>
+ * Each connection takes a {@link Share}, resolving its buckets once so that limiting a chunk costs a compare-and-set
+ * per bucket. A client's bucket exists while the client has shares.
+ */
+public class Bandwidth {
+
+    private final Throttle global;
+    private final Throttle route;
+    private final long clientBytesPerSecond;
+    private final Map<InetAddress, Client> clients = new HashMap<InetAddress, Client>();
+    private final Lock lock = new ReentrantLock();
+
+    /**
+     * Bucket of a client address and the number of shares using it. Guarded by the lock.
+     */
+    private static class Client {
+        final Throttle throttle;
+        int shares = 0;
+
+        Client(long bytesPerSecond) {
+            this.throttle = new Throttle(bytesPerSecond);
+        }
+    }
+
+    /**
+     * The buckets of a single connection or udp session, from the client's up to the global one.
+     */
+    public final class Share {
+        private final InetAddress client;
+        private final Throttle[] levels;
+        private boolean released = false;
+
+        private Share(InetAddress client, Throttle[] levels) {
+            this.client = client;
+            this.levels = levels;
+        }
+
+        /**
+         * Takes the bytes from all buckets.
+         *
+         * @param bytes
+         * @return nanos to wait before passing the bytes on, zero if they may go at once
+         */
+        public long take(int bytes) {
+            long now = System.nanoTime();
+            long wait = 0;
+            for (Throttle t : levels) {
+                wait = Math.max(wait, t.take(bytes, now));
+            }
+            return wait;
+        }
+
+        /**
+         * Takes the bytes from all buckets if all of them hold the bytes, otherwise from none.
+         *
+         * @param bytes
+         * @return false if the bytes would exceed a rate
+         */
+        public boolean tryTake(int bytes) {
+            long now = System.nanoTime();
+            for (int i = 0; i < levels.length; i++) {
+                if (!levels[i].tryTake(bytes, now)) {
+                    for (int j = 0; j < i; j++) {
+                        levels[j].refund(bytes);
+                    }
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Gives up the share once its connection or session has ended. Only the first call counts.
+         */
+        public void release() {
+            lock.lock();
+            try {
+                if (released || clientBytesPerSecond <= 0) {
+                    return;
+                }
+                released = true;
+                Client c = clients.get(client);
+                if (c != null && --c.shares == 0) {
+                    clients.remove(client);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @param global               bucket shared by all routes, null for no limit
+     * @param routeBytesPerSecond  of all connections of the route together, zero for no limit
+     * @param clientBytesPerSecond of all connections of a client address together, zero for no limit
+     */
+    public Bandwidth(Throttle global, long routeBytesPerSecond, long clientBytesPerSecond) {
+        this.global = global;
+        this.route = routeBytesPerSecond > 0 ? new Throttle(routeBytesPerSecond) : null;
+        this.clientBytesPerSecond = clientBytesPerSecond;
+    }
+
+    /**
+     * Creates the limits of a route unless there are none.
+     *
+     * @return null if no bucket applies
+     * @see #Bandwidth(Throttle, long, long)
+     */
+    public static Bandwidth create(Throttle global, long routeBytesPerSecond, long clientBytesPerSecond) {
+        if (global == null && routeBytesPerSecond <= 0 && clientBytesPerSecond <= 0) {
+            return null;
+        }
+        return new Bandwidth(global, routeBytesPerSecond, clientBytesPerSecond);
+    }
+
+    /**
+     * Returns the share of a new connection or session of the client, which has to be released once it has ended.
+     *
+     * @param client
+     * @return
+     */
+    public Share share(InetAddress client) {
+        Throttle[] levels = new Throttle[(clientBytesPerSecond > 0 ? 1 : 0) + (route != null ? 1 : 0)
+                + (global != null ? 1 : 0)];
+        int i = 0;
+        if (clientBytesPerSecond > 0) {
+            lock.lock();
+            try {
+                Client c = clients.get(client);
+                if (c == null) {
+                    c = new Client(clientBytesPerSecond);
+                    clients.put(client, c);
+                }
+                c.shares++;
+                levels[i++] = c.throttle;
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (route != null) {
+            levels[i++] = route;
+        }
+        if (global != null) {
+            levels[i] = global;
+        }
+        return new Share(client, levels);
+    }
+}
@@ -0,0 +1,365 @@
+package markboydcode.socketproxy;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shared pool of i/o buffers in power of two size classes from {@link #MIN_SIZE} to {@link #MAX_SIZE}. Long lived
+ * threads that keep acquiring and releasing, like event loops, can opt into a small cache of released buffers per size
+ * class in front of the shared queues so that they rarely touch shared state. Other threads, like a connection's
+ * spoolers, go straight to the shared queues since buffers cached by a thread die with it. The shared queues of all
+ * size classes together retain up to a configurable number of bytes, buffers that don't fit when released are left to
+ * the garbage collector.
+ *
+ * There is one pool of heap buffers, whose arrays can be handed to streams and loggers, and one of direct buffers for
+ * channel i/o of traffic that is never looked at.
+ */
+public class BufferPool {
+
+    public static final int MIN_SIZE = 4 * 1024;
+    public static final int MAX_SIZE = 256 * 1024;
+
+    /**
+     * Largest datagram payload, hence the size of buffers that receive datagrams without ever truncating them.
+     */
+    public static final int MAX_DATAGRAM_SIZE = 64 * 1024;
+
+    /**
+     * Bytes each of the heap and direct pools retains unless configured otherwise.
+     */
+    public static final long DEFAULT_MAX_POOLED_BYTES = 64 * 1024 * 1024;
+
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE / MIN_SIZE) + 1;
+    private static final int THREAD_CACHE_SIZE = 2;
+
+    private static final BufferPool heap = new BufferPool("heap", false, DEFAULT_MAX_POOLED_BYTES);
+    private static final BufferPool direct = new BufferPool("direct", true, DEFAULT_MAX_POOLED_BYTES);
+
+    private final String name;
+    private final boolean isDirect;
+    private final SizeClass[] classes = new SizeClass[CLASSES];
+    private final ThreadLocal<ByteBuffer[][]> threadCache = new ThreadLocal<ByteBuffer[][]>();
+    private final AtomicLong pooledBytes = new AtomicLong(0);
+    private volatile long maxPooledBytes;
+
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+
+    /**
+     * Creates a pool retaining up to the given number of bytes in all size classes together, not counting thread
+     * caches.
+     *
+     * @param name
+     * @param isDirect
+     * @param maxPooledBytes
+     */
+    public BufferPool(String name, boolean isDirect, long maxPooledBytes) {
+        this.name = name;
+        this.isDirect = isDirect;
+        this.maxPooledBytes = maxPooledBytes;
+        for (int i = 0; i < CLASSES; i++) {
+            classes[i] = new SizeClass(MIN_SIZE << i);
+        }
+    }
+
+    /**
+     * Sets the number of bytes each of the heap and direct pools retains, so the two pools together hold at most twice
+     * as much.
+     *
+     * @param maxPooledBytes
+     */
+    public static void configure(long maxPooledBytes) {
+        heap.maxPooledBytes = maxPooledBytes;
+        direct.maxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * Returns the pool of heap buffers, each of which is backed by an accessible array starting at offset zero.
+     *
+     * @return
+     */
+    public static BufferPool heap() {
+        return heap;
+    }
+
+    /**
+     * Returns the pool of direct buffers.
+     *
+     * @return
+     */
+    public static BufferPool direct() {
+        return direct;
+    }
+
+    /**
+     * Gives the calling thread its own cache of released buffers in both pools. Only for threads that live as long as
+     * the proxy since the buffers cached by a thread are lost when it ends.
+     */
+    public static void useThreadCache() {
+        heap.threadCache.set(new ByteBuffer[CLASSES][THREAD_CACHE_SIZE]);
+        direct.threadCache.set(new ByteBuffer[CLASSES][THREAD_CACHE_SIZE]);
+    }
+
+    /**
+     * Starts a daemon thread printing the statistics of both pools at the given interval.
+     *
+     * @param periodMillis
+     */
+    public static void startReporting(final long periodMillis) {
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(periodMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    System.out.println(heap);
+                    System.out.println(direct);
+                }
+            }
+        }, "buffer_pool_stats");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Returns a cleared buffer with at least the requested capacity, rounded up to the next size class. Requests above
+     * {@link #MAX_SIZE} are served by allocating a buffer that is never pooled.
+     *
+     * @param capacity
+     * @return
+     */
+    public ByteBuffer acquire(int capacity) {
+        acquired.increment();
+        int idx = classOf(capacity);
+        if (idx < 0) {
+            misses.increment();
+            return allocate(capacity);
+        }
+        ByteBuffer[][] caches = threadCache.get();
+        if (caches != null) {
+            ByteBuffer[] cache = caches[idx];
+            for (int i = 0; i < cache.length; i++) {
+                ByteBuffer b = cache[i];
+                if (b != null) {
+                    cache[i] = null;
+                    return b;
+                }
+            }
+        }
+        ByteBuffer b = classes[idx].poll();
+        if (b == null) {
+            misses.increment();
+            b = allocate(classes[idx].size);
+        }
+        return b;
+    }
+
+    /**
+     * Returns a buffer to the pool. The caller must not touch the buffer afterwards.
+     *
+     * @param b may be null in which case nothing happens
+     */
+    public void release(ByteBuffer b) {
+        if (b == null || b.isDirect() != isDirect) {
+            return;
+        }
+        int idx = classOf(b.capacity());
+        if (idx < 0 || classes[idx].size != b.capacity()) {
+            return;
+        }
+        b.clear();
+        ByteBuffer[][] caches = threadCache.get();
+        if (caches != null) {
+            ByteBuffer[] cache = caches[idx];
+            for (int i = 0; i < cache.length; i++) {
+                if (cache[i] == null) {
+                    cache[i] = b;
+                    return;
+                }
+            }
+        }
+        if (!classes[idx].offer(b)) {
+            discarded.increment();
+        }
+    }
+
+    /**
+     * Returns the size of the buffer the pool hands out for the requested capacity.
+     *
+     * @param capacity
+     * @return
+     */
+    public static int sizeFor(int capacity) {
+        int idx = classOf(capacity);
+        return idx < 0 ? capacity : MIN_SIZE << idx;
+    }
+
+    private static int classOf(int capacity) {
+        if (capacity > MAX_SIZE) {
+            return -1;
+        }
+        if (capacity <= MIN_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros((capacity - 1) / MIN_SIZE);
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return isDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the number of buffers handed out so far.
+     *
+     * @return
+     */
+    public long getAcquiredCount() {
+        return acquired.sum();
+    }
+
+    /**
+     * Returns the number of buffers that had to be allocated because none was pooled.
+     *
+     * @return
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of released buffers left to the garbage collector because the pool was full.
+     *
+     * @return
+     */
+    public long getDiscardedCount() {
+        return discarded.sum();
+    }
+
+    /**
+     * Returns the number of bytes held in the shared queues of all size classes.
+     *
+     * @return
+     */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * Returns a one line summary of the pool's occupancy and counters.
+     *
+     * @return
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(name).append(" buffers: acquired ").append(getAcquiredCount())
+                .append(", misses ").append(getMissCount())
+                .append(", discarded ").append(getDiscardedCount())
+                .append(", pooled ").append(getPooledBytes() / 1024).append("k [");
+        for (int i = 0; i < classes.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(classes[i].size / 1024).append("k:").append(classes[i].count.get());
+        }
+        return sb.append("]").toString();
+    }
+
+    /**
+     * Shared queue of released buffers of a single size, bounded by the bytes the pool retains in all its classes.
+     */
+    private class SizeClass {
+        final int size;
+        final Queue<ByteBuffer> queue = new ConcurrentLinkedQueue<ByteBuffer>();
+        final AtomicInteger count = new AtomicInteger(0);
+
+        SizeClass(int size) {
+            this.size = size;
+        }
+
+        ByteBuffer poll() {
+            ByteBuffer b = queue.poll();
+            if (b != null) {
+                count.decrementAndGet();
+                pooledBytes.addAndGet(-size);
+            }
+            return b;
+        }
+
+        boolean offer(ByteBuffer b) {
+            if (pooledBytes.addAndGet(size) > maxPooledBytes) {
+                pooledBytes.addAndGet(-size);
+                return false;
+            }
+            count.incrementAndGet();
+            queue.offer(b);
+            return true;
+        }
+    }
+
+    /**
+     * Tracks how well a connection's reads fill its buffer and recommends the size of its next buffer. Grows the
+     * buffer after several consecutive reads that filled it, like a bulk transfer on a fast link, and shrinks it after
+     * a run of reads using less than a quarter of it, like an idle or interactive connection. Not thread safe, each
+     * direction of a connection has its own.
+     */
+    public static class Sizer {
+        private static final int GROW_AFTER = 4;
+        private static final int SHRINK_AFTER = 16;
+
+        private final int min;
+        private final int max;
+        private int full = 0;
+        private int small = 0;
+
+        /**
+         * @param min smallest size recommended
+         * @param max largest size recommended
+         */
+        public Sizer(int min, int max) {
+            this.min = min;
+            this.max = max;
+        }
+
+        /**
+         * Records a read into a buffer of the given capacity.
+         *
+         * @param bytes read
+         * @param capacity of the buffer read into
+         * @return the capacity recommended for subsequent reads
+         */
+        public int record(int bytes, int capacity) {
+            if (bytes >= capacity) {
+                small = 0;
+                if (++full >= GROW_AFTER && capacity < max) {
+                    full = 0;
+                    return Math.min(max, capacity * 2);
+                }
+            }
+            else if (bytes < capacity / 4) {
+                full = 0;
+                if (++small >= SHRINK_AFTER && capacity > min) {
+                    small = 0;
+                    return Math.max(min, capacity / 2);
+                }
+            }
+            else {
+                full = 0;
+                small = 0;
+            }
+            return capacity;
+        }
+    }
+}
@@ -0,0 +1,428 @@
+package markboydcode.socketproxy;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Optional compression of capture files as a series of independently compressed blocks. Each block of up to
+ * {@link #BLOCK_SIZE} bytes is a complete gzip member whose header carries an extra field with the block's compressed
+ * length, so a compressed capture is an ordinary gzip file that tools like zcat read as is, while a capture cut short,
+ * like when the process died, can still be read up to its last complete block.
+ * <p>
+ * A member starts with the gzip header with {@link #FEXTRA} set, an extra field length of 8 and a single subfield of
+ * id {@link #SUBFIELD_ID} holding the length of the deflated data as an int. It is followed by the deflated data and
+ * the gzip trailer of crc32 and length of the block. All numbers are little endian as gzip wants.
+ * <p>
+ * Blocks are compressed by whichever thread writes the capture file, which is the background
+ * {@link markboydcode.socketproxy.CaptureWriter} rather than the spooling threads, with a deflater per thread that is
+ * ended by {@link #release()}. A block is written once full, on close and when flushed at least {@link #FLUSH_MILLIS}
+ * after it was started, so that a busy connection flushing after every chunk doesn't end up with tiny blocks that
+ * hardly compress. The writer flushes the blocks of connections that went quiet so they don't wait for the close.
+ */
+public class CaptureCompression {
+
+    /**
+     * Suffix appended to the names of compressed capture files.
+     */
+    public static final String SUFFIX = ".gz";
+
+    public static final int BLOCK_SIZE = 64 * 1024;
+    public static final long FLUSH_MILLIS = 1000;
+
+    static final int FEXTRA = 4;
+    static final byte[] SUBFIELD_ID = {'S', 'P'};
+    static final int HEADER_LENGTH = 10 + 2 + 4 + 4;
+    static final int TRAILER_LENGTH = 8;
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    private static volatile int level = -1;
+
+    private CaptureCompression() {
+    }
+
+    /**
+     * Compresses all capture files opened from now on at the given deflate level, 1 being fastest.
+     *
+     * @param deflateLevel
+     */
+    public static void configure(int deflateLevel) {
+        level = deflateLevel;
+    }
+
+    /**
+     * Indicates that capture files are compressed.
+     *
+     * @return
+     */
+    public static boolean isEnabled() {
+        return level >= 0;
+    }
+
+    /**
+     * Returns the stream compressing into the capture file's stream if captures are compressed, otherwise the stream
+     * itself.
+     *
+     * @param out
+     * @return
+     */
+    static OutputStream compressing(OutputStream out) {
+        return level < 0 ? out : new Output(out);
+    }
+
+    /**
+     * Returns the stream decompressing the capture if it is compressed, blocks written by {@link Output} as well as
+     * any other gzip file, or the stream itself if not.
+     *
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public static InputStream decompressing(InputStream in) throws IOException {
+        PushbackInputStream p = new PushbackInputStream(in, HEADER_LENGTH);
+        byte[] head = new byte[HEADER_LENGTH];
+        int n = 0;
+        while (n < head.length) {
+            int r = p.read(head, n, head.length - n);
+            if (r == -1) {
+                break;
+            }
+            n += r;
+        }
+        p.unread(head, 0, n);
+        if (n < 2 || decodeShort(head, 0) != GZIP_MAGIC) {
+            return p;
+        }
+        if (n == HEADER_LENGTH && isBlockHeader(head)) {
+            return new Input(p);
+        }
+        return new GZIPInputStream(p);
+    }
+
+    private static boolean isBlockHeader(byte[] h) {
+        return (h[3] & FEXTRA) != 0 && decodeShort(h, 10) == 8 && h[12] == SUBFIELD_ID[0] && h[13] == SUBFIELD_ID[1]
+                && decodeShort(h, 14) == 4;
+    }
+
+    /**
+     * Deflater and scratch of a thread compressing blocks, shared by all streams the thread writes so that an open
+     * capture only holds its uncompressed block.
+     */
+    private static class Compressor {
+        final Deflater deflater = new Deflater(Math.max(level, 0), true);
+        final CRC32 crc = new CRC32();
+        byte[] compressed = new byte[HEADER_LENGTH + BLOCK_SIZE + BLOCK_SIZE / 16 + 64 + TRAILER_LENGTH];
+    }
+
+    private static final ThreadLocal<Compressor> compressors = new ThreadLocal<Compressor>();
+
+    /**
+     * Frees the deflater of the calling thread, if it has one, for a thread that is done writing captures.
+     */
+    static void release() {
+        Compressor c = compressors.get();
+        if (c != null) {
+            compressors.remove();
+            c.deflater.end();
+        }
+    }
+
+    /**
+     * Compresses everything written into blocks. Not thread safe, like the streams of capture files aren't. The block
+     * grows with what is written to it and is let go once written on a timed flush, so idle connections hold no
+     * buffer at all.
+     */
+    static class Output extends OutputStream {
+        private final OutputStream out;
+        private byte[] block;
+        private int length = 0;
+        private long startedAt;
+        private boolean closed = false;
+
+        Output(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureRoom();
+            block[length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                ensureRoom();
+                int n = Math.min(len, block.length - length);
+                System.arraycopy(b, off, block, length, n);
+                length += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void ensureRoom() throws IOException {
+            if (block == null) {
+                block = new byte[4096];
+            }
+            else if (length == block.length) {
+                if (length == BLOCK_SIZE) {
+                    writeBlock();
+                }
+                else {
+                    byte[] grown = new byte[Math.min(BLOCK_SIZE, block.length * 2)];
+                    System.arraycopy(block, 0, grown, 0, length);
+                    block = grown;
+                }
+            }
+            if (length == 0) {
+                startedAt = System.currentTimeMillis();
+            }
+        }
+
+        /**
+         * Indicates that bytes written are held in a block that hasn't been written yet.
+         *
+         * @return
+         */
+        boolean holdsBlock() {
+            return length > 0;
+        }
+
+        /**
+         * Writes the current block if it has been started long enough ago, and flushes the underlying stream.
+         */
+        @Override
+        public void flush() throws IOException {
+            if (length > 0 && System.currentTimeMillis() - startedAt >= FLUSH_MILLIS) {
+                writeBlock();
+                block = null;
+            }
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (length > 0) {
+                    writeBlock();
+                }
+                out.flush();
+            } finally {
+                block = null;
+                out.close();
+            }
+        }
+
+        private void writeBlock() throws IOException {
+            Compressor c = compressors.get();
+            if (c == null) {
+                c = new Compressor();
+                compressors.set(c);
+            }
+            Deflater deflater = c.deflater;
+            deflater.reset();
+            deflater.setInput(block, 0, length);
+            deflater.finish();
+            int pos = HEADER_LENGTH;
+            while (!deflater.finished()) {
+                if (pos == c.compressed.length - TRAILER_LENGTH) {
+                    byte[] grown = new byte[c.compressed.length * 2];
+                    System.arraycopy(c.compressed, 0, grown, 0, pos);
+                    c.compressed = grown;
+                }
+                pos += deflater.deflate(c.compressed, pos, c.compressed.length - TRAILER_LENGTH - pos);
+            }
+            c.crc.reset();
+            c.crc.update(block, 0, length);
+
+            byte[] b = c.compressed;
+            b[0] = (byte) 0x1f;
+            b[1] = (byte) 0x8b;
+            b[2] = 8; // deflate
+            b[3] = FEXTRA;
+            encodeInt(b, 4, 0); // no modification time
+            b[8] = 0;
+            b[9] = (byte) 255; // unknown os
+            encodeShort(b, 10, 8);
+            b[12] = SUBFIELD_ID[0];
+            b[13] = SUBFIELD_ID[1];
+            encodeShort(b, 14, 4);
+            encodeInt(b, 16, pos - HEADER_LENGTH);
+            encodeInt(b, pos, (int) c.crc.getValue());
+            encodeInt(b, pos + 4, length);
+
+            out.write(b, 0, pos + TRAILER_LENGTH);
+            length = 0;
+        }
+    }
+
+    /**
+     * Decompresses the blocks written by {@link Output} one at a time, treating a block cut short as the end of the
+     * capture.
+     */
+    static class Input extends FilterInputStream {
+        private final Inflater inflater = new Inflater(true);
+        private final CRC32 crc = new CRC32();
+        private final byte[] header = new byte[HEADER_LENGTH];
+        private byte[] compressed = new byte[BLOCK_SIZE];
+        private byte[] block = new byte[BLOCK_SIZE];
+        private int pos = 0;
+        private int limit = 0;
+        private boolean ended = false;
+
+        Input(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos == limit && !nextBlock()) {
+                return -1;
+            }
+            return block[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (pos == limit && !nextBlock()) {
+                return -1;
+            }
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(block, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return limit - pos;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            while (skipped < n && (pos < limit || nextBlock())) {
+                int s = (int) Math.min(n - skipped, limit - pos);
+                pos += s;
+                skipped += s;
+            }
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            super.close();
+        }
+
+        private boolean nextBlock() throws IOException {
+            while (!ended) {
+                if (!readFully(header, HEADER_LENGTH)) {
+                    ended = true;
+                    return false;
+                }
+                if (decodeShort(header, 0) != GZIP_MAGIC || !isBlockHeader(header)) {
+                    throw new IOException("Corrupt compressed capture, expected a block header.");
+                }
+                int compressedLength = decodeInt(header, 16);
+                if (compressedLength < 0) {
+                    throw new IOException("Corrupt compressed capture, negative block length " + compressedLength);
+                }
+                if (compressed.length < compressedLength + TRAILER_LENGTH) {
+                    compressed = new byte[compressedLength + TRAILER_LENGTH];
+                }
+                if (!readFully(compressed, compressedLength + TRAILER_LENGTH)) {
+                    // written partially, like when the process died
+                    ended = true;
+                    return false;
+                }
+                int length = decodeInt(compressed, compressedLength + 4);
+                if (length < 0) {
+                    throw new IOException("Corrupt compressed capture, negative block length " + length);
+                }
+                if (block.length < length) {
+                    block = new byte[length];
+                }
+                inflater.reset();
+                inflater.setInput(compressed, 0, compressedLength);
+                int inflated = 0;
+                try {
+                    while (inflated < length && !inflater.finished()) {
+                        int r = inflater.inflate(block, inflated, length - inflated);
+                        if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                            break;
+                        }
+                        inflated += r;
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("Corrupt compressed capture: " + e.getMessage());
+                }
+                crc.reset();
+                crc.update(block, 0, inflated);
+                if (inflated != length || (int) crc.getValue() != decodeInt(compressed, compressedLength)) {
+                    throw new IOException("Corrupt compressed capture, block fails its checksum.");
+                }
+                pos = 0;
+                limit = length;
+                if (length > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return false if the stream ended before the bytes were read
+         */
+        private boolean readFully(byte[] b, int len) throws IOException {
+            int n = 0;
+            while (n < len) {
+                int r = in.read(b, n, len - n);
+                if (r == -1) {
+                    return false;
+                }
+                n += r;
+            }
+            return true;
+        }
+    }
+
+    private static void encodeShort(byte[] dst, int off, int v) {
+        dst[off] = (byte) v;
+        dst[off + 1] = (byte) (v >>> 8);
+    }
+
+    private static void encodeInt(byte[] dst, int off, int v) {
+        encodeShort(dst, off, v);
+        encodeShort(dst, off + 2, v >>> 16);
+    }
+
+    private static int decodeShort(byte[] src, int off) {
+        return (src[off] & 0xff) | ((src[off + 1] & 0xff) << 8);
+    }
+
+    private static int decodeInt(byte[] src, int off) {
+        return decodeShort(src, off) | (decodeShort(src, off + 2) << 16);
+    }
+}
@@ -0,0 +1,127 @@
+package markboydcode.socketproxy;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Converts captures into the human readable {@link markboydcode.socketproxy.CaptureFormat#TEXT} layout so that
+ * binary captures work with everything that reads the original log files. Streams record by record through reused
+ * buffers and hence handles captures of any size in constant memory.
+ *
+ * Usage: <code>java -cp &lt;jar-name&gt; markboydcode.socketproxy.CaptureConverter &lt;capture-file&gt; [&lt;log-file&gt;]</code>
+ * where the log file defaults to the capture file with its suffix replaced by ".log". Compressed captures, like
+ * "C-27.cap.gz", are decompressed, so the log file of a compressed text capture is the text capture itself.
+ */
+public class CaptureConverter {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int buffered = 0;
+    private long records = 0;
+
+    /**
+     * Converts every record of the reader and writes it to the output stream.
+     *
+     * @param reader
+     * @param out
+     * @param format of the output
+     * @throws IOException
+     */
+    public void convert(CaptureReader reader, OutputStream out, CaptureFormat format) throws IOException {
+        buffered = format.encodeFileHeader(buffer, 0, reader.getStartMillis());
+        while (reader.next()) {
+            int length = reader.getLength();
+            if (buffered + 2 * CaptureFormat.MAX_HEADER_LENGTH + length > buffer.length) {
+                out.write(buffer, 0, buffered);
+                buffered = 0;
+            }
+            buffered += format.encodeRecordHeader(buffer, buffered, reader.getDirection(), reader.getNanosOffset(), length);
+            if (length > buffer.length - CaptureFormat.MAX_HEADER_LENGTH) {
+                // too large to buffer so write it through
+                out.write(buffer, 0, buffered);
+                out.write(reader.getPayload(), 0, length);
+                buffered = 0;
+            } else {
+                System.arraycopy(reader.getPayload(), 0, buffer, buffered, length);
+                buffered += length;
+            }
+            buffered += format.encodeRecordTrailer(buffer, buffered);
+            records++;
+        }
+        out.write(buffer, 0, buffered);
+        buffered = 0;
+        out.flush();
+    }
+
+    /**
+     * Returns the number of records converted so far.
+     *
+     * @return
+     */
+    public long getRecordCount() {
+        return records;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: java -cp <jar-name> " + CaptureConverter.class.getName() + " <capture-file> [<log-file>]");
+            System.exit(1);
+            return;
+        }
+        String inName = args[0];
+        String outName = args.length > 1 ? args[1] : replaceSuffix(stripCompressionSuffix(inName),
+                CaptureFormat.TEXT.getFileSuffix());
+        if (outName.equals(inName)) {
+            System.err.println("Log file '" + outName + "' would overwrite the capture file.");
+            System.exit(1);
+            return;
+        }
+
+        CaptureConverter converter = new CaptureConverter();
+        CaptureReader reader = null;
+        OutputStream out = null;
+        try {
+            reader = new CaptureReader(new FileInputStream(inName));
+            out = new FileOutputStream(outName);
+            converter.convert(reader, out, CaptureFormat.TEXT);
+        } catch (IOException e) {
+            System.err.println("Unable to convert '" + inName + "' after " + converter.getRecordCount() + " records.");
+            e.printStackTrace();
+            System.exit(1);
+        } finally {
+            closeUnconditionally(reader, out);
+        }
+        System.out.println("Converted " + converter.getRecordCount() + " records of '" + inName + "' into '" + outName + "'");
+    }
+
+    static String stripCompressionSuffix(String name) {
+        return name.endsWith(CaptureCompression.SUFFIX)
+                ? name.substring(0, name.length() - CaptureCompression.SUFFIX.length()) : name;
+    }
+
+    static String replaceSuffix(String name, String suffix) {
+        int dot = name.lastIndexOf('.');
+        int sep = Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\'));
+        return (dot > sep ? name.substring(0, dot) : name) + suffix;
+    }
+
+    private static void closeUnconditionally(CaptureReader reader, OutputStream out) {
+        try {
+            if (reader != null) {
+                reader.close();
+            }
+        } catch (IOException e) {
+            // ignore it
+        }
+        try {
+            if (out != null) {
+                out.close();
+            }
+        } catch (IOException e) {
+            // ignore it
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package markboydcode.socketproxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Capture of a single connection: its log stream, the format records are written in and the instant the connection
+ * started which record timestamps are relative to. Shared by the loggers of both directions of a connection. The log
+ * stream is either a file of its own or, when there is a shared {@link markboydcode.socketproxy.CaptureStore}, a
+ * stream into the store. Either may be {@link markboydcode.socketproxy.CaptureCompression compressed}.
+ * <p>
+ * A capture can also be {@link #hold(String, CaptureFormat, long) held} in memory while the connection lasts and
+ * written only if it is {@link #keep() kept} by the time it is closed, so that connections that end as expected cost
+ * no disk i/o at all. Kept captures are written by the shared {@link markboydcode.socketproxy.CaptureWriter}, if there
+ * is one, rather than the thread closing them.
+ */
+public class CaptureFile {
+
+    private final OutputStream out;
+    private final CaptureFormat format;
+    private final long startNanos;
+
+    /**
+     * Guards synchronous writes of both directions. An explicit lock rather than synchronizing on the stream so that a
+     * virtual thread waiting on the lock or blocked in the write doesn't pin its carrier thread.
+     */
+    private final Lock lock = new ReentrantLock();
+    private final byte[] scratch = new byte[CaptureFormat.MAX_HEADER_LENGTH];
+
+    /**
+     * Records of a capture held in memory, written where {@link #open(String, CaptureFormat, long)} would have written
+     * them once closed, if kept by then. Written on the capture writer's thread if there is a shared writer, otherwise
+     * by the thread closing the stream.
+     */
+    private static class HeldStream extends OutputStream {
+        private final String name;
+        private final Lock lock = new ReentrantLock();
+        private ByteArrayOutputStream held = new ByteArrayOutputStream();
+        private volatile boolean kept = false;
+
+        HeldStream(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void write(int b) {
+            lock.lock();
+            try {
+                if (held != null) {
+                    held.write(b);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            lock.lock();
+            try {
+                if (held != null) {
+                    held.write(b, off, len);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            ByteArrayOutputStream bytes;
+            lock.lock();
+            try {
+                bytes = held;
+                held = null;
+            } finally {
+                lock.unlock();
+            }
+            if (bytes == null) {
+                return;
+            }
+            if (!kept) {
+                Metrics.get().captureDiscarded();
+                return;
+            }
+            CaptureWriter writer = CaptureWriter.getShared();
+            if (writer == null) {
+                writeKept(name, bytes);
+                return;
+            }
+            final ByteArrayOutputStream keptBytes = bytes;
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        writeKept(name, keptBytes);
+                    } catch (IOException e) {
+                        System.err.println("Unable to write held capture: " + e);
+                    }
+                }
+            });
+        }
+
+        private static void writeKept(String name, ByteArrayOutputStream bytes) throws IOException {
+            OutputStream out = openStream(name);
+            try {
+                bytes.writeTo(out);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Wraps an already open log stream and writes the format's file header to it.
+     *
+     * @param out
+     * @param format
+     * @param startMillis epoch millis at which the connection started
+     * @throws IOException if the file header can't be written
+     */
+    public CaptureFile(OutputStream out, CaptureFormat format, long startMillis) throws IOException {
+        this.out = out;
+        this.format = format;
+        this.startNanos = System.nanoTime();
+
+        int len = format.encodeFileHeader(scratch, 0, startMillis);
+        if (len > 0) {
+            out.write(scratch, 0, len);
+        }
+    }
+
+    /**
+     * Opens the capture file of a connection in the working directory, named after the connection's identifier with the
+     * format's suffix. When there is a shared capture store the capture goes into the store under that name instead.
+     *
+     * @param id
+     * @param format
+     * @param startMillis
+     * @return
+     * @throws IOException
+     */
+    public static CaptureFile open(String id, CaptureFormat format, long startMillis) throws IOException {
+        OutputStream out = openStream(id + format.getFileSuffix());
+        try {
+            return new CaptureFile(out, format, startMillis);
+        } catch (IOException e) {
+            out.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the capture of a connection held in memory rather than written, until it is closed. Written where
+     * {@link #open(String, CaptureFormat, long)} would have written it if {@link #keep() kept} by then, discarded
+     * otherwise.
+     *
+     * @param id
+     * @param format
+     * @param startMillis
+     * @return
+     * @throws IOException
+     */
+    public static CaptureFile hold(String id, CaptureFormat format, long startMillis) throws IOException {
+        return new CaptureFile(new HeldStream(id + format.getFileSuffix()), format, startMillis);
+    }
+
+    /**
+     * Opens the stream of a capture, compressing into a name with the {@link CaptureCompression#SUFFIX} appended if
+     * captures are compressed.
+     */
+    private static OutputStream openStream(String name) throws IOException {
+        if (CaptureCompression.isEnabled()) {
+            name += CaptureCompression.SUFFIX;
+        }
+        CaptureStore store = CaptureStore.getShared();
+        return CaptureCompression.compressing(store == null ? new FileOutputStream(name) : store.open(name));
+    }
+
+    /**
+     * Has a capture held in memory written once closed. May be called from any thread before the file is closed, or
+     * before its {@link markboydcode.socketproxy.CaptureWriter.Target} is closed. Does nothing for captures that are
+     * written as they go.
+     */
+    public void keep() {
+        if (out instanceof HeldStream) {
+            ((HeldStream) out).kept = true;
+        }
+    }
+
+    /**
+     * Writes a record and flushes it to the stream from the calling thread.
+     *
+     * @param direction
+     * @param buffer
+     * @param bytes
+     * @param nanos {@link System#nanoTime()} at which the chunk passed through
+     * @throws IOException
+     */
+    public void write(LogMoniker direction, byte[] buffer, int bytes, long nanos) throws IOException {
+        lock.lock();
+        try {
+            out.write(scratch, 0, format.encodeRecordHeader(scratch, 0, direction, nanos - startNanos, bytes));
+            out.write(buffer, 0, bytes);
+            int len = format.encodeRecordTrailer(scratch, 0);
+            if (len > 0) {
+                out.write(scratch, 0, len);
+            }
+            out.flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the stream records are written to. Only to be used by whoever took over writing from this file.
+     *
+     * @return
+     */
+    OutputStream getStream() {
+        return out;
+    }
+
+    public CaptureFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Returns the {@link System#nanoTime()} at which the connection started.
+     *
+     * @return
+     */
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    /**
+     * Flushes and closes the stream ignoring exceptions, other than failing to write a kept capture held in memory.
+     */
+    public void close() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            // ignore since we are shutting down
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            if (out instanceof HeldStream) {
+                System.err.println("Unable to write held capture: " + e);
+            }
+            // otherwise ignore since we are shutting down
+        }
+    }
+}
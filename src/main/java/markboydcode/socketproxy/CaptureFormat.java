@@ -0,0 +1,232 @@
+package markboydcode.socketproxy;
+
+/**
+ * Layouts in which captured traffic is written. Each record holds one chunk that passed through a connection in one
+ * direction. Encoding happens into caller supplied scratch arrays so that writing a record never allocates.
+ */
+public enum CaptureFormat {
+
+    /**
+     * Human readable layout delineated by {@link markboydcode.socketproxy.LogMoniker}s like
+     * <code>&gt;&gt;&gt;&gt; 27 [...]\r\n</code>. Has no file header and records carry no timestamps.
+     */
+    TEXT(".log") {
+        @Override
+        public int encodeFileHeader(byte[] dst, int off, long startMillis) {
+            return 0;
+        }
+
+        @Override
+        public int encodeRecordHeader(byte[] dst, int off, LogMoniker direction, long nanosOffset, int length) {
+            int pos = off;
+            byte[] moniker = direction == LogMoniker.TODEST ? TODEST : TOCLNT;
+            System.arraycopy(moniker, 0, dst, pos, moniker.length);
+            pos += moniker.length;
+            pos += encodeDecimal(dst, pos, length);
+            System.arraycopy(STROBLK, 0, dst, pos, STROBLK.length);
+            pos += STROBLK.length;
+            return pos - off;
+        }
+
+        @Override
+        public int encodeRecordTrailer(byte[] dst, int off) {
+            System.arraycopy(ENDOBLK, 0, dst, off, ENDOBLK.length);
+            return ENDOBLK.length;
+        }
+    },
+
+    /**
+     * Compact length prefixed layout. The file starts with a {@link #FILE_HEADER_LENGTH} byte header of the
+     * {@link #MAGIC} bytes, a version byte, three reserved bytes and the connection's start as epoch millis. Each
+     * record is a {@link #RECORD_HEADER_LENGTH} byte header of the direction as the first character of its moniker,
+     * the nanoseconds since the connection started as a long and the payload length as an int, followed by the
+     * payload. All numbers are big endian. Records have no trailer so payloads never need escaping.
+     */
+    BINARY(".cap") {
+        @Override
+        public int encodeFileHeader(byte[] dst, int off, long startMillis) {
+            System.arraycopy(MAGIC, 0, dst, off, MAGIC.length);
+            dst[off + 4] = VERSION;
+            dst[off + 5] = 0;
+            dst[off + 6] = 0;
+            dst[off + 7] = 0;
+            encodeLong(dst, off + 8, startMillis);
+            return FILE_HEADER_LENGTH;
+        }
+
+        @Override
+        public int encodeRecordHeader(byte[] dst, int off, LogMoniker direction, long nanosOffset, int length) {
+            dst[off] = direction == LogMoniker.TODEST ? TODEST[0] : TOCLNT[0];
+            encodeLong(dst, off + 1, nanosOffset);
+            encodeInt(dst, off + 9, length);
+            return RECORD_HEADER_LENGTH;
+        }
+
+        @Override
+        public int encodeRecordTrailer(byte[] dst, int off) {
+            return 0;
+        }
+    },
+
+    /**
+     * Pcap file readable by packet analyzers, used for udp capture. The file header is the classic pcap header with
+     * nanosecond timestamps and a link type of raw ip. Since a record needs the addresses of its datagram and an
+     * absolute timestamp, both unknown to this format, callers submit complete records, see
+     * {@link markboydcode.socketproxy.udp.UdpCapture}, and the format adds no record header or trailer.
+     */
+    PCAP(".pcap") {
+        @Override
+        public int encodeFileHeader(byte[] dst, int off, long startMillis) {
+            encodeInt(dst, off, PCAP_MAGIC);
+            dst[off + 4] = 0;
+            dst[off + 5] = 2; // version 2.4
+            dst[off + 6] = 0;
+            dst[off + 7] = 4;
+            encodeInt(dst, off + 8, 0); // utc
+            encodeInt(dst, off + 12, 0); // timestamp accuracy
+            encodeInt(dst, off + 16, PCAP_SNAPLEN);
+            encodeInt(dst, off + 20, PCAP_LINKTYPE_RAW);
+            return PCAP_FILE_HEADER_LENGTH;
+        }
+
+        @Override
+        public int encodeRecordHeader(byte[] dst, int off, LogMoniker direction, long nanosOffset, int length) {
+            return 0;
+        }
+
+        @Override
+        public int encodeRecordTrailer(byte[] dst, int off) {
+            return 0;
+        }
+    };
+
+    /**
+     * First bytes of every binary capture file.
+     */
+    public static final byte[] MAGIC = {'S', 'P', 'X', 'C'};
+
+    public static final byte VERSION = 1;
+    public static final int FILE_HEADER_LENGTH = 16;
+    public static final int RECORD_HEADER_LENGTH = 13;
+
+    /**
+     * Magic number of pcap files with nanosecond timestamps, written big endian like every number of the file.
+     */
+    public static final int PCAP_MAGIC = 0xa1b23c4d;
+    public static final int PCAP_FILE_HEADER_LENGTH = 24;
+    public static final int PCAP_SNAPLEN = 262144;
+
+    /**
+     * Pcap link type of packets starting with their ip header.
+     */
+    public static final int PCAP_LINKTYPE_RAW = 101;
+
+    /**
+     * Size of scratch array sufficient for any file header, record header or record trailer.
+     */
+    public static final int MAX_HEADER_LENGTH = 32;
+
+    private static final byte[] TODEST = LogMoniker.TODEST.getBytes();
+    private static final byte[] TOCLNT = LogMoniker.TOCLNT.getBytes();
+    private static final byte[] STROBLK = LogMoniker.STROBLK.getBytes();
+    private static final byte[] ENDOBLK = LogMoniker.ENDOBLK.getBytes();
+
+    private final String fileSuffix;
+
+    CaptureFormat(String fileSuffix) {
+        this.fileSuffix = fileSuffix;
+    }
+
+    /**
+     * Returns the suffix of capture files in this format including the leading dot.
+     *
+     * @return
+     */
+    public String getFileSuffix() {
+        return fileSuffix;
+    }
+
+    /**
+     * Encodes the header written once at the start of a capture file.
+     *
+     * @param dst
+     * @param off
+     * @param startMillis epoch millis at which the connection started
+     * @return number of bytes encoded
+     */
+    public abstract int encodeFileHeader(byte[] dst, int off, long startMillis);
+
+    /**
+     * Encodes what precedes the payload of a record.
+     *
+     * @param dst
+     * @param off
+     * @param direction
+     * @param nanosOffset nanoseconds since the connection started
+     * @param length of the payload
+     * @return number of bytes encoded
+     */
+    public abstract int encodeRecordHeader(byte[] dst, int off, LogMoniker direction, long nanosOffset, int length);
+
+    /**
+     * Encodes what follows the payload of a record.
+     *
+     * @param dst
+     * @param off
+     * @return number of bytes encoded
+     */
+    public abstract int encodeRecordTrailer(byte[] dst, int off);
+
+    /**
+     * Returns the direction a record's direction byte stands for or null if it is neither.
+     *
+     * @param b
+     * @return
+     */
+    public static LogMoniker directionOf(byte b) {
+        if (b == TODEST[0]) {
+            return LogMoniker.TODEST;
+        }
+        if (b == TOCLNT[0]) {
+            return LogMoniker.TOCLNT;
+        }
+        return null;
+    }
+
+    static int encodeDecimal(byte[] dst, int off, int value) {
+        int len = 0;
+        int v = value;
+        do {
+            len++;
+            v /= 10;
+        } while (v > 0);
+
+        v = value;
+        for (int i = off + len - 1; i >= off; i--) {
+            dst[i] = (byte) ('0' + (v % 10));
+            v /= 10;
+        }
+        return len;
+    }
+
+    static void encodeInt(byte[] dst, int off, int v) {
+        dst[off] = (byte) (v >>> 24);
+        dst[off + 1] = (byte) (v >>> 16);
+        dst[off + 2] = (byte) (v >>> 8);
+        dst[off + 3] = (byte) v;
+    }
+
+    static void encodeLong(byte[] dst, int off, long v) {
+        encodeInt(dst, off, (int) (v >>> 32));
+        encodeInt(dst, off + 4, (int) v);
+    }
+
+    static int decodeInt(byte[] src, int off) {
+        return ((src[off] & 0xff) << 24) | ((src[off + 1] & 0xff) << 16) | ((src[off + 2] & 0xff) << 8)
+                | (src[off + 3] & 0xff);
+    }
+
+    static long decodeLong(byte[] src, int off) {
+        return ((long) decodeInt(src, off) << 32) | (decodeInt(src, off + 4) & 0xffffffffL);
+    }
+}
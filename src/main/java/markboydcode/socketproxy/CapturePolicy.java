@@ -0,0 +1,169 @@
+package markboydcode.socketproxy;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which tcp connections of a route are captured and how much of them, so that busy routes can be captured
+ * without the capture taking all of the disk's bandwidth. Whether a connection is captured at all is decided once when
+ * it opens, from its client's address and a count of the connections seen, so that connections left out take the path
+ * without any logger. Of the connections captured only the first bytes of each direction may be kept, and captures
+ * may be held in memory until the connection ends and only written if it failed.
+ * <p>
+ * Thread safe.
+ */
+public class CapturePolicy {
+
+    /**
+     * Bytes per direction held in memory for a capture only kept on failure when no limit is given.
+     */
+    public static final int DEFAULT_HELD_BYTES = 64 * 1024;
+
+    /**
+     * Addresses sharing the first bits of a network address, like 10.0.0.0/8.
+     */
+    private static class Subnet {
+        private final byte[] network;
+        private final int prefixBits;
+
+        Subnet(byte[] network, int prefixBits) {
+            this.network = network;
+            this.prefixBits = prefixBits;
+        }
+
+        boolean contains(InetAddress address) {
+            byte[] a = address.getAddress();
+            if (a.length != network.length) {
+                return false;
+            }
+            int full = prefixBits / 8;
+            for (int i = 0; i < full; i++) {
+                if (a[i] != network[i]) {
+                    return false;
+                }
+            }
+            int rest = prefixBits % 8;
+            if (rest == 0) {
+                return true;
+            }
+            int mask = 0xff << (8 - rest);
+            return (a[full] & mask) == (network[full] & mask);
+        }
+    }
+
+    private final int sampleEvery;
+    private final List<Subnet> clients;
+    private final int maxBytes;
+    private final boolean failedOnly;
+    private final AtomicLong seen = new AtomicLong();
+
+    /**
+     * @param sampleEvery capture one in this many connections, one or less for all
+     * @param clients     subnets whose connections are captured, null for all
+     * @param maxBytes    captured per direction of a connection, zero for all
+     * @param failedOnly  whether captures are only written for connections that failed
+     */
+    private CapturePolicy(int sampleEvery, List<Subnet> clients, int maxBytes, boolean failedOnly) {
+        this.sampleEvery = Math.max(1, sampleEvery);
+        this.clients = clients;
+        this.maxBytes = maxBytes;
+        this.failedOnly = failedOnly;
+    }
+
+    /**
+     * Creates a policy unless it would capture everything.
+     *
+     * @param sampleEvery capture one in this many connections, one or less for all
+     * @param clients     comma separated addresses or subnets like "10.0.0.0/8,192.168.1.7" whose connections are
+     *                    captured, null or empty for all
+     * @param maxBytes    captured per direction of a connection, zero for all
+     * @param failedOnly  whether captures are only written for connections that failed
+     * @return null if every byte of every connection is captured
+     * @throws IllegalArgumentException if the clients aren't valid addresses or subnets
+     */
+    public static CapturePolicy create(int sampleEvery, String clients, int maxBytes, boolean failedOnly) {
+        List<Subnet> subnets = clients != null && clients.trim().length() > 0 ? parseSubnets(clients) : null;
+        if (sampleEvery <= 1 && subnets == null && maxBytes <= 0 && !failedOnly) {
+            return null;
+        }
+        return new CapturePolicy(sampleEvery, subnets, maxBytes, failedOnly);
+    }
+
+    /**
+     * Decides whether a connection of the client that just opened is captured. Connections of clients outside the
+     * subnets aren't counted for sampling.
+     *
+     * @param client
+     * @return
+     */
+    public boolean selects(InetAddress client) {
+        if (clients != null) {
+            boolean listed = false;
+            for (Subnet s : clients) {
+                if (s.contains(client)) {
+                    listed = true;
+                    break;
+                }
+            }
+            if (!listed) {
+                return false;
+            }
+        }
+        return sampleEvery == 1 || seen.getAndIncrement() % sampleEvery == 0;
+    }
+
+    /**
+     * Returns the bytes captured per direction of a connection, zero for all. Captures held in memory until the
+     * connection ends are limited to {@link #DEFAULT_HELD_BYTES} unless a limit is given.
+     *
+     * @return
+     */
+    public int getMaxBytes() {
+        return maxBytes <= 0 && failedOnly ? DEFAULT_HELD_BYTES : maxBytes;
+    }
+
+    /**
+     * Indicates that captures are held in memory and only written for connections that fail rather than close as
+     * expected.
+     *
+     * @return
+     */
+    public boolean isFailedOnly() {
+        return failedOnly;
+    }
+
+    private static List<Subnet> parseSubnets(String list) {
+        List<Subnet> result = new ArrayList<Subnet>();
+        for (String s : list.split(",")) {
+            s = s.trim();
+            int slash = s.indexOf('/');
+            String host = slash < 0 ? s : s.substring(0, slash);
+            // only literal addresses, a host name would be looked up
+            if (host.isEmpty() || !host.matches("[0-9a-fA-F.:]+")) {
+                throw new IllegalArgumentException("Client '" + s + "' is not an address or subnet like 10.0.0.0/8.");
+            }
+            byte[] network;
+            try {
+                network = InetAddress.getByName(host).getAddress();
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("Client '" + s + "' is not an address or subnet like 10.0.0.0/8.");
+            }
+            int bits = network.length * 8;
+            if (slash >= 0) {
+                try {
+                    bits = Integer.parseInt(s.substring(slash + 1));
+                } catch (NumberFormatException nfe) {
+                    bits = -1;
+                }
+                if (bits < 0 || bits > network.length * 8) {
+                    throw new IllegalArgumentException("Client '" + s + "' has a prefix length out of range.");
+                }
+            }
+            result.add(new Subnet(network, bits));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,217 @@
+package markboydcode.socketproxy;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streaming reader of a capture file in the text or binary {@link markboydcode.socketproxy.CaptureFormat}, detected
+ * from the file's first bytes. {@link markboydcode.socketproxy.CaptureCompression Compressed} captures are
+ * decompressed transparently. Records are read one at a time into state that is reused from record to record so that
+ * reading multi gigabyte captures doesn't allocate per record. The payload array returned by {@link #getPayload()} is
+ * only valid until the next call of {@link #next()}.
+ */
+public class CaptureReader {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] STROBLK = LogMoniker.STROBLK.getBytes();
+    private static final byte[] ENDOBLK = LogMoniker.ENDOBLK.getBytes();
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int pos = 0;
+    private int limit = 0;
+
+    private CaptureFormat format;
+    private long startMillis = 0;
+
+    private LogMoniker direction;
+    private long nanosOffset;
+    private int length;
+    private byte[] payload = new byte[4096];
+
+    /**
+     * Creates a reader of the stream and reads its file header, if any, to determine its format.
+     *
+     * @param in
+     * @throws IOException
+     */
+    public CaptureReader(InputStream in) throws IOException {
+        this.in = CaptureCompression.decompressing(in);
+        if (fill(CaptureFormat.MAGIC.length) && startsWithMagic()) {
+            this.format = CaptureFormat.BINARY;
+            require(CaptureFormat.FILE_HEADER_LENGTH);
+            if (buffer[pos + 4] != CaptureFormat.VERSION) {
+                throw new IOException("Unsupported capture version " + buffer[pos + 4]);
+            }
+            this.startMillis = CaptureFormat.decodeLong(buffer, pos + 8);
+            pos += CaptureFormat.FILE_HEADER_LENGTH;
+        } else if (fill(4) && CaptureFormat.decodeInt(buffer, pos) == CaptureFormat.PCAP_MAGIC) {
+            throw new IOException("Pcap captures are read with packet analyzers rather than converted.");
+        } else {
+            this.format = CaptureFormat.TEXT;
+        }
+    }
+
+    /**
+     * Reads the next record.
+     *
+     * @return false at the end of the stream
+     * @throws IOException if the stream ends within a record or isn't in the detected format
+     */
+    public boolean next() throws IOException {
+        if (!fill(1)) {
+            return false;
+        }
+        if (format == CaptureFormat.BINARY) {
+            require(CaptureFormat.RECORD_HEADER_LENGTH);
+            direction = directionAt(pos);
+            nanosOffset = CaptureFormat.decodeLong(buffer, pos + 1);
+            length = CaptureFormat.decodeInt(buffer, pos + 9);
+            if (length < 0) {
+                throw new IOException("Corrupt capture, negative record length " + length);
+            }
+            pos += CaptureFormat.RECORD_HEADER_LENGTH;
+            readPayload();
+        } else {
+            int monikerLength = LogMoniker.TODEST.getString().length();
+            require(monikerLength);
+            direction = directionAt(pos);
+            pos += monikerLength;
+            length = 0;
+            while (true) {
+                require(1);
+                byte b = buffer[pos];
+                if (b < '0' || b > '9') {
+                    break;
+                }
+                length = length * 10 + (b - '0');
+                pos++;
+            }
+            expect(STROBLK);
+            nanosOffset = 0;
+            readPayload();
+            expect(ENDOBLK);
+        }
+        return true;
+    }
+
+    private LogMoniker directionAt(int at) throws IOException {
+        LogMoniker dir = CaptureFormat.directionOf(buffer[at]);
+        if (dir == null) {
+            throw new IOException("Corrupt capture, unknown direction '" + (char) buffer[at] + "'");
+        }
+        return dir;
+    }
+
+    private void readPayload() throws IOException {
+        if (payload.length < length) {
+            payload = new byte[Math.max(length, payload.length * 2)];
+        }
+        int copied = 0;
+        while (copied < length) {
+            if (pos == limit && !fill(1)) {
+                throw new EOFException("Capture ends within a record.");
+            }
+            int n = Math.min(length - copied, limit - pos);
+            System.arraycopy(buffer, pos, payload, copied, n);
+            pos += n;
+            copied += n;
+        }
+    }
+
+    private void expect(byte[] expected) throws IOException {
+        require(expected.length);
+        for (int i = 0; i < expected.length; i++) {
+            if (buffer[pos + i] != expected[i]) {
+                throw new IOException("Corrupt capture, expected '" + new String(expected) + "'");
+            }
+        }
+        pos += expected.length;
+    }
+
+    private boolean startsWithMagic() {
+        for (int i = 0; i < CaptureFormat.MAGIC.length; i++) {
+            if (buffer[pos + i] != CaptureFormat.MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void require(int bytes) throws IOException {
+        if (!fill(bytes)) {
+            throw new EOFException("Capture ends within a record.");
+        }
+    }
+
+    /**
+     * Makes sure at least the given number of bytes are buffered.
+     *
+     * @param bytes
+     * @return false if the stream ended before that many bytes were available
+     * @throws IOException
+     */
+    private boolean fill(int bytes) throws IOException {
+        if (limit - pos >= bytes) {
+            return true;
+        }
+        if (pos > 0) {
+            System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        while (limit < bytes) {
+            int n = in.read(buffer, limit, buffer.length - limit);
+            if (n == -1) {
+                return false;
+            }
+            limit += n;
+        }
+        return true;
+    }
+
+    public CaptureFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Returns the epoch millis at which the captured connection started or zero if the format doesn't record it.
+     *
+     * @return
+     */
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public LogMoniker getDirection() {
+        return direction;
+    }
+
+    /**
+     * Returns the nanoseconds between the start of the connection and the current record or zero if the format
+     * doesn't record it.
+     *
+     * @return
+     */
+    public long getNanosOffset() {
+        return nanosOffset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the array holding the current record's payload in its first {@link #getLength()} bytes.
+     *
+     * @return
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
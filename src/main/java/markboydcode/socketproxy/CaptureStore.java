@@ -0,0 +1,336 @@
+package markboydcode.socketproxy;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shared store holding the captures of all connections in a few large, pre-allocated, memory mapped segment files
+ * rather than one file per connection. The capture of each connection is written through a
+ * {@link markboydcode.socketproxy.CaptureStore.StoreStream} which appends its bytes as records tagged with the name
+ * the connection's capture file would have had, like "C-27.log". Concatenating the data records of a name recreates
+ * that file byte for byte, see {@link markboydcode.socketproxy.CaptureStoreExtractor}.
+ *
+ * A segment starts with a {@link #SEGMENT_HEADER_LENGTH} byte header of the {@link #MAGIC} bytes, a version byte,
+ * three reserved bytes and its creation as epoch millis. It is followed by records made of the length of the rest of
+ * the record as an int, a type byte, epoch millis as a long, the length of the name as a byte, the name's ascii bytes
+ * and the data. All numbers are big endian. The pre-allocated remainder of a segment is zeros so a record length of
+ * zero marks its end, also when the process died while writing it.
+ *
+ * A new segment is started when a record no longer fits into the current one or the current one is older than the
+ * roll interval, and the previous one is forced to disk. Only the configured number of most recent segments are
+ * retained. Records are appended, and segments rolled, by the thread flushing or closing a stream rather than the one
+ * opening it, so that with a background {@link markboydcode.socketproxy.CaptureWriter} spooling threads and event
+ * loops never map or delete segments.
+ */
+public class CaptureStore {
+
+    public static final byte[] MAGIC = {'S', 'P', 'X', 'S'};
+    public static final byte VERSION = 1;
+    public static final int SEGMENT_HEADER_LENGTH = 16;
+    public static final String SEGMENT_SUFFIX = ".seg";
+
+    /**
+     * Record type marking the start of a connection's capture.
+     */
+    public static final byte OPEN = 'O';
+
+    /**
+     * Record type holding bytes of a connection's capture.
+     */
+    public static final byte DATA = 'D';
+
+    /**
+     * Record type marking the end of a connection's capture.
+     */
+    public static final byte CLOSE = 'C';
+
+    /**
+     * Bytes preceding the name of each record.
+     */
+    static final int RECORD_HEADER_LENGTH = 4 + 1 + 8 + 1;
+
+    private static volatile CaptureStore shared;
+
+    private final File dir;
+    private final String prefix;
+    private final int segmentSize;
+    private final long rollMillis;
+    private final int retainedSegments;
+    private final int maxData;
+
+    private final Lock lock = new ReentrantLock();
+    private final LinkedList<File> segments = new LinkedList<File>();
+    private final byte[] header = new byte[RECORD_HEADER_LENGTH];
+    private long nextSequence;
+    private MappedByteBuffer segment;
+    private long segmentStartMillis;
+
+    /**
+     * Creates a store in the directory, continuing after any segments already there.
+     *
+     * @param dir
+     * @param prefix of segment file names
+     * @param segmentSize bytes pre-allocated per segment
+     * @param rollMillis age after which a segment is rolled even if not full, zero or less to roll on size only
+     * @param retainedSegments number of most recent segments kept, zero or less to keep all
+     * @throws IOException if the directory can't be created or the first segment can't be mapped
+     */
+    public CaptureStore(File dir, String prefix, int segmentSize, long rollMillis, int retainedSegments) throws IOException {
+        if (segmentSize < 64 * 1024) {
+            throw new IllegalArgumentException("Segment size must be at least 64k.");
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create capture store directory " + dir);
+        }
+        this.dir = dir;
+        this.prefix = prefix;
+        this.segmentSize = segmentSize;
+        this.rollMillis = rollMillis;
+        this.retainedSegments = retainedSegments;
+        // no single record may take more than a quarter of a segment so that segments are never mostly empty
+        this.maxData = segmentSize / 4;
+
+        File[] existing = listSegments(dir, prefix);
+        for (File f : existing) {
+            segments.add(f);
+        }
+        nextSequence = existing.length == 0 ? 1 : sequenceOf(existing[existing.length - 1], prefix) + 1;
+        roll(System.currentTimeMillis());
+    }
+
+    /**
+     * Creates the store shared by all connections.
+     *
+     * @param dir
+     * @param segmentSize
+     * @param rollMillis
+     * @param retainedSegments
+     * @return
+     * @throws IOException
+     */
+    public static synchronized CaptureStore startShared(File dir, int segmentSize, long rollMillis, int retainedSegments)
+            throws IOException {
+        if (shared != null) {
+            throw new IllegalStateException("Capture store already started.");
+        }
+        shared = new CaptureStore(dir, "capture", segmentSize, rollMillis, retainedSegments);
+        return shared;
+    }
+
+    /**
+     * Returns the store shared by all connections or null if each connection is captured in its own file.
+     *
+     * @return
+     */
+    public static CaptureStore getShared() {
+        return shared;
+    }
+
+    /**
+     * Opens the stream of a connection's capture. Its {@link #OPEN} record, stamped with the time it was opened, is
+     * appended along with the first bytes flushed or on close.
+     *
+     * @param name the name the capture file would have, like "C-27.log"
+     * @return
+     */
+    public StoreStream open(String name) {
+        return new StoreStream(name);
+    }
+
+    /**
+     * Appends a record, rolling to a new segment first if needed.
+     */
+    private void append(byte type, long millis, byte[] name, byte[] data, int off, int len) throws IOException {
+        long now = System.currentTimeMillis();
+        int recordLength = RECORD_HEADER_LENGTH + name.length + len;
+
+        lock.lock();
+        try {
+            if (segment.remaining() < recordLength
+                    || (rollMillis > 0 && now - segmentStartMillis >= rollMillis)) {
+                roll(now);
+            }
+            // the length is filled in last so a record cut short by the process dying reads as the end of records
+            int start = segment.position();
+            header[4] = type;
+            CaptureFormat.encodeLong(header, 5, millis);
+            header[13] = (byte) name.length;
+            segment.put(header);
+            segment.put(name);
+            if (len > 0) {
+                segment.put(data, off, len);
+            }
+            segment.putInt(start, recordLength - 4);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces the current segment to disk, maps a new one and deletes the oldest ones beyond the retention limit.
+     */
+    private void roll(long now) throws IOException {
+        if (segment != null) {
+            segment.force();
+            // unmapped once collected, which also frees the space of a deleted segment
+            segment = null;
+        }
+        File f = new File(dir, prefix + "-" + String.format("%010d", nextSequence++) + SEGMENT_SUFFIX);
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.setLength(segmentSize);
+            segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } finally {
+            raf.close();
+        }
+        segmentStartMillis = now;
+
+        byte[] h = new byte[SEGMENT_HEADER_LENGTH];
+        System.arraycopy(MAGIC, 0, h, 0, MAGIC.length);
+        h[4] = VERSION;
+        CaptureFormat.encodeLong(h, 8, now);
+        segment.put(h);
+
+        segments.add(f);
+        while (retainedSegments > 0 && segments.size() > retainedSegments) {
+            File oldest = segments.removeFirst();
+            if (!oldest.delete()) {
+                System.err.println("Unable to delete capture store segment " + oldest);
+            }
+        }
+    }
+
+    /**
+     * Returns the segment files of a store in the order they were written.
+     *
+     * @param dir
+     * @param prefix
+     * @return
+     */
+    static File[] listSegments(File dir, final String prefix) {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.startsWith(prefix + "-") && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        // fixed width sequence numbers sort lexically
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static long sequenceOf(File segment, String prefix) {
+        String name = segment.getName();
+        try {
+            return Long.parseLong(name.substring(prefix.length() + 1, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Forces what was written to the current segment out to disk.
+     */
+    public void force() {
+        lock.lock();
+        try {
+            segment.force();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stream of a single connection's capture. Bytes written accumulate until the stream is flushed and are then
+     * appended as one or more {@link #DATA} records. Closing appends the {@link #CLOSE} record.
+     */
+    public class StoreStream extends OutputStream {
+        private final byte[] name;
+        private final long openedAt = System.currentTimeMillis();
+        private byte[] pending = new byte[4096];
+        private int pendingLength = 0;
+        private boolean opened = false;
+        private boolean closed = false;
+
+        private StoreStream(String name) {
+            byte[] n = name.getBytes();
+            if (n.length > 255) {
+                throw new IllegalArgumentException("Capture name too long: " + name);
+            }
+            this.name = n;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureRoom(1);
+            pending[pendingLength++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (pendingLength + len > maxData) {
+                flush();
+                if (len > maxData) {
+                    appendData(b, off, len);
+                    return;
+                }
+            }
+            ensureRoom(len);
+            System.arraycopy(b, off, pending, pendingLength, len);
+            pendingLength += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (pendingLength > 0) {
+                appendData(pending, 0, pendingLength);
+                pendingLength = 0;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                flush();
+                appendOpen();
+                append(CLOSE, System.currentTimeMillis(), name, null, 0, 0);
+            }
+        }
+
+        private void appendOpen() throws IOException {
+            if (!opened) {
+                opened = true;
+                append(OPEN, openedAt, name, null, 0, 0);
+            }
+        }
+
+        private void appendData(byte[] b, int off, int len) throws IOException {
+            appendOpen();
+            while (len > 0) {
+                int n = Math.min(len, maxData);
+                append(DATA, System.currentTimeMillis(), name, b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void ensureRoom(int bytes) {
+            if (pendingLength + bytes > pending.length) {
+                pending = Arrays.copyOf(pending, Math.max(pendingLength + bytes, pending.length * 2));
+            }
+        }
+    }
+}
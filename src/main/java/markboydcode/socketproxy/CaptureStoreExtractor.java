@@ -0,0 +1,251 @@
+package markboydcode.socketproxy;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Recreates the capture file of a single connection from the segments of a
+ * {@link markboydcode.socketproxy.CaptureStore}. Since connection identifiers start over when the proxy restarts, a
+ * store may hold several connections of the same identifier, in which case the most recent one is extracted.
+ *
+ * Usage: <code>java -cp &lt;jar-name&gt; markboydcode.socketproxy.CaptureStoreExtractor &lt;store-dir&gt;
+ * &lt;connection-id&gt; [&lt;output-file&gt;]</code> where the output file defaults to the name the capture file
+ * would have had, like "C-27.log", in the working directory. Compressed captures, like "C-27.log.gz", are extracted
+ * as they were written and read by {@link markboydcode.socketproxy.CaptureReader} as they are.
+ */
+public class CaptureStoreExtractor {
+
+    private final File[] segments;
+
+    /**
+     * Creates an extractor of the segments in the directory.
+     *
+     * @param dir
+     */
+    public CaptureStoreExtractor(File dir) {
+        this.segments = CaptureStore.listSegments(dir, "capture");
+    }
+
+    /**
+     * Returns the full name, like "C-27.log", of the most recent capture of the connection or null if the store holds
+     * none.
+     *
+     * @param id connection identifier with or without the suffix of its capture file
+     * @return
+     * @throws IOException
+     */
+    public String findName(String id) throws IOException {
+        return scan(id).openName;
+    }
+
+    /**
+     * Writes the data of the most recent capture of the connection to the output stream.
+     *
+     * @param id connection identifier with or without the suffix of its capture file
+     * @param out
+     * @return number of bytes written or -1 if the store holds no capture of the connection
+     * @throws IOException
+     */
+    public long extract(String id, OutputStream out) throws IOException {
+        Scan scan = scan(id);
+        if (scan.openName == null) {
+            return -1;
+        }
+        Extract extract = new Extract(scan, out);
+        for (int i = scan.openSegment; i < segments.length && !extract.done; i++) {
+            extract.segment = i;
+            forEachRecord(segments[i], extract);
+        }
+        out.flush();
+        return extract.written;
+    }
+
+    private Scan scan(String id) throws IOException {
+        Scan scan = new Scan(id);
+        for (int i = 0; i < segments.length; i++) {
+            scan.segment = i;
+            forEachRecord(segments[i], scan);
+        }
+        return scan;
+    }
+
+    /**
+     * Callback receiving the records of a segment.
+     */
+    private interface RecordHandler {
+        /**
+         * @return false to stop reading the segment
+         */
+        boolean handle(MappedByteBuffer buf, int pos, byte type, int nameStart, int nameLength, int dataLength)
+                throws IOException;
+    }
+
+    /**
+     * Finds the segment and position of the most recent {@link CaptureStore#OPEN} record of a connection.
+     */
+    private static class Scan implements RecordHandler {
+        private final String id;
+        int segment;
+        int openSegment = -1;
+        int openPosition;
+        String openName;
+
+        Scan(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public boolean handle(MappedByteBuffer buf, int pos, byte type, int nameStart, int nameLength, int dataLength) {
+            if (type != CaptureStore.OPEN) {
+                return true;
+            }
+            byte[] n = new byte[nameLength];
+            buf.position(nameStart);
+            buf.get(n);
+            String name = new String(n);
+            // "C-27" matches "C-27.log" and "C-27.log.gz", as does "C-27.log"
+            if (name.equals(id) || (name.startsWith(id) && name.charAt(id.length()) == '.')) {
+                openSegment = segment;
+                openPosition = pos;
+                openName = name;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Copies the data records of the capture found by a {@link Scan} until its {@link CaptureStore#CLOSE} record.
+     */
+    private static class Extract implements RecordHandler {
+        private final Scan scan;
+        private final byte[] name;
+        private final OutputStream out;
+        private byte[] copy = new byte[64 * 1024];
+        int segment;
+        long written = 0;
+        boolean done = false;
+
+        Extract(Scan scan, OutputStream out) {
+            this.scan = scan;
+            this.name = scan.openName.getBytes();
+            this.out = out;
+        }
+
+        @Override
+        public boolean handle(MappedByteBuffer buf, int pos, byte type, int nameStart, int nameLength, int dataLength)
+                throws IOException {
+            if (segment == scan.openSegment && pos <= scan.openPosition) {
+                return true;
+            }
+            if (!matches(buf, nameStart, nameLength, name)) {
+                return true;
+            }
+            if (type != CaptureStore.DATA) {
+                // closed, or a later connection of the same name when the proxy died before closing this one
+                done = true;
+                return false;
+            }
+            if (copy.length < dataLength) {
+                copy = new byte[dataLength];
+            }
+            buf.position(nameStart + nameLength);
+            buf.get(copy, 0, dataLength);
+            out.write(copy, 0, dataLength);
+            written += dataLength;
+            return true;
+        }
+    }
+
+    private static boolean matches(MappedByteBuffer buf, int start, int length, byte[] name) {
+        if (length != name.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buf.get(start + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hands each record of the segment to the handler until the end of the segment's records.
+     */
+    private static void forEachRecord(File segment, RecordHandler handler) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(segment, "r");
+        MappedByteBuffer buf;
+        try {
+            buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        if (buf.limit() < CaptureStore.SEGMENT_HEADER_LENGTH) {
+            return;
+        }
+        for (int i = 0; i < CaptureStore.MAGIC.length; i++) {
+            if (buf.get(i) != CaptureStore.MAGIC[i]) {
+                throw new IOException(segment + " is not a capture store segment.");
+            }
+        }
+        int pos = CaptureStore.SEGMENT_HEADER_LENGTH;
+        while (pos + CaptureStore.RECORD_HEADER_LENGTH <= buf.limit()) {
+            int rest = buf.getInt(pos);
+            if (rest <= 0 || pos + 4 + rest > buf.limit()) {
+                // end of records, or a record cut short by the process dying
+                return;
+            }
+            byte type = buf.get(pos + 4);
+            int nameLength = buf.get(pos + 13) & 0xff;
+            int nameStart = pos + CaptureStore.RECORD_HEADER_LENGTH;
+            int dataLength = rest - (CaptureStore.RECORD_HEADER_LENGTH - 4) - nameLength;
+            if (dataLength < 0) {
+                throw new IOException(segment + " holds a corrupt record at " + pos);
+            }
+            if (!handler.handle(buf, pos, type, nameStart, nameLength, dataLength)) {
+                return;
+            }
+            pos += 4 + rest;
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: java -cp <jar-name> " + CaptureStoreExtractor.class.getName()
+                    + " <store-dir> <connection-id> [<output-file>]");
+            System.exit(1);
+            return;
+        }
+        CaptureStoreExtractor extractor = new CaptureStoreExtractor(new File(args[0]));
+        String id = args[1];
+        OutputStream out = null;
+        try {
+            String name = extractor.findName(id);
+            if (name == null) {
+                System.err.println("No capture of '" + id + "' in " + args[0]);
+                System.exit(1);
+                return;
+            }
+            String outName = args.length > 2 ? args[2] : name;
+            out = new FileOutputStream(outName);
+            long bytes = extractor.extract(id, out);
+            System.out.println("Extracted " + bytes + " bytes of '" + name + "' into '" + outName + "'");
+        } catch (IOException e) {
+            System.err.println("Unable to extract '" + id + "' from " + args[0]);
+            e.printStackTrace();
+            System.exit(1);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore it
+                }
+            }
+        }
+    }
+}
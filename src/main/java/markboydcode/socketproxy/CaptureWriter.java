@@ -0,0 +1,542 @@
+package markboydcode.socketproxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Background writer of captured traffic. Spooling threads hand chunks to a bounded, lock-free ring of pre-allocated
+ * slots and return immediately; a single writer thread drains the ring, formats each chunk into the delineated layout
+ * described by {@link markboydcode.socketproxy.ConnectionLogger} and coalesces all chunks of a connection that are
+ * ready at once into a single write of its log stream. Chunks are formatted in their connection's
+ * {@link markboydcode.socketproxy.CaptureFormat} with timestamps taken when they were submitted. Since one ring is
+ * shared by all connections and drained in order, the order of the >>>> and <<<< blocks of a connection is the order
+ * in which they were submitted.
+ *
+ * What happens when the ring is full is decided by the {@link markboydcode.socketproxy.CaptureWriter.Policy}.
+ */
+public class CaptureWriter implements Runnable {
+
+    /**
+     * What a spooling thread does when it finds the ring full.
+     */
+    public enum Policy {
+        /**
+         * Wait until the writer frees a slot. Capture is complete but spooling slows down to the speed of the disk.
+         */
+        BLOCK,
+
+        /**
+         * Discard the chunk and count it. Spooling never waits on the disk but captures may have gaps.
+         */
+        DROP,
+
+        /**
+         * Copy the chunk to an overflow queue on the heap. Neither waits nor loses chunks at the cost of allocating
+         * while the disk falls behind, until the queue holds {@link #MAX_SPILL_BYTES} bytes and spooling threads wait
+         * like they do under {@link #BLOCK}.
+         */
+        SPILL
+    }
+
+    /**
+     * Largest number of records coalesced before the pending bytes of each connection are written out.
+     */
+    private static final int MAX_BATCH = 1024;
+
+    /**
+     * Pending bytes of a single connection above which they are written out without waiting for the batch to end.
+     */
+    private static final int MAX_PENDING = 256 * 1024;
+
+    /**
+     * Largest array a ring slot keeps for the next chunk passing through it, so that a ring that once carried large
+     * chunks doesn't pin capacity times the largest chunk.
+     */
+    private static final int MAX_SLOT_DATA = 16 * 1024;
+
+    /**
+     * Captured bytes the overflow queue holds at most under {@link markboydcode.socketproxy.CaptureWriter.Policy#SPILL}.
+     */
+    public static final long MAX_SPILL_BYTES = 64L * 1024 * 1024;
+
+    private static volatile CaptureWriter shared;
+
+    private final Policy policy;
+    private final int mask;
+    private final Record[] slots;
+    private final AtomicLongArray published;
+    private final AtomicLong tail = new AtomicLong(0);
+    private final AtomicLong head = new AtomicLong(0);
+
+    private final Queue<Spilled> spill = new ConcurrentLinkedQueue<Spilled>();
+    private final AtomicInteger spillCount = new AtomicInteger(0);
+    private final AtomicLong spillBytes = new AtomicLong(0);
+
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final AtomicLong spilled = new AtomicLong(0);
+
+    private final List<Target> dirty = new ArrayList<Target>();
+    private final Set<Target> open = ConcurrentHashMap.newKeySet();
+
+    private long sweptAt = System.currentTimeMillis();
+
+    private volatile boolean writerWaiting = false;
+    private volatile boolean terminated = false;
+    private Thread executor;
+
+    private CaptureWriter(int capacity, Policy policy) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.policy = policy;
+        this.mask = size - 1;
+        this.slots = new Record[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Record();
+        }
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+    }
+
+    /**
+     * Creates the writer shared by all connections and starts its suitably named thread. The writer drains what
+     * remains in its ring when the JVM shuts down.
+     *
+     * @param capacity number of chunks the ring holds, rounded up to a power of two
+     * @param policy
+     * @return
+     */
+    public static synchronized CaptureWriter startShared(int capacity, Policy policy) {
+        if (shared != null) {
+            throw new IllegalStateException("Capture writer already started.");
+        }
+        final CaptureWriter writer = new CaptureWriter(capacity, policy);
+        writer.executor = new Thread(writer);
+        writer.executor.setName("capture_writer");
+        writer.executor.setDaemon(true);
+        writer.executor.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread("capture_writer_shutdown") {
+            @Override
+            public void run() {
+                writer.terminate();
+            }
+        });
+        shared = writer;
+        return writer;
+    }
+
+    /**
+     * Returns the writer shared by all connections or null if capture is written synchronously by the spooling
+     * threads themselves.
+     *
+     * @return
+     */
+    public static CaptureWriter getShared() {
+        return shared;
+    }
+
+    /**
+     * Creates a target representing the capture file of a single connection. From here on only this writer may touch
+     * the file and it must be closed through {@link markboydcode.socketproxy.CaptureWriter.Target#close()}.
+     *
+     * @param file
+     * @return
+     */
+    public Target open(CaptureFile file) {
+        return new Target(file);
+    }
+
+    /**
+     * Hands a chunk to the writer. The bytes are copied so the caller may reuse the buffer as soon as this returns.
+     *
+     * @param target
+     * @param direction
+     * @param buffer
+     * @param bytes
+     * @param nanos {@link System#nanoTime()} at which the chunk passed through
+     * @return false if the chunk was dropped because the ring was full
+     */
+    boolean submit(Target target, LogMoniker direction, byte[] buffer, int bytes, long nanos) {
+        return enqueue(target, direction, buffer, bytes, nanos, false, null);
+    }
+
+    /**
+     * Runs a task on the writer's thread once everything submitted before has been written, like writing out a
+     * capture that was held in memory, so that spooling threads and event loops don't open, write or compress files.
+     * Never dropped, regardless of the policy.
+     *
+     * @param task
+     */
+    void execute(Runnable task) {
+        enqueue(null, null, null, 0, 0, true, task);
+    }
+
+    private boolean enqueue(Target target, LogMoniker direction, byte[] buffer, int bytes, long nanos, boolean close,
+                            Runnable task) {
+        int waits = 0;
+        while (true) {
+            // keep spilling until the writer caught up so chunks of a thread stay in order
+            boolean spilling = policy == Policy.SPILL && spillCount.get() > 0;
+            long seq = tail.get();
+            boolean full = seq - head.get() > mask;
+            if (policy == Policy.SPILL && (spilling || full)) {
+                if (spillBytes.get() < MAX_SPILL_BYTES) {
+                    spill(target, direction, buffer, bytes, nanos, close, task);
+                    return true;
+                }
+                // the overflow queue is full as well
+            }
+            else if (full) {
+                if (policy == Policy.DROP && !close) {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+            }
+            else {
+                if (tail.compareAndSet(seq, seq + 1)) {
+                    int idx = (int) (seq & mask);
+                    slots[idx].fill(target, direction, buffer, bytes, nanos, close, task);
+                    published.set(idx, seq);
+                    if (writerWaiting) {
+                        signalWriter();
+                    }
+                    return true;
+                }
+                continue;
+            }
+            // BLOCK, closing which is never dropped and a full overflow queue wait on the writer
+            signalWriter();
+            if (++waits < 64) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+            }
+        }
+    }
+
+    private void spill(Target target, LogMoniker direction, byte[] buffer, int bytes, long nanos, boolean close,
+                       Runnable task) {
+        Spilled s = new Spilled();
+        s.fill(target, direction, buffer, bytes, nanos, close, task);
+        s.barrier = tail.get();
+        spillCount.incrementAndGet();
+        spillBytes.addAndGet(bytes);
+        spill.add(s);
+        spilled.incrementAndGet();
+        signalWriter();
+    }
+
+    private void signalWriter() {
+        Thread t = executor;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    /**
+     * Drains the ring and the overflow queue in submission order.
+     */
+    @Override
+    public void run() {
+        try {
+            drain();
+        } finally {
+            CaptureCompression.release();
+        }
+    }
+
+    private void drain() {
+        int batch = 0;
+        while (true) {
+            Spilled s = spill.peek();
+            long h = head.get();
+            if (s != null && s.barrier <= h) {
+                // everything submitted to the ring before the chunk spilled has been written
+                write(s);
+                spill.poll();
+                spillCount.decrementAndGet();
+                spillBytes.addAndGet(-s.length);
+                batch++;
+            }
+            else if (published.get((int) (h & mask)) == h) {
+                Record slot = slots[(int) (h & mask)];
+                write(slot);
+                slot.target = null;
+                slot.task = null;
+                if (slot.data != null && slot.data.length > MAX_SLOT_DATA) {
+                    // large chunks are rare enough to get an array of their own
+                    slot.data = null;
+                }
+                head.lazySet(h + 1);
+                batch++;
+            }
+            else {
+                // nothing ready
+                flushDirty();
+                flushQuiet();
+                batch = 0;
+                if (terminated && tail.get() == h && spill.isEmpty()) {
+                    return;
+                }
+                writerWaiting = true;
+                // also when a spilled chunk waits on a slot that was claimed but not yet published, whose producer
+                // signals once it is
+                s = spill.peek();
+                if (published.get((int) (h & mask)) != h && (s == null || s.barrier > h)) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                }
+                writerWaiting = false;
+                continue;
+            }
+            if (batch >= MAX_BATCH) {
+                flushDirty();
+                flushQuiet();
+                batch = 0;
+            }
+        }
+    }
+
+    /**
+     * Appends a record to the pending bytes of its target, or runs its task.
+     *
+     * @param r
+     */
+    private void write(Record r) {
+        if (r.task != null) {
+            try {
+                r.task.run();
+            } catch (RuntimeException e) {
+                System.err.println("Capture writer task failed: " + e);
+            }
+            return;
+        }
+        Target t = r.target;
+        if (r.close) {
+            // closed even after a failure so the file isn't left open
+            t.flushPending();
+            t.closeStream();
+            return;
+        }
+        if (t.failed) {
+            return;
+        }
+        CaptureFormat format = t.file.getFormat();
+        t.ensureRoom(2 * CaptureFormat.MAX_HEADER_LENGTH + r.length);
+        t.pendingLength += format.encodeRecordHeader(t.pending, t.pendingLength, r.direction,
+                r.nanos - t.file.getStartNanos(), r.length);
+        System.arraycopy(r.data, 0, t.pending, t.pendingLength, r.length);
+        t.pendingLength += r.length;
+        t.pendingLength += format.encodeRecordTrailer(t.pending, t.pendingLength);
+
+        if (!t.dirty) {
+            t.dirty = true;
+            dirty.add(t);
+        }
+        if (t.pendingLength >= MAX_PENDING) {
+            t.flushPending();
+        }
+    }
+
+    private void flushDirty() {
+        for (int i = 0; i < dirty.size(); i++) {
+            Target t = dirty.get(i);
+            t.flushPending();
+            t.dirty = false;
+        }
+        dirty.clear();
+    }
+
+    /**
+     * Has compressed captures write blocks started at least {@link CaptureCompression#FLUSH_MILLIS} ago, so that what a
+     * connection that went quiet sent last reaches the file without waiting for more traffic or the close.
+     */
+    private void flushQuiet() {
+        long now = System.currentTimeMillis();
+        if (!CaptureCompression.isEnabled() || now - sweptAt < CaptureCompression.FLUSH_MILLIS / 2) {
+            return;
+        }
+        sweptAt = now;
+        for (Target t : open) {
+            t.flushBlock();
+        }
+    }
+
+    /**
+     * Stops the writer once everything submitted so far has been written out, waiting a limited time for that to
+     * happen, then closes the log streams of connections still open so that
+     * {@link markboydcode.socketproxy.CaptureCompression compressed} captures get their last block.
+     */
+    public void terminate() {
+        terminated = true;
+        signalWriter();
+        try {
+            executor.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            // give up waiting
+        }
+        if (!executor.isAlive()) {
+            for (Target t : open) {
+                t.closeStream();
+            }
+            CaptureCompression.release();
+        }
+    }
+
+    /**
+     * Returns the number of chunks discarded under {@link markboydcode.socketproxy.CaptureWriter.Policy#DROP}.
+     *
+     * @return
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Returns the number of chunks copied to the overflow queue under
+     * {@link markboydcode.socketproxy.CaptureWriter.Policy#SPILL}.
+     *
+     * @return
+     */
+    public long getSpilledCount() {
+        return spilled.get();
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Capture file of a single connection as seen by the writer. Bytes formatted for it accumulate in its pending
+     * buffer until the writer writes them out in one go.
+     */
+    public class Target {
+        private final CaptureFile file;
+        private byte[] pending;
+        private int pendingLength = 0;
+        private boolean dirty = false;
+        private volatile boolean failed = false;
+        private volatile IOException failure;
+
+        private Target(CaptureFile file) {
+            this.file = file;
+            open.add(this);
+        }
+
+        /**
+         * Flushes and closes the log stream once every chunk submitted before has been written.
+         */
+        public void close() {
+            enqueue(this, null, null, 0, 0, true, null);
+        }
+
+        /**
+         * Returns the exception that ended writing to this target or null if there was none.
+         *
+         * @return
+         */
+        public IOException getFailure() {
+            return failure;
+        }
+
+        private void ensureRoom(int bytes) {
+            if (pending == null) {
+                pending = new byte[Math.max(bytes, 8192)];
+            }
+            else if (pendingLength + bytes > pending.length) {
+                byte[] grown = new byte[Math.max(pendingLength + bytes, pending.length * 2)];
+                System.arraycopy(pending, 0, grown, 0, pendingLength);
+                pending = grown;
+            }
+        }
+
+        private void flushPending() {
+            if (pendingLength == 0 || failed) {
+                return;
+            }
+            try {
+                file.getStream().write(pending, 0, pendingLength);
+                file.getStream().flush();
+            } catch (IOException e) {
+                failure = e;
+                failed = true;
+            }
+            pendingLength = 0;
+            if (pending.length > MAX_PENDING) {
+                // don't hang on to the memory of a one off burst
+                pending = null;
+            }
+        }
+
+        private void flushBlock() {
+            OutputStream s = file.getStream();
+            if (failed || !(s instanceof CaptureCompression.Output) || !((CaptureCompression.Output) s).holdsBlock()) {
+                return;
+            }
+            try {
+                s.flush();
+            } catch (IOException e) {
+                failure = e;
+                failed = true;
+            }
+        }
+
+        private void closeStream() {
+            if (!open.remove(this)) {
+                return;
+            }
+            file.close();
+            failed = true;
+            pending = null;
+        }
+    }
+
+    /**
+     * A chunk as handed over by a spooling thread, or a task to run on the writer's thread. Ring slots are records
+     * whose data array is reused for every chunk passing through them.
+     */
+    private static class Record {
+        Target target;
+        LogMoniker direction;
+        long nanos;
+        byte[] data;
+        int length;
+        boolean close;
+        Runnable task;
+
+        void fill(Target target, LogMoniker direction, byte[] buffer, int bytes, long nanos, boolean close,
+                  Runnable task) {
+            this.target = target;
+            this.direction = direction;
+            this.nanos = nanos;
+            this.close = close;
+            this.task = task;
+            this.length = bytes;
+            if (bytes > 0) {
+                if (data == null || data.length < bytes) {
+                    data = new byte[Math.max(bytes, 4096)];
+                }
+                System.arraycopy(buffer, 0, data, 0, bytes);
+            }
+        }
+    }
+
+    /**
+     * Chunk copied to the overflow queue. Its barrier is the ring sequence that had been reached when it was spilled so
+     * that it is written after every chunk that was submitted to the ring before it.
+     */
+    private static class Spilled extends Record {
+        long barrier;
+    }
+}
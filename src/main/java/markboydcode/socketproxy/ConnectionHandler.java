@@ -1,10 +1,20 @@
 package markboydcode.socketproxy;
 
+import markboydcode.socketproxy.balance.Backend;
+
 import java.io.*;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.text.DecimalFormat;
 import java.util.Date;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Handler of a single Socket connection. Is responsible for setting up spooling, loggin, and graceful termination
@@ -12,61 +22,93 @@ import java.util.concurrent.atomic.AtomicInteger;
  *
  *
  */
-public class ConnectionHandler implements Runnable
+public class ConnectionHandler implements Runnable, Reaper.Reapable
 {
     private static final AtomicInteger connIdGen = new AtomicInteger(0);
     private static final DecimalFormat secFormat = new DecimalFormat("#.###");
 
-    private final String destHost;
-    private final int destPort;
+    private final Route route;
     private final Date startTS;
 
+    /**
+     * Guards termination. An explicit lock rather than synchronized methods so that virtual threads closing sockets
+     * and the log file while holding it don't pin their carrier threads.
+     */
+    private final Lock lifecycleLock = new ReentrantLock();
+
     private ConnectionState state;
     private String id;
-    private OutputStream logStream;
+    private CaptureFile captureFile;
+    private CaptureWriter.Target captureTarget;
 
     private EndPoint client;
     private Socket clientSocket;
     private Spooler clientToDest;
     private ConnectionLogger clientLogger;
 
+    private Backend backend;
     private EndPoint dest;
     private Socket destSocket;
     private Spooler destToClient;
     private ConnectionLogger destLogger;
-    private long lastActivityTS = 0;
+    private volatile long lastActivityTS = 0;
+    private Reaper.Timeout reaperTimeout;
+    private Bandwidth.Share bandwidthShare;
 
     /**
-     * Creates a handler for the incoming socket connection to handle connecting to the destination and spooling the
-     * conversation.
+     * Creates a handler for the incoming socket connection to handle connecting to the destination of the route and
+     * spooling the conversation.
      *
      * @param s
-     * @param destHost
-     * @param destPort
-     * @param logPrefix
+     * @param route
      */
-    public ConnectionHandler(Socket s, String destHost, int destPort, String logPrefix) {
+    public ConnectionHandler(Socket s, Route route) {
         this.state  = ConnectionState.RECEIVED;
-        this.destHost = destHost;
-        this.destPort = destPort;
+        this.route = route;
         this.clientSocket = s;
-        this.id = logPrefix + "-" + connIdGen.incrementAndGet();
+        this.id = nextId(route.getLogPrefix());
         this.startTS = new Date();
     }
 
     @Override
     public void run() {
+        // counted once started, a connection shed while waiting for a worker never was
+        Metrics.get().connectionAccepted();
         System.out.println(this.id + " created @ " + this.startTS);
 
-        // set up logging
-        try {
-            this.logStream = new FileOutputStream(this.id + ".log");
-        } catch (Exception e) {
-            terminate("Unable to open file for logging.", e);
-            return;
+        // set up logging, unless the route's policy leaves this connection out
+        CapturePolicy policy = route.getCapturePolicy();
+        boolean capture = route.isCapture();
+        if (capture && policy != null && !policy.selects(clientSocket.getInetAddress())) {
+            Metrics.get().captureSkipped();
+            capture = false;
+        }
+        if (capture) {
+            boolean held = policy != null && policy.isFailedOnly();
+            try {
+                this.captureFile = held
+                        ? CaptureFile.hold(this.id, route.getCaptureFormat(), this.startTS.getTime())
+                        : CaptureFile.open(this.id, route.getCaptureFormat(), this.startTS.getTime());
+            } catch (Exception e) {
+                terminate("Unable to open file for logging.", e);
+                return;
+            }
+            // chunks of held captures only go to memory, not worth a trip through the writer's queue
+            CaptureWriter writer = held ? null : CaptureWriter.getShared();
+            if (writer != null) {
+                captureTarget = writer.open(this.captureFile);
+                clientLogger = new ConnectionLogger(LogMoniker.TODEST, writer, captureTarget); // logs what went from client to dest
+                destLogger = new ConnectionLogger(LogMoniker.TOCLNT, writer, captureTarget); // logs what went from dest to client
+            }
+            else {
+                clientLogger = new ConnectionLogger(LogMoniker.TODEST, this.captureFile); // logs what went from client to dest
+                destLogger = new ConnectionLogger(LogMoniker.TOCLNT, this.captureFile); // logs what went from dest to client
+            }
+            if (policy != null && policy.getMaxBytes() > 0) {
+                clientLogger.setMaxBytes(policy.getMaxBytes());
+                destLogger.setMaxBytes(policy.getMaxBytes());
+            }
         }
-        clientLogger = new ConnectionLogger(LogMoniker.TODEST, this.logStream); // logs what went from client to dest
-        destLogger = new ConnectionLogger(LogMoniker.TOCLNT, this.logStream); // logs what went from dest to client
 
         // get client i/o streams
         this.state = ConnectionState.CLIENT_IO;
@@ -77,14 +119,35 @@ public class ConnectionHandler implements Runnable
             return;
         }
 
+        // resolve destination
+        this.state = ConnectionState.RESOLVING;
+        this.backend = route.getBalancer().choose(clientSocket.getInetAddress());
+        backend.connectionOpened();
+        UpstreamPool pool = backend.getUpstreamPool();
+        SocketChannel pooled = pool != null ? pool.take() : null;
+        InetAddress[] addresses = null;
+        if (pooled == null) {
+            try {
+                addresses = Resolver.resolve(backend.getHost());
+            } catch (UnknownHostException e) {
+                terminate(id + " Unable to resolve destination " + backend + ".", e);
+                return;
+            }
+        }
+
         // connect to destination
         this.state = ConnectionState.CONNECTING;
+        long connectStart = System.nanoTime();
         try {
-            destSocket = new Socket(destHost, destPort);
+            // always a channel so bytes can be spooled without copying them through the heap when not capturing, and
+            // so that its socket's streams, which can't be read and written at once before java 13, are never used
+            destSocket = (pooled != null ? pooled : Connector.connect(backend.getHost(), addresses, backend.getPort(),
+                    route.getConnectTimeoutMillis())).socket();
         } catch (Exception e) {
-            terminate(id + " Unable to connect to destination.", e);
+            terminate(id + " Unable to connect to destination " + backend + ".", e);
             return;
         }
+        Metrics.get().destinationConnected(System.nanoTime() - connectStart);
 
         // get destination i/o streams
         this.state = ConnectionState.DEST_IO;
@@ -96,42 +159,175 @@ public class ConnectionHandler implements Runnable
         }
 
         // start spooling
-        destToClient = Spooler.create(LogMoniker.TOCLNT, this, destLogger, dest.in, client.out);
-        clientToDest = Spooler.create(LogMoniker.TODEST, this, clientLogger, client.in, dest.out);
+        this.state = ConnectionState.SPOOLING;
+        if (route.getBandwidth() != null) {
+            bandwidthShare = route.getBandwidth().share(clientSocket.getInetAddress());
+        }
+        // never the streams of a channel's socket, which can't be read and written at once before java 13
+        ReadableByteChannel clientIn = clientSocket.getChannel();
+        WritableByteChannel clientOut = clientSocket.getChannel();
+        if (clientSocket.getChannel() == null) {
+            // a plain socket's streams are independent
+            clientIn = Channels.newChannel(client.in);
+            clientOut = Channels.newChannel(client.out);
+        }
+        destToClient = Spooler.create(LogMoniker.TOCLNT, this, destLogger, destSocket.getChannel(), clientOut,
+                route.getReadAheadBytes());
+        clientToDest = Spooler.create(LogMoniker.TODEST, this, clientLogger, clientIn, destSocket.getChannel(),
+                route.getReadAheadBytes());
+
+        // from now on a connection whose peers went silent is left to the reaper
+        lifecycleLock.lock();
+        try {
+            if (state == ConnectionState.SPOOLING) {
+                reaperTimeout = Reaper.track(this, route.getIdleTimeoutMillis(), route.getMaxLifetimeMillis());
+            }
+        } finally {
+            lifecycleLock.unlock();
+        }
     }
 
     /**
      * Changes state to {@link markboydcode.socketproxy.ConnectionState#TERMINATING}, closes client and destination
      * end points if they exist and changes state to {@link markboydcode.socketproxy.ConnectionState#TERMINATED}
      */
-    public synchronized void terminate(String reason, Exception e) {
-        if (state != ConnectionState.TERMINATING &&
-                state != ConnectionState.TERMINATED) {
-            System.out.println(id + " terminating: " + reason);
-            if (e != null) {
-                e.printStackTrace();
-            }
-            if (clientToDest != null && destToClient != null) {
-                logClosedEvent();
+    public void terminate(String reason, Exception e) {
+        lifecycleLock.lock();
+        try {
+            if (state != ConnectionState.TERMINATING &&
+                    state != ConnectionState.TERMINATED) {
+                System.out.println(id + " terminating: " + reason);
+                if (e != null) {
+                    e.printStackTrace();
+                }
+                logClosedEvent(e != null ? e.toString() : reason);
+                Metrics.get().connectionFailed(state, System.currentTimeMillis() - startTS.getTime());
+                if (captureFile != null) {
+                    // a capture held until the connection ends is written only for failures
+                    captureFile.keep();
+                }
+
+                _terminate();
             }
+        } finally {
+            lifecycleLock.unlock();
+        }
+    }
 
-            _terminate();
+    /**
+     * Terminates this connection for having been idle or open too long. Reported apart from failures since neither
+     * side did anything wrong.
+     *
+     * @param reason
+     * @param millis the connection has been idle or open for
+     */
+    @Override
+    public void reap(Reaper.Reason reason, long millis) {
+        lifecycleLock.lock();
+        try {
+            if (state != ConnectionState.TERMINATING &&
+                    state != ConnectionState.TERMINATED) {
+                String why = formatReapReason(reason, millis);
+                System.out.println(id + " reaping: " + why);
+                System.out.println(formatClosedEvent(id, startTS,
+                        clientToDest != null ? clientToDest.getByteCount() : 0,
+                        destToClient != null ? destToClient.getByteCount() : 0, lastActivityTS, ", reaped " + why));
+                Metrics.get().connectionReaped(reason, System.currentTimeMillis() - startTS.getTime());
+
+                _terminate();
+            }
+        } finally {
+            lifecycleLock.unlock();
         }
     }
 
+    /**
+     * Describes why a connection was reaped, like "idle for 300s".
+     *
+     * @param reason
+     * @param millis
+     * @return
+     */
+    static String formatReapReason(Reaper.Reason reason, long millis) {
+        return (reason == Reaper.Reason.IDLE ? "idle" : "open") + " for " + millis / 1000 + "s";
+    }
+
+    /**
+     * Returns the next unique connection identifier for the given prefix like "C-27". Shared by all engines so that
+     * identifiers and hence log files never collide.
+     *
+     * @param logPrefix
+     * @return
+     */
+    static String nextId(String logPrefix) {
+        return logPrefix + "-" + connIdGen.incrementAndGet();
+    }
+
     /**
      * Formats and logs the closed event for a connection.
+     *
+     * @param failure description of why the connection failed, or null if it closed as expected
+     */
+    private void logClosedEvent(String failure) {
+        System.out.println(formatClosedEvent(id, startTS, clientToDest != null ? clientToDest.getByteCount() : 0,
+                destToClient != null ? destToClient.getByteCount() : 0, lastActivityTS, state, failure));
+    }
+
+    /**
+     * Formats the closed event line of a connection.
+     *
+     * @param id
+     * @param startTS
+     * @param bytesToDest
+     * @param bytesToClient
+     * @param lastActivityTS millis of last activity or zero if there was none
+     * @return
+     */
+    static String formatClosedEvent(String id, Date startTS, long bytesToDest, long bytesToClient, long lastActivityTS) {
+        return formatClosedEvent(id, startTS, bytesToDest, bytesToClient, lastActivityTS, null, null);
+    }
+
+    /**
+     * Formats the closed event line of a connection that may have failed, naming the state it failed in and why.
+     *
+     * @param id
+     * @param startTS
+     * @param bytesToDest
+     * @param bytesToClient
+     * @param lastActivityTS millis of last activity or zero if there was none
+     * @param state          the connection was in when it failed
+     * @param failure        description of the failure, or null if the connection closed as expected
+     * @return
+     */
+    static String formatClosedEvent(String id, Date startTS, long bytesToDest, long bytesToClient, long lastActivityTS,
+                                    ConnectionState state, String failure) {
+        return formatClosedEvent(id, startTS, bytesToDest, bytesToClient, lastActivityTS,
+                failure != null ? ", failed " + state + ": " + failure : "");
+    }
+
+    /**
+     * Formats the closed event line of a connection, ending with the given outcome.
+     *
+     * @param id
+     * @param startTS
+     * @param bytesToDest
+     * @param bytesToClient
+     * @param lastActivityTS millis of last activity or zero if there was none
+     * @param outcome        appended as is, empty if the connection closed as expected
+     * @return
      */
-    private void logClosedEvent() {
-        boolean noBytesSpooled = clientToDest.getByteCount() == 0 && destToClient.getByteCount() == 0;
+    static String formatClosedEvent(String id, Date startTS, long bytesToDest, long bytesToClient, long lastActivityTS,
+                                    String outcome) {
+        boolean noBytesSpooled = bytesToDest == 0 && bytesToClient == 0;
 
         // extra space prefixing @ char aligns @ of created line.
-        System.out.println(id + " closed  @ " + new Date() + ", bytes["
-                + (noBytesSpooled ? "none" : (LogMoniker.TODEST.getString() + clientToDest.getByteCount()
-                + ", " + LogMoniker.TOCLNT.getString() + destToClient.getByteCount()))
+        return id + " closed  @ " + new Date() + ", bytes["
+                + (noBytesSpooled ? "none" : (LogMoniker.TODEST.getString() + bytesToDest
+                + ", " + LogMoniker.TOCLNT.getString() + bytesToClient))
                 + "] over "
-                + showDeltaSeconds(this.startTS.getTime()) + "s"
-                + (this.lastActivityTS > 0 ? ", last @ -" + showDeltaSeconds(lastActivityTS) + "s" : ""));
+                + showDeltaSeconds(startTS.getTime()) + "s"
+                + (lastActivityTS > 0 ? ", last @ -" + showDeltaSeconds(lastActivityTS) + "s" : "")
+                + outcome;
     }
 
     /**
@@ -142,12 +338,26 @@ public class ConnectionHandler implements Runnable
      * @param millisTS
      * @return
      */
-    private String showDeltaSeconds(long millisTS) {
-        return secFormat.format((System.currentTimeMillis() - millisTS)/1000.0);
+    private static String showDeltaSeconds(long millisTS) {
+        synchronized (secFormat) {
+            return secFormat.format((System.currentTimeMillis() - millisTS)/1000.0);
+        }
     }
 
     private void _terminate() {
         this.state = ConnectionState.TERMINATING;
+        if (reaperTimeout != null) {
+            reaperTimeout.cancel();
+        }
+        if (route.getAdmission() != null) {
+            route.getAdmission().release(clientSocket.getInetAddress());
+        }
+        if (bandwidthShare != null) {
+            bandwidthShare.release();
+        }
+        if (backend != null) {
+            backend.connectionClosed();
+        }
         if (client != null) {
             client.terminate();
         }
@@ -161,15 +371,12 @@ public class ConnectionHandler implements Runnable
             clientToDest.terminate();
         }
 
-        try {
-            this.logStream.flush();
-        } catch (Exception e1) {
-            // ignore since we are shutting down
+        if (this.captureTarget != null) {
+            // flushed and closed by the writer once everything logged before has been written
+            this.captureTarget.close();
         }
-        try {
-            this.logStream.close();
-        } catch (Exception e1) {
-            // ignore since we are shutting down
+        else if (this.captureFile != null) {
+            this.captureFile.close();
         }
 
         this.state = ConnectionState.TERMINATED;
@@ -234,12 +441,17 @@ public class ConnectionHandler implements Runnable
     /**
      * Terminates this connection as expected like when a client or server properly disconnected.
      */
-    public synchronized void close() {
-        if (state != ConnectionState.TERMINATING &&
-                state != ConnectionState.TERMINATED) {
-            logClosedEvent();
-            _terminate();
-
+    public void close() {
+        lifecycleLock.lock();
+        try {
+            if (state != ConnectionState.TERMINATING &&
+                    state != ConnectionState.TERMINATED) {
+                logClosedEvent(null);
+                Metrics.get().connectionClosed(System.currentTimeMillis() - startTS.getTime());
+                _terminate();
+            }
+        } finally {
+            lifecycleLock.unlock();
         }
     }
 
@@ -249,4 +461,23 @@ public class ConnectionHandler implements Runnable
     public void setLastActivity() {
         this.lastActivityTS = System.currentTimeMillis();
     }
+
+    @Override
+    public long getLastActivity() {
+        return lastActivityTS;
+    }
+
+    /**
+     * Returns the connection's share of the route's bandwidth limits, null if there are none.
+     *
+     * @return
+     */
+    Bandwidth.Share getBandwidthShare() {
+        return bandwidthShare;
+    }
+
+    @Override
+    public long getStartMillis() {
+        return startTS.getTime();
+    }
 }
@@ -1,31 +1,63 @@
 package markboydcode.socketproxy;
 
 import java.io.IOException;
-import java.io.OutputStream;
 
 /**
  * Handles writing blocks of bytes to the log stream with the following delineation. A direction indicator, the
  * number of bytes in this block as a decimal string like "27" for twenty seven bytes, , a start of block indicator,
  * the block of bytes, and an end of block indicator. Although the bytes of the stream are considered opaque to
  * the proxy this enables a user to read the files and percieve how much data is passing through and in which
- * direction.
+ * direction. Alternatively blocks can be written in the compact {@link markboydcode.socketproxy.CaptureFormat#BINARY}
+ * layout which also records when each block passed through. A logger may be limited to the first bytes of its
+ * direction, after which further blocks are passed over.
  *
  * Created by markboyd on 3/19/14.
  */
 public class ConnectionLogger {
 
-    private final OutputStream logStream;
+    private final CaptureFile file;
+    private final CaptureWriter writer;
+    private final CaptureWriter.Target target;
     private LogMoniker direction;
+    private long remaining = Long.MAX_VALUE;
 
     /**
-     * Creates a logger responsible for writing into the log stream blocks of characters headed in the indicated direction.
+     * Creates a logger responsible for writing into the capture file blocks of characters headed in the indicated
+     * direction. Blocks are written and flushed by the thread logging them.
      *
      * @param direction
-     * @param logStream
+     * @param file
      */
-    public ConnectionLogger(LogMoniker direction, OutputStream logStream) {
+    public ConnectionLogger(LogMoniker direction, CaptureFile file) {
         this.direction = direction;
-        this.logStream = logStream;
+        this.file = file;
+        this.writer = null;
+        this.target = null;
+    }
+
+    /**
+     * Creates a logger that hands blocks headed in the indicated direction to the background capture writer rather
+     * than writing them itself. Never blocks on the log stream and never allocates.
+     *
+     * @param direction
+     * @param writer
+     * @param target
+     */
+    public ConnectionLogger(LogMoniker direction, CaptureWriter writer, CaptureWriter.Target target) {
+        this.direction = direction;
+        this.file = null;
+        this.writer = writer;
+        this.target = target;
+    }
+
+    /**
+     * Limits the bytes logged to the given number, truncating the block that reaches it. Only to be called before
+     * logging starts.
+     *
+     * @param maxBytes
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.remaining = maxBytes;
     }
 
     /**
@@ -35,13 +67,22 @@ public class ConnectionLogger {
      * @param buffer
      */
     public void log(int bytes, byte[] buffer) throws IOException {
-        synchronized (logStream) {
-            logStream.write(direction.getBytes());
-            logStream.write(Integer.toString(bytes, 10).getBytes());
-            logStream.write(LogMoniker.STROBLK.getBytes());
-            logStream.write(buffer, 0, bytes);
-            logStream.write(LogMoniker.ENDOBLK.getBytes());
-            logStream.flush();
+        if (remaining <= 0) {
+            return;
+        }
+        if (bytes > remaining) {
+            bytes = (int) remaining;
+        }
+        remaining -= bytes;
+        long nanos = System.nanoTime();
+        if (writer != null) {
+            IOException failure = target.getFailure();
+            if (failure != null) {
+                throw failure;
+            }
+            writer.submit(target, direction, buffer, bytes, nanos);
+            return;
         }
+        file.write(direction, buffer, bytes, nanos);
     }
 }
@@ -17,6 +17,11 @@ public enum ConnectionState {
      */
     CLIENT_IO,
 
+    /**
+     * State of a ConnectionHandler while looking up the addresses of the destination's host.
+     */
+    RESOLVING,
+
     /**
      * State of a ConnectionHandler while opening TCP connection to destination.
      */
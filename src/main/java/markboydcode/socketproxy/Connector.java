@@ -0,0 +1,270 @@
+package markboydcode.socketproxy;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Non-blocking connect to a destination with a timeout, trying the addresses of a host name in the manner of happy
+ * eyeballs (RFC 8305): the first address is tried at once and, while no attempt has succeeded, another is started
+ * every {@link #ATTEMPT_DELAY_MILLIS} or as soon as all attempts in flight have failed. The first attempt to connect
+ * wins and all others are abandoned. This keeps an address that silently drops connection attempts from costing
+ * every connection the full timeout.
+ * <p>
+ * A connector is driven by the selector its attempts are registered with: {@link #finish(SelectionKey)} when a key of
+ * it is connectable and {@link #poll(long)} once {@link #getWakeup()} has passed. {@link #connect} drives one with a
+ * selector of its own for blocking callers. A connector is not thread safe.
+ */
+public class Connector {
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+    static final long ATTEMPT_DELAY_MILLIS = 250;
+
+    private final String host;
+    private final InetAddress[] addresses;
+    private final int port;
+    private final long timeoutMillis;
+    private final long deadline;
+    private final Selector selector;
+    private final Object attachment;
+    private final List<SelectionKey> attempts = new ArrayList<SelectionKey>();
+    private int next = 0;
+    private long nextAttemptAt;
+    private IOException lastFailure;
+    private SocketChannel connected;
+
+    /**
+     * Starts connecting to the first address.
+     *
+     * @param host          name the addresses were resolved from, for messages
+     * @param addresses     ordered as returned by {@link markboydcode.socketproxy.Resolver#resolve(String)}
+     * @param port
+     * @param timeoutMillis for all attempts together
+     * @param selector      the attempts are registered with for {@link java.nio.channels.SelectionKey#OP_CONNECT}
+     * @param attachment    of the attempts' selection keys
+     * @throws IOException if not even a channel can be opened
+     */
+    public Connector(String host, InetAddress[] addresses, int port, long timeoutMillis, Selector selector,
+                     Object attachment) throws IOException {
+        this.host = host;
+        this.addresses = addresses;
+        this.port = port;
+        this.selector = selector;
+        this.attachment = attachment;
+        this.timeoutMillis = timeoutMillis;
+        long now = System.currentTimeMillis();
+        this.deadline = now + timeoutMillis;
+        startAttempt(now);
+    }
+
+    /**
+     * Resolves the host through the {@link markboydcode.socketproxy.Resolver} and connects to it in blocking fashion.
+     *
+     * @param host
+     * @param port
+     * @param timeoutMillis
+     * @return connected channel in blocking mode
+     * @throws IOException if the host can't be resolved or connected to in time, a
+     *                     {@link java.net.SocketTimeoutException} in the latter case
+     */
+    public static SocketChannel connect(String host, int port, long timeoutMillis) throws IOException {
+        return connect(host, Resolver.resolve(host), port, timeoutMillis);
+    }
+
+    /**
+     * Connects to one of the addresses of the host in blocking fashion.
+     *
+     * @param host          name the addresses were resolved from, for messages
+     * @param addresses
+     * @param port
+     * @param timeoutMillis
+     * @return connected channel in blocking mode
+     * @throws IOException if none of the addresses can be connected to in time, a
+     *                     {@link java.net.SocketTimeoutException} if the timeout passed
+     */
+    public static SocketChannel connect(String host, InetAddress[] addresses, int port, long timeoutMillis)
+            throws IOException {
+        if (addresses.length == 1) {
+            // nothing to race, spare the selector
+            SocketChannel channel = SocketChannel.open();
+            try {
+                channel.socket().connect(new InetSocketAddress(addresses[0], port), (int) timeoutMillis);
+            } catch (SocketTimeoutException e) {
+                close(channel);
+                throw timeout(host, port, timeoutMillis);
+            } catch (IOException e) {
+                close(channel);
+                throw e;
+            }
+            return channel;
+        }
+        Selector selector = Selector.open();
+        Connector c = null;
+        try {
+            c = new Connector(host, addresses, port, timeoutMillis, selector, null);
+            while (c.getConnected() == null) {
+                selector.select(Math.max(1, c.getWakeup() - System.currentTimeMillis()));
+                for (SelectionKey key : selector.selectedKeys()) {
+                    SocketChannel channel = c.finish(key);
+                    if (channel != null) {
+                        return blocking(channel, selector);
+                    }
+                }
+                selector.selectedKeys().clear();
+                c.poll(System.currentTimeMillis());
+            }
+            return blocking(c.getConnected(), selector);
+        } catch (IOException e) {
+            if (c != null) {
+                c.abandon();
+            }
+            throw e;
+        } finally {
+            selector.close();
+        }
+    }
+
+    /**
+     * Completes the attempt of a connectable key.
+     *
+     * @param key of one of this connector's attempts
+     * @return the connected channel, still registered, or null if this attempt failed and others remain
+     * @throws IOException if this was the last attempt and it failed
+     */
+    public SocketChannel finish(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        try {
+            if (!channel.finishConnect()) {
+                return null;
+            }
+        } catch (IOException e) {
+            lastFailure = e;
+            attempts.remove(key);
+            key.cancel();
+            close(channel);
+            if (attempts.isEmpty()) {
+                if (next < addresses.length) {
+                    startAttempt(System.currentTimeMillis());
+                    return connected;
+                }
+                throw failure();
+            }
+            return null;
+        }
+        attempts.remove(key);
+        abandon();
+        connected = channel;
+        return channel;
+    }
+
+    /**
+     * Starts the next attempt if it is time to, or fails all attempts once the timeout has passed.
+     *
+     * @param now
+     * @throws IOException a {@link java.net.SocketTimeoutException} if the timeout has passed
+     */
+    public void poll(long now) throws IOException {
+        if (connected != null) {
+            return;
+        }
+        if (now >= deadline) {
+            abandon();
+            throw timeout(host, port, timeoutMillis);
+        }
+        if (now >= nextAttemptAt && next < addresses.length) {
+            startAttempt(now);
+        }
+    }
+
+    /**
+     * Returns the channel that connected at once when an attempt was started, by the constructor or
+     * {@link #poll(long)}, rather than through its key becoming connectable.
+     *
+     * @return connected channel, still registered, or null
+     */
+    public SocketChannel getConnected() {
+        return connected;
+    }
+
+    /**
+     * Returns when {@link #poll(long)} needs to be called next, in millis.
+     *
+     * @return
+     */
+    public long getWakeup() {
+        return next < addresses.length ? Math.min(nextAttemptAt, deadline) : deadline;
+    }
+
+    /**
+     * Closes all attempts in flight.
+     */
+    public void abandon() {
+        for (SelectionKey key : attempts) {
+            key.cancel();
+            close((SocketChannel) key.channel());
+        }
+        attempts.clear();
+    }
+
+    private static SocketChannel blocking(SocketChannel channel, Selector selector) throws IOException {
+        channel.keyFor(selector).cancel();
+        selector.selectNow(); // deregisters the key so the channel can be made blocking
+        channel.configureBlocking(true);
+        return channel;
+    }
+
+    private void startAttempt(long now) throws IOException {
+        while (next < addresses.length) {
+            InetSocketAddress addr = new InetSocketAddress(addresses[next++], port);
+            SocketChannel channel = SocketChannel.open();
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_CONNECT, attachment);
+                if (channel.connect(addr)) {
+                    // loopback may connect at once, in which case the key never becomes connectable
+                    abandon();
+                    connected = channel;
+                    return;
+                }
+                attempts.add(key);
+                nextAttemptAt = now + ATTEMPT_DELAY_MILLIS;
+                return;
+            } catch (IOException e) {
+                // like an unreachable address family, move on to the next address
+                lastFailure = e;
+                close(channel);
+            }
+        }
+        if (attempts.isEmpty()) {
+            throw failure();
+        }
+    }
+
+    private IOException failure() {
+        ConnectException e = new ConnectException("Unable to connect to " + host + ":" + port + " at any of "
+                + addresses.length + " addresses");
+        if (lastFailure != null) {
+            e.initCause(lastFailure);
+        }
+        return e;
+    }
+
+    private static SocketTimeoutException timeout(String host, int port, long millis) {
+        return new SocketTimeoutException("Connect to " + host + ":" + port + " timed out after " + millis + "ms");
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // abandoned anyway
+        }
+    }
+}
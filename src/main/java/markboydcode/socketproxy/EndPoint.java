@@ -5,6 +5,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Named holder of a socket and its input and output streams.
@@ -16,6 +18,7 @@ public class EndPoint {
     public InputStream in = null;
     public OutputStream out = null;
 
+    private final Lock lock = new ReentrantLock();
     private boolean closed = false;
 
     public boolean failed = false;
@@ -30,12 +33,17 @@ public class EndPoint {
     /**
      * Closes streams and socket of this end point removing them one closed so that they can't be closed more than once.
      */
-    public synchronized void terminate() {
-        if (!closed) {
-            closeUnconditionally(in);
-            closeUnconditionally(out);
-            closeUnconditionally(socket);
-            closed = true;
+    public void terminate() {
+        lock.lock();
+        try {
+            if (!closed) {
+                closeUnconditionally(in);
+                closeUnconditionally(out);
+                closeUnconditionally(socket);
+                closed = true;
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
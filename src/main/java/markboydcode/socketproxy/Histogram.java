@@ -0,0 +1,159 @@
+package markboydcode.socketproxy;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of non-negative long values in the style of HdrHistogram. Values below {@link #LINEAR_LIMIT} are counted
+ * exactly, larger ones in buckets of which there are {@link #SUB_BUCKETS} per power of two, which bounds the error of
+ * any reported quantile to about 6% of its value across the whole range of long. Recording neither allocates nor
+ * locks. Counts are striped across arrays selected by the recording thread so that threads recording at the same time
+ * rarely touch the same cache line. Quantiles are computed from a merge of all stripes when read.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    private static final int BUCKETS = LINEAR_LIMIT + (63 - (SUB_BUCKET_BITS + 1)) * SUB_BUCKETS;
+
+    private final String name;
+    private final String help;
+    private final AtomicLongArray[] stripes;
+    private final int stripeMask;
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * @param name of the metric including its unit like "connect_time_microseconds"
+     * @param help one line description
+     */
+    public Histogram(String name, String help) {
+        this.name = name;
+        this.help = help;
+        int n = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+        this.stripes = new AtomicLongArray[n];
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+        this.stripeMask = n - 1;
+    }
+
+    /**
+     * Records a value. Negative values are recorded as zero.
+     *
+     * @param value
+     */
+    public void record(long value) {
+        long v = Math.max(0, value);
+        int stripe = (int) (Thread.currentThread().getId() * 0x9E3779B9L >>> 16) & stripeMask;
+        stripes[stripe].incrementAndGet(indexOf(v));
+        sum.add(v);
+    }
+
+    static int indexOf(long v) {
+        if (v < LINEAR_LIMIT) {
+            return (int) v;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_LIMIT + (exp - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the highest value counted in the bucket of the given index.
+     */
+    static long highestOf(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int exp = (index - LINEAR_LIMIT) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+        long sub = (index - LINEAR_LIMIT) % SUB_BUCKETS;
+        long lowest = (SUB_BUCKETS + sub) << (exp - SUB_BUCKET_BITS);
+        return lowest + (1L << (exp - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * Returns a consistent enough copy of the counts of all stripes merged.
+     *
+     * @return
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                long c = stripe.get(i);
+                counts[i] += c;
+                total += c;
+            }
+        }
+        return new Snapshot(counts, total, sum.sum());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHelp() {
+        return help;
+    }
+
+    /**
+     * Counts of a histogram at one point in time.
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+
+        Snapshot(long[] counts, long count, long sum) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        /**
+         * Returns the value below or at which the given fraction of recorded values lie, or zero if nothing was
+         * recorded.
+         *
+         * @param quantile between 0 and 1
+         * @return
+         */
+        public long getValueAt(double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return highestOf(i);
+                }
+            }
+            return getMax();
+        }
+
+        /**
+         * Returns the highest value recorded, within the precision of its bucket, or zero if nothing was recorded.
+         *
+         * @return
+         */
+        public long getMax() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] > 0) {
+                    return highestOf(i);
+                }
+            }
+            return 0;
+        }
+    }
+}
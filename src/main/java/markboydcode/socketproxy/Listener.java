@@ -1,21 +1,23 @@
 package markboydcode.socketproxy;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Date;
+import java.util.List;
 
 /**
- * Opens the ServerSocket and creates and launches ConnectionHandler instances per incoming TCP connection.
+ * Opens the ServerSocket and creates and launches ConnectionHandler instances per incoming TCP connection. The
+ * server socket is opened as a channel so that accepted sockets expose channels to the zero-copy spooling used when
+ * capture is disabled. Connections are accepted by the route's {@link markboydcode.socketproxy.Acceptor}s and started
+ * on the shared worker pool, if there is one, see {@link markboydcode.socketproxy.Threads#execute(String, Runnable)}.
+ * Connections the pool has no room for are shed.
  *
  * Created by markboyd on 3/14/14.
  */
 public class Listener implements Runnable {
 
-    private final int port;
-    private final int destPort;
-    private final String destHost;
-    private final String logPrefix;
+    private final Route route;
 
     /**
      * Listener for socket proxy meaning it opens the ServerSocket and for each connection launches a ConnectionHandler.
@@ -26,43 +28,45 @@ public class Listener implements Runnable {
      * @param logPrefix
      */
     public Listener(int port, String destHost, int destPort, String logPrefix) {
-        System.out.println("Listener started, port: " + port + " ---> dest: " + destHost + ":" + destPort + " @ " + new Date());
-        
-        this.port = port;
-        this.destHost = destHost;
-        this.destPort = destPort;
-        this.logPrefix = logPrefix;
+        this(new Route(port, destHost, destPort, logPrefix));
+    }
+
+    /**
+     * Listener for socket proxy meaning it opens the ServerSocket and for each connection launches a ConnectionHandler.
+     *
+     * @param route
+     */
+    public Listener(Route route) {
+        System.out.println("Listener started, " + route + (route.isCapture() ? "" : " without capture") + " @ " + new Date());
+
+        this.route = route;
     }
 
     @Override
     public void run() {
-        ServerSocket ss = null;
+        ServerSocketChannel[] channels;
         try {
-             ss = new ServerSocket(port);
+            channels = Acceptor.open(route.getPort(), route.getBacklog(), route.getAcceptors());
         } catch (IOException e) {
-            System.err.println("Unable to create connection listener");
+            System.err.println("Unable to create connection listener on port " + route.getPort());
             e.printStackTrace();
             System.exit(1);
             return;
         }
-        boolean terminated = false;
-        Socket s = null;
 
-        while(!terminated) {
-            try {
-                s = ss.accept();
-            } catch (IOException e) {
-                System.err.println("Unable to receive connection. Terminating...");
-                e.printStackTrace();
-                System.exit(1);
-                return;
+        Acceptor.serve("acceptor_" + route.getPort(), channels, route.getAdmission(), new Acceptor.Handler() {
+            @Override
+            public void accepted(List<SocketChannel> batch) {
+                for (SocketChannel s : batch) {
+                    ConnectionHandler handler = new ConnectionHandler(s.socket(), route);
+                    if (!Threads.execute(handler.getId() + "_startup", handler)) {
+                        if (route.getAdmission() != null) {
+                            route.getAdmission().release(s.socket().getInetAddress());
+                        }
+                        Admission.shed(s, Admission.Limit.WORKERS);
+                    }
+                }
             }
-            ConnectionHandler handler = new ConnectionHandler(s, this.destHost, this.destPort, logPrefix);
-
-            //connections.add(handler);
-            Thread t = new Thread(handler);
-            t.setName(handler.getId() + "_startup");
-            t.start();
-        }
+        });
     }
 }
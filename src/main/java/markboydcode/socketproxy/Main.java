@@ -1,8 +1,22 @@
 package markboydcode.socketproxy;
 
+import markboydcode.socketproxy.balance.Backend;
+import markboydcode.socketproxy.balance.Balancer;
+import markboydcode.socketproxy.balance.HealthChecker;
+import markboydcode.socketproxy.udp.UdpCapture;
+import markboydcode.socketproxy.udp.UdpEventLoop;
 import markboydcode.socketproxy.udp.UdpListener;
+import markboydcode.socketproxy.udp.UdpNioListener;
 import org.apache.commons.cli.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import javax.management.JMException;
+
 /**
  * Entry point cli for Socket Proxy. Contains and enforces the command line interface.
  *
@@ -17,10 +31,22 @@ public class Main {
             .hasArg().withDescription("Local port on which to listen for connections. Integer value.").create("p");
 
     /**
-     * command line option: -d <host:port>    use file-system based config file
+     * command line option: -d <host:port[,host:port...]>    destinations to which to proxy connections
+     */
+    static final Option destParam = OptionBuilder.withArgName("host:port[,host:port...]")
+            .hasArg().withDescription("Destination to which to proxy connections. Tcp connections may be balanced across several comma separated destinations").create("d");
+
+    /**
+     * command line option: -lb <'roundrobin' | 'leastactive' | 'hash'>   how a destination is chosen per connection
      */
-    static final Option destParam = OptionBuilder.withArgName("host:port")
-            .hasArg().withDescription("Destination to which to proxy connections").create("d");
+    static final Option balanceParam = OptionBuilder.withArgName("strategy")
+            .isRequired(false).hasArg().withDescription("How each tcp connection's destination is chosen among several, 'roundrobin', 'leastactive' for the one with the fewest connections or 'hash' for the same one for every connection of a client address. Defaults to 'roundrobin'").create("lb");
+
+    /**
+     * command line option: -health <seconds>   interval of the health checks of multiple destinations
+     */
+    static final Option healthParam = OptionBuilder.withArgName("seconds")
+            .isRequired(false).hasArg().withDescription("Interval at which each of several destinations is probed with a connection. Destinations failing " + HealthChecker.FALL + " probes in a row are taken out of rotation until passing " + HealthChecker.RISE + " again. Defaults to " + HealthChecker.DEFAULT_INTERVAL_MILLIS / 1000).create("health");
 
     /**
      * command line option: -x <log-files-prefix>    use some other connection prefix than default of 'C' for connection identifiers and associated log files
@@ -34,6 +60,253 @@ public class Main {
     static final Option proxyTypeParam = OptionBuilder.withArgName("proxy-type")
             .isRequired(false).hasArg().withDescription("Type of traffic to proxy. Defaults to 'tcp'").create("t");
 
+    /**
+     * command line option: -e <'thread' | 'nio'> proxy with non-blocking event loops rather than the default of threads
+     * per tcp connection or udp session
+     */
+    static final Option engineParam = OptionBuilder.withArgName("engine")
+            .isRequired(false).hasArg().withDescription("Engine proxying tcp connections and udp sessions, 'thread' or 'nio'. Defaults to 'thread'").create("e");
+
+    /**
+     * command line option: -loops <count> number of event loop threads of the nio engine
+     */
+    static final Option loopsParam = OptionBuilder.withArgName("count")
+            .isRequired(false).hasArg().withDescription("Number of event loop threads used by the 'nio' engine. Defaults to the number of processors").create("loops");
+
+    /**
+     * command line option: -threads <'platform' | 'virtual'> kind of threads the 'thread' engine runs connections on
+     */
+    static final Option threadsParam = OptionBuilder.withArgName("kind")
+            .isRequired(false).hasArg().withDescription("Kind of threads the 'thread' engine spools on, 'platform' or 'virtual'. Defaults to 'platform'").create("threads");
+
+    /**
+     * command line option: -n   don't capture traffic, spooling bytes without copying them through the heap
+     */
+    static final Option noCaptureParam = OptionBuilder
+            .isRequired(false).withDescription("Don't record traffic to log files. Bytes are spooled without copying them through the java heap").create("n");
+
+    /**
+     * command line option: -capq <'block' | 'drop' | 'spill' | 'sync'>   how captured traffic is written
+     */
+    static final Option captureQueueParam = OptionBuilder.withArgName("policy")
+            .isRequired(false).hasArg().withDescription("What spoolers do when the background capture writer falls behind, 'block', 'drop' or 'spill'. 'sync' writes capture on the spooling threads instead. Defaults to 'block'").create("capq");
+
+    /**
+     * command line option: -capqsize <chunks>   capacity of the background capture writer's queue
+     */
+    static final Option captureQueueSizeParam = OptionBuilder.withArgName("chunks")
+            .isRequired(false).hasArg().withDescription("Number of chunks the background capture writer's queue holds. Defaults to 4096").create("capqsize");
+
+    /**
+     * command line option: -capfmt <'text' | 'binary'>   layout captured traffic is written in
+     */
+    static final Option captureFormatParam = OptionBuilder.withArgName("format")
+            .isRequired(false).hasArg().withDescription("Layout of tcp capture files, 'text' (.log) or 'binary' (.cap). Udp is captured as pcap (.pcap). Binary captures can be converted to text with " + CaptureConverter.class.getName() + ". Defaults to 'text'").create("capfmt");
+
+    /**
+     * command line option: -capzip <level>   compress capture files at this deflate level
+     */
+    static final Option captureCompressParam = OptionBuilder.withArgName("level")
+            .isRequired(false).hasArg().withDescription("Compress capture files into blocks readable with gzip at this deflate level from 1, fastest, to 9, smallest, appending " + CaptureCompression.SUFFIX + " to their names. Compression runs on the background capture writer. Captures are read as they are with " + CaptureConverter.class.getName() + ". Defaults to no compression").create("capzip");
+
+    /**
+     * command line option: -capsample <count>   capture one in count tcp connections
+     */
+    static final Option captureSampleParam = OptionBuilder.withArgName("count")
+            .isRequired(false).hasArg().withDescription("Capture one in this many tcp connections, counting only those of -capclients. The others are spooled without capture. Defaults to 1, all").create("capsample");
+
+    /**
+     * command line option: -capclients <cidr[,cidr...]>   capture only tcp connections of these clients
+     */
+    static final Option captureClientsParam = OptionBuilder.withArgName("cidr[,cidr...]")
+            .isRequired(false).hasArg().withDescription("Capture only tcp connections of clients in these comma separated subnets or addresses, like 10.0.0.0/8,192.168.1.7. The others are spooled without capture. Defaults to all clients").create("capclients");
+
+    /**
+     * command line option: -capbytes <kilobytes>   captured per direction of a tcp connection
+     */
+    static final Option captureBytesParam = OptionBuilder.withArgName("kilobytes")
+            .isRequired(false).hasArg().withDescription("Kilobytes captured per direction of a tcp connection, the rest passes uncaptured. Defaults to all, or to " + CapturePolicy.DEFAULT_HELD_BYTES / 1024 + " with -capfailed").create("capbytes");
+
+    /**
+     * command line option: -capfailed   write captures of failed tcp connections only
+     */
+    static final Option captureFailedParam = OptionBuilder
+            .isRequired(false).withDescription("Hold each tcp connection's capture in memory and write it only if the connection fails rather than closes as expected. See -capbytes").create("capfailed");
+
+    /**
+     * command line option: -store <dir>   capture all connections into memory mapped segments in the directory
+     */
+    static final Option storeParam = OptionBuilder.withArgName("dir")
+            .isRequired(false).hasArg().withDescription("Capture all connections into shared memory mapped segment files in this directory rather than a file per connection. Extract a connection's capture with " + CaptureStoreExtractor.class.getName()).create("store");
+
+    /**
+     * command line option: -storeseg <megabytes>   size of each capture store segment
+     */
+    static final Option storeSegmentParam = OptionBuilder.withArgName("megabytes")
+            .isRequired(false).hasArg().withDescription("Size pre-allocated for each capture store segment. Defaults to 64").create("storeseg");
+
+    /**
+     * command line option: -storeroll <seconds>   age at which a capture store segment is rolled
+     */
+    static final Option storeRollParam = OptionBuilder.withArgName("seconds")
+            .isRequired(false).hasArg().withDescription("Age after which a capture store segment is rolled even if not full. Defaults to rolling on size only").create("storeroll");
+
+    /**
+     * command line option: -storekeep <segments>   number of capture store segments retained
+     */
+    static final Option storeKeepParam = OptionBuilder.withArgName("segments")
+            .isRequired(false).hasArg().withDescription("Number of most recent capture store segments retained. Defaults to keeping all").create("storekeep");
+
+    /**
+     * command line option: -poolstats <seconds>   interval at which buffer pool statistics are printed
+     */
+    static final Option poolStatsParam = OptionBuilder.withArgName("seconds")
+            .isRequired(false).hasArg().withDescription("Print buffer pool statistics at this interval. Defaults to never").create("poolstats");
+
+    /**
+     * command line option: -poolretain <megabytes>   bytes of released buffers retained by each buffer pool
+     */
+    static final Option poolRetainParam = OptionBuilder.withArgName("megabytes")
+            .isRequired(false).hasArg().withDescription("Megabytes of released buffers retained by each of the heap and direct buffer pools. Defaults to 64").create("poolretain");
+
+    /**
+     * command line option: -udpidle <seconds>   time without traffic after which a UDP client's session is evicted
+     */
+    static final Option udpIdleParam = OptionBuilder.withArgName("seconds")
+            .isRequired(false).hasArg().withDescription("Time without traffic after which a UDP client's session and its upstream channel are closed. Defaults to 60").create("udpidle");
+
+    /**
+     * command line option: -shards <count>   number of udp sockets bound to the port with SO_REUSEPORT
+     */
+    static final Option shardsParam = OptionBuilder.withArgName("count")
+            .isRequired(false).hasArg().withDescription("Number of sockets bound to the udp port with SO_REUSEPORT, each with its own worker and session table. The kernel keeps each client on one of them. Defaults to 1").create("shards");
+
+    /**
+     * command line option: -metrics <port>   port on the loopback interface serving metrics
+     */
+    static final Option metricsParam = OptionBuilder.withArgName("port")
+            .isRequired(false).hasArg().withDescription("Serve metrics in the Prometheus text format at http://127.0.0.1:<port>/metrics. Metrics are always available through JMX").create("metrics");
+
+    /**
+     * command line option: -upstreampool <count>   number of connections to the destination kept established ahead of clients
+     */
+    static final Option upstreamPoolParam = OptionBuilder.withArgName("count")
+            .isRequired(false).hasArg().withDescription("Keep this many tcp connections to each destination established ahead of clients so that accepted clients don't wait for the destination's handshake. Only for destinations that don't greet their clients. Defaults to none").create("upstreampool");
+
+    /**
+     * command line option: -upstreamidle <seconds>   age after which a pooled destination connection is replaced
+     */
+    static final Option upstreamIdleParam = OptionBuilder.withArgName("seconds")
+            .isRequired(false).hasArg().withDescription("Age after which an unused pooled destination connection is closed and replaced. Defaults to " + UpstreamPool.DEFAULT_MAX_IDLE_MILLIS / 1000).create("upstreamidle");
+
+    /**
+     * command line option: -connecttimeout <millis>   time allowed to connect to the destination
+     */
+    static final Option connectTimeoutParam = OptionBuilder.withArgName("millis")
+            .isRequired(false).hasArg().withDescription("Time a tcp connection may take to connect to its destination, across all addresses of the destination's host, before it fails. Defaults to " + Connector.DEFAULT_TIMEOUT_MILLIS).create("connecttimeout");
+
+    /**
+     * command line option: -dnsttl <seconds>   time destination host names are cached
+     */
+    static final Option dnsTtlParam = OptionBuilder.withArgName("seconds")
+            .isRequired(false).hasArg().withDescription("Time the addresses of a destination's host are cached before being looked up again. Failed lookups are cached for at most " + Resolver.NEGATIVE_TTL_MILLIS / 1000 + "s. Defaults to " + Resolver.DEFAULT_TTL_MILLIS / 1000).create("dnsttl");
+
+    /**
+     * command line option: -backlog <count>   length of the queue of connections not yet accepted
+     */
+    static final Option backlogParam = OptionBuilder.withArgName("count")
+            .isRequired(false).hasArg().withDescription("Number of tcp connections the kernel queues up until they are accepted, per acceptor. Capped by the kernel, on linux at net.core.somaxconn. Defaults to " + Acceptor.DEFAULT_BACKLOG).create("backlog");
+
+    /**
+     * command line option: -acceptors <count>   number of threads accepting tcp connections
+     */
+    static final Option acceptorsParam = OptionBuilder.withArgName("count")
+            .isRequired(false).hasArg().withDescription("Number of threads accepting tcp connections per port, each with its own socket bound with SO_REUSEPORT where supported. Defaults to 1").create("acceptors");
+
+    /**
+     * command line option: -workers <count>   number of platform threads starting up tcp connections
+     */
+    static final Option workersParam = OptionBuilder.withArgName("count")
+            .isRequired(false).hasArg().withDescription("Number of platform threads of the 'thread' engine that connect accepted tcp connections to their destination before handing them to their spooling threads, rather than a thread per connection. Up to " + Threads.QUEUED_PER_WORKER + " connections per thread queue up while all are busy, further ones are reset. Not used with virtual threads. Defaults to a thread per connection").create("workers");
+
+    /**
+     * command line option: -readahead <kilobytes>   bytes of a tcp connection read ahead of writing them, per direction
+     */
+    static final Option readAheadParam = OptionBuilder.withArgName("kilobytes")
+            .isRequired(false).hasArg().withDescription("Kilobytes each direction of a tcp connection reads ahead of writing them to the other side before it stops reading and lets the sender wait. Bytes read ahead are written together in as few writes as possible. Defaults to 0, reading again only once the last chunk read has been written").create("readahead");
+
+    /**
+     * command line option: -idletimeout <seconds>   time a tcp connection may pass no bytes before it is reaped
+     */
+    static final Option idleTimeoutParam = OptionBuilder.withArgName("seconds")
+            .isRequired(false).hasArg().withDescription("Time a tcp connection may pass no bytes in either direction before it is terminated, like when a peer crashed or a NAT dropped it. Enforced with a precision of one second. Defaults to no limit").create("idletimeout");
+
+    /**
+     * command line option: -maxlifetime <seconds>   time a tcp connection may stay open before it is reaped
+     */
+    static final Option maxLifetimeParam = OptionBuilder.withArgName("seconds")
+            .isRequired(false).hasArg().withDescription("Time a tcp connection may stay open, however active, before it is terminated. Enforced with a precision of one second. Defaults to no limit").create("maxlifetime");
+
+    /**
+     * command line option: -maxconns <count>   tcp connections open at once
+     */
+    static final Option maxConnsParam = OptionBuilder.withArgName("count")
+            .isRequired(false).hasArg().withDescription("Most tcp connections open at once per port. Connections beyond are handled as -overload says. Defaults to no limit").create("maxconns");
+
+    /**
+     * command line option: -maxclientconns <count>   tcp connections open at once per client address
+     */
+    static final Option maxClientConnsParam = OptionBuilder.withArgName("count")
+            .isRequired(false).hasArg().withDescription("Most tcp connections open at once per port and client address. Connections beyond are handled as -overload says. Defaults to no limit").create("maxclientconns");
+
+    /**
+     * command line option: -acceptrate <count>   tcp connections accepted per second
+     */
+    static final Option acceptRateParam = OptionBuilder.withArgName("count")
+            .isRequired(false).hasArg().withDescription("Most tcp connections accepted per second per port, bursts of up to a second's worth passing at once. Connections beyond are handled as -overload says. Defaults to no limit").create("acceptrate");
+
+    /**
+     * command line option: -clientrate <count>   tcp connections accepted per second per client address
+     */
+    static final Option clientRateParam = OptionBuilder.withArgName("count")
+            .isRequired(false).hasArg().withDescription("Most tcp connections accepted per second per port and client address, bursts of up to a second's worth passing at once. Connections beyond are handled as -overload says. Defaults to no limit").create("clientrate");
+
+    /**
+     * command line option: -overload <action>   what happens to tcp connections beyond the limits
+     */
+    static final Option overloadParam = OptionBuilder.withArgName("action")
+            .isRequired(false).hasArg().withDescription("What happens to tcp connections beyond -maxconns, -maxclientconns, -acceptrate or -clientrate: 'queue' holds them until they fit or -queuetimeout passes, 'reject' resets them right away, 'pause' stops accepting while the port is at its limits, leaving connections in the kernel's backlog, and queues connections beyond the limits of their client. Connections that don't get in are reset. Defaults to 'queue'").create("overload");
+
+    /**
+     * command line option: -queuetimeout <millis>   time a tcp connection beyond the limits is held
+     */
+    static final Option queueTimeoutParam = OptionBuilder.withArgName("millis")
+            .isRequired(false).hasArg().withDescription("Time a tcp connection beyond the limits is held before it is reset. Defaults to " + Admission.DEFAULT_QUEUE_MILLIS).create("queuetimeout");
+
+    /**
+     * command line option: -globalbandwidth <kilobytes>   bytes per second of all routes together
+     */
+    static final Option globalBandwidthParam = OptionBuilder.withArgName("kilobytes")
+            .isRequired(false).hasArg().withDescription("Kilobytes per second all routes together may pass, in both directions. Tcp connections beyond wait, datagrams beyond are dropped. Defaults to no limit").create("globalbandwidth");
+
+    /**
+     * command line option: -bandwidth <kilobytes>   bytes per second of a route
+     */
+    static final Option bandwidthParam = OptionBuilder.withArgName("kilobytes")
+            .isRequired(false).hasArg().withDescription("Kilobytes per second all connections of a port together may pass, in both directions. Tcp connections beyond wait, datagrams beyond are dropped. Defaults to no limit").create("bandwidth");
+
+    /**
+     * command line option: -clientbandwidth <kilobytes>   bytes per second of a route's client address
+     */
+    static final Option clientBandwidthParam = OptionBuilder.withArgName("kilobytes")
+            .isRequired(false).hasArg().withDescription("Kilobytes per second all connections of a port and client address together may pass, in both directions, so that one client can't take the bandwidth of all others. Tcp connections beyond wait, datagrams beyond are dropped. Defaults to no limit").create("clientbandwidth");
+
+    /**
+     * command line option: -config <file>   routes to serve, in place of -p and -d
+     */
+    static final Option configParam = OptionBuilder.withArgName("file")
+            .isRequired(false).hasArg().withDescription("Serve all routes of this properties file in one process, each given by keys route.<name>.<key>, key being one of port, dest, type, prefix, capture, format, capsample, capclients, capbytes, capfailed, lb, connecttimeout, upstreampool, backlog, acceptors, readahead, idletimeout, maxlifetime, maxconns, maxclientconns, acceptrate, clientrate, overload, queuetimeout, bandwidth or clientbandwidth. Route settings given on the command line are the defaults of all routes. Replaces -p and -d").create("config");
+
     /**
      * Entry point into app.
      *
@@ -53,8 +326,51 @@ public class Main {
 
         opts.addOption(portParam);
         opts.addOption(destParam);
+        opts.addOption(balanceParam);
+        opts.addOption(healthParam);
         opts.addOption(idPrefixParam);
         opts.addOption(proxyTypeParam);
+        opts.addOption(engineParam);
+        opts.addOption(loopsParam);
+        opts.addOption(threadsParam);
+        opts.addOption(noCaptureParam);
+        opts.addOption(captureQueueParam);
+        opts.addOption(captureQueueSizeParam);
+        opts.addOption(captureFormatParam);
+        opts.addOption(captureCompressParam);
+        opts.addOption(captureSampleParam);
+        opts.addOption(captureClientsParam);
+        opts.addOption(captureBytesParam);
+        opts.addOption(captureFailedParam);
+        opts.addOption(storeParam);
+        opts.addOption(storeSegmentParam);
+        opts.addOption(storeRollParam);
+        opts.addOption(storeKeepParam);
+        opts.addOption(poolStatsParam);
+        opts.addOption(poolRetainParam);
+        opts.addOption(udpIdleParam);
+        opts.addOption(shardsParam);
+        opts.addOption(metricsParam);
+        opts.addOption(upstreamPoolParam);
+        opts.addOption(upstreamIdleParam);
+        opts.addOption(connectTimeoutParam);
+        opts.addOption(dnsTtlParam);
+        opts.addOption(backlogParam);
+        opts.addOption(acceptorsParam);
+        opts.addOption(workersParam);
+        opts.addOption(readAheadParam);
+        opts.addOption(idleTimeoutParam);
+        opts.addOption(maxLifetimeParam);
+        opts.addOption(maxConnsParam);
+        opts.addOption(maxClientConnsParam);
+        opts.addOption(acceptRateParam);
+        opts.addOption(clientRateParam);
+        opts.addOption(overloadParam);
+        opts.addOption(queueTimeoutParam);
+        opts.addOption(globalBandwidthParam);
+        opts.addOption(bandwidthParam);
+        opts.addOption(clientBandwidthParam);
+        opts.addOption(configParam);
 
         CommandLineParser clp = new GnuParser();
         CommandLine cl = null;
@@ -68,10 +384,11 @@ public class Main {
         }
 
         int port = -1;
-        String destHost = null;
+        List<Backend> backends = null;
         String logPrefix = "C";
         String proxyType = "tcp";
-        int destPort = -1;
+        String engine = "thread";
+        int loops = Runtime.getRuntime().availableProcessors();
 
         if (cl.hasOption(portParam.getOpt())) {
             String val = cl.getOptionValue(portParam.getOpt());
@@ -84,20 +401,32 @@ public class Main {
             }
         }
         if (cl.hasOption(destParam.getOpt())) {
-            String val = cl.getOptionValue(destParam.getOpt());
-
-            String[] vals = val.split("\\:");
-            if (vals.length < 2) {
-                System.err.println("Specified destination '" + val + "' does not contain a colon.");
+            try {
+                backends = Backend.parseList(cl.getOptionValue(destParam.getOpt()));
+            } catch (IllegalArgumentException iae) {
+                System.err.println(iae.getMessage());
                 this.showHelpAndExit(opts);
                 return;
             }
-            destHost = vals[0];
-
+        }
+        Balancer.Strategy balance = Balancer.Strategy.ROUNDROBIN;
+        if (cl.hasOption(balanceParam.getOpt())) {
+            String val = cl.getOptionValue(balanceParam.getOpt());
             try {
-                destPort = Integer.parseInt(vals[1]);
-            } catch(NumberFormatException nfe) {
-                System.err.println("Specified destination port '" + vals[1] + "' is not an integer.");
+                balance = Balancer.Strategy.valueOf(val.toUpperCase());
+            } catch (IllegalArgumentException iae) {
+                System.err.println("Specified balancing strategy '" + val + "' is not one of 'roundrobin', 'leastactive' or 'hash'.");
+                this.showHelpAndExit(opts);
+                return;
+            }
+        }
+        Admission.Action overload = Admission.Action.QUEUE;
+        if (cl.hasOption(overloadParam.getOpt())) {
+            String val = cl.getOptionValue(overloadParam.getOpt());
+            try {
+                overload = Admission.Action.valueOf(val.toUpperCase());
+            } catch (IllegalArgumentException iae) {
+                System.err.println("Specified overload action '" + val + "' is not one of 'queue', 'reject' or 'pause'.");
                 this.showHelpAndExit(opts);
                 return;
             }
@@ -108,26 +437,392 @@ public class Main {
         if (cl.hasOption(proxyTypeParam.getOpt())) {
             proxyType = cl.getOptionValue(proxyTypeParam.getOpt()).toLowerCase();
         }
+        if (cl.hasOption(engineParam.getOpt())) {
+            engine = cl.getOptionValue(engineParam.getOpt()).toLowerCase();
+            if (!"thread".equals(engine) && !"nio".equals(engine)) {
+                System.err.println("Specified engine '" + engine + "' is not one of 'thread' or 'nio'.");
+                this.showHelpAndExit(opts);
+                return;
+            }
+        }
+        if (cl.hasOption(loopsParam.getOpt())) {
+            String val = cl.getOptionValue(loopsParam.getOpt());
+            try {
+                loops = Integer.parseInt(val);
+            } catch(NumberFormatException nfe) {
+                loops = -1;
+            }
+            if (loops < 1) {
+                System.err.println("Specified event loop count '" + val + "' is not a positive integer.");
+                this.showHelpAndExit(opts);
+                return;
+            }
+        }
 
-        if(port == -1 || destPort == -1 || destHost == null || destHost.equals("")) {
-            showHelpAndExit(opts);
+        if (cl.hasOption(threadsParam.getOpt())) {
+            String val = cl.getOptionValue(threadsParam.getOpt()).toLowerCase();
+            if ("virtual".equals(val)) {
+                if (!Threads.useVirtualThreads()) {
+                    System.err.println("Virtual threads are not supported by this JVM. Using platform threads.");
+                }
+            }
+            else if (!"platform".equals(val)) {
+                System.err.println("Specified thread kind '" + val + "' is not one of 'platform' or 'virtual'.");
+                this.showHelpAndExit(opts);
+                return;
+            }
+        }
+
+        CaptureWriter.Policy capturePolicy = CaptureWriter.Policy.BLOCK;
+        int captureQueueSize = 4096;
+        if (cl.hasOption(captureQueueParam.getOpt())) {
+            String val = cl.getOptionValue(captureQueueParam.getOpt()).toUpperCase();
+            if ("SYNC".equals(val)) {
+                capturePolicy = null;
+            }
+            else {
+                try {
+                    capturePolicy = CaptureWriter.Policy.valueOf(val);
+                } catch (IllegalArgumentException iae) {
+                    System.err.println("Specified capture queue policy '" + val.toLowerCase() + "' is not one of 'block', 'drop', 'spill' or 'sync'.");
+                    this.showHelpAndExit(opts);
+                    return;
+                }
+            }
+        }
+        if (cl.hasOption(captureQueueSizeParam.getOpt())) {
+            String val = cl.getOptionValue(captureQueueSizeParam.getOpt());
+            try {
+                captureQueueSize = Integer.parseInt(val);
+            } catch(NumberFormatException nfe) {
+                captureQueueSize = -1;
+            }
+            if (captureQueueSize < 1) {
+                System.err.println("Specified capture queue size '" + val + "' is not a positive integer.");
+                this.showHelpAndExit(opts);
+                return;
+            }
+        }
+
+        CaptureFormat captureFormat = CaptureFormat.TEXT;
+        if (cl.hasOption(captureFormatParam.getOpt())) {
+            String val = cl.getOptionValue(captureFormatParam.getOpt()).toUpperCase();
+            try {
+                captureFormat = CaptureFormat.valueOf(val);
+                if (captureFormat == CaptureFormat.PCAP) {
+                    // only for udp which is always captured as pcap
+                    throw new IllegalArgumentException(val);
+                }
+            } catch (IllegalArgumentException iae) {
+                System.err.println("Specified capture format '" + val.toLowerCase() + "' is not one of 'text' or 'binary'.");
+                this.showHelpAndExit(opts);
+                return;
+            }
+        }
+
+        int captureLevel = parsePositive(cl, captureCompressParam, 0, "capture compression level", opts);
+        if (captureLevel > 9) {
+            System.err.println("Specified capture compression level '" + captureLevel + "' is not between 1 and 9.");
+            this.showHelpAndExit(opts);
             return;
         }
+        if (captureLevel > 0 && capturePolicy == null) {
+            System.err.println("Capture compression runs on the background capture writer, which -capq sync turns off.");
+            this.showHelpAndExit(opts);
+            return;
+        }
+        int captureSample = parsePositive(cl, captureSampleParam, 1, "capture sample", opts);
+        int captureKB = parsePositive(cl, captureBytesParam, 0, "capture size", opts);
+        String captureClients = cl.getOptionValue(captureClientsParam.getOpt());
+        boolean captureFailed = cl.hasOption(captureFailedParam.getOpt());
+        CapturePolicy routeCapturePolicy;
+        try {
+            routeCapturePolicy = CapturePolicy.create(captureSample, captureClients, captureKB * 1024, captureFailed);
+        } catch (IllegalArgumentException iae) {
+            System.err.println(iae.getMessage());
+            this.showHelpAndExit(opts);
+            return;
+        }
+        int storeSegmentMB = parsePositive(cl, storeSegmentParam, 64, "capture store segment size", opts);
+        int storeRollSeconds = parsePositive(cl, storeRollParam, 0, "capture store roll interval", opts);
+        int storeKeep = parsePositive(cl, storeKeepParam, 0, "capture store segment count", opts);
+        int poolStatsSeconds = parsePositive(cl, poolStatsParam, 0, "buffer pool statistics interval", opts);
+        int poolRetainMB = parsePositive(cl, poolRetainParam, (int) (BufferPool.DEFAULT_MAX_POOLED_BYTES / (1024 * 1024)), "buffer pool retention", opts);
+        int udpIdleSeconds = parsePositive(cl, udpIdleParam, (int) (UdpListener.DEFAULT_IDLE_MILLIS / 1000), "UDP session idle timeout", opts);
+        int shards = parsePositive(cl, shardsParam, 1, "UDP shard count", opts);
+        int metricsPort = parsePositive(cl, metricsParam, 0, "metrics port", opts);
+        int upstreamPoolSize = parsePositive(cl, upstreamPoolParam, 0, "upstream pool size", opts);
+        int backlog = parsePositive(cl, backlogParam, Acceptor.DEFAULT_BACKLOG, "backlog", opts);
+        int acceptors = parsePositive(cl, acceptorsParam, 1, "acceptor count", opts);
+        int workers = parsePositive(cl, workersParam, 0, "worker count", opts);
+        int readAheadKB = parsePositive(cl, readAheadParam, 0, "read ahead size", opts);
+        int idleTimeoutSeconds = parsePositive(cl, idleTimeoutParam, 0, "idle timeout", opts);
+        int maxLifetimeSeconds = parsePositive(cl, maxLifetimeParam, 0, "maximum lifetime", opts);
+        int maxConns = parsePositive(cl, maxConnsParam, 0, "connection limit", opts);
+        int maxClientConns = parsePositive(cl, maxClientConnsParam, 0, "client connection limit", opts);
+        int acceptRate = parsePositive(cl, acceptRateParam, 0, "accept rate", opts);
+        int clientRate = parsePositive(cl, clientRateParam, 0, "client accept rate", opts);
+        int queueTimeoutMillis = parsePositive(cl, queueTimeoutParam, (int) Admission.DEFAULT_QUEUE_MILLIS, "queue timeout", opts);
+        int globalBandwidthKB = parsePositive(cl, globalBandwidthParam, 0, "global bandwidth", opts);
+        int bandwidthKB = parsePositive(cl, bandwidthParam, 0, "bandwidth", opts);
+        int clientBandwidthKB = parsePositive(cl, clientBandwidthParam, 0, "client bandwidth", opts);
+        int upstreamIdleSeconds = parsePositive(cl, upstreamIdleParam, (int) (UpstreamPool.DEFAULT_MAX_IDLE_MILLIS / 1000), "upstream pool idle age", opts);
+        int healthSeconds = parsePositive(cl, healthParam, (int) (HealthChecker.DEFAULT_INTERVAL_MILLIS / 1000), "health check interval", opts);
+        int connectTimeoutMillis = parsePositive(cl, connectTimeoutParam, (int) Connector.DEFAULT_TIMEOUT_MILLIS, "connect timeout", opts);
+        int dnsTtlSeconds = parsePositive(cl, dnsTtlParam, (int) (Resolver.DEFAULT_TTL_MILLIS / 1000), "DNS cache time to live", opts);
+        if (captureLevel < 0 || captureSample < 0 || captureKB < 0 || storeSegmentMB < 0 || storeRollSeconds < 0 || storeKeep < 0 || poolStatsSeconds < 0 || poolRetainMB < 0 || udpIdleSeconds < 0
+                || shards < 0 || metricsPort < 0 || upstreamPoolSize < 0 || upstreamIdleSeconds < 0 || healthSeconds < 0
+                || backlog < 0 || acceptors < 0 || workers < 0 || readAheadKB < 0
+                || idleTimeoutSeconds < 0 || maxLifetimeSeconds < 0 || maxConns < 0 || maxClientConns < 0
+                || acceptRate < 0 || clientRate < 0 || queueTimeoutMillis < 0
+                || globalBandwidthKB < 0 || bandwidthKB < 0 || clientBandwidthKB < 0
+                || connectTimeoutMillis < 0 || dnsTtlSeconds < 0) {
+            return;
+        }
+        if (storeSegmentMB >= 2048) {
+            System.err.println("Specified capture store segment size must be less than 2048 megabytes.");
+            this.showHelpAndExit(opts);
+            return;
+        }
+
+        List<Route> routes;
+        if (cl.hasOption(configParam.getOpt())) {
+            if (port != -1 || backends != null) {
+                System.err.println("Specify routes either with -p and -d or with -config.");
+                this.showHelpAndExit(opts);
+                return;
+            }
+            // route settings given on the command line are the defaults of all routes in the file
+            Properties defaults = new Properties();
+            defaults.setProperty("type", proxyType);
+            defaults.setProperty("capture", String.valueOf(!cl.hasOption(noCaptureParam.getOpt())));
+            defaults.setProperty("format", captureFormat.name());
+            defaults.setProperty("capsample", String.valueOf(captureSample));
+            if (captureClients != null) {
+                defaults.setProperty("capclients", captureClients);
+            }
+            defaults.setProperty("capbytes", String.valueOf(captureKB));
+            defaults.setProperty("capfailed", String.valueOf(captureFailed));
+            defaults.setProperty("lb", balance.name());
+            defaults.setProperty("connecttimeout", String.valueOf(connectTimeoutMillis));
+            defaults.setProperty("upstreampool", String.valueOf(upstreamPoolSize));
+            defaults.setProperty("backlog", String.valueOf(backlog));
+            defaults.setProperty("acceptors", String.valueOf(acceptors));
+            defaults.setProperty("readahead", String.valueOf(readAheadKB));
+            defaults.setProperty("idletimeout", String.valueOf(idleTimeoutSeconds));
+            defaults.setProperty("maxlifetime", String.valueOf(maxLifetimeSeconds));
+            defaults.setProperty("maxconns", String.valueOf(maxConns));
+            defaults.setProperty("maxclientconns", String.valueOf(maxClientConns));
+            defaults.setProperty("acceptrate", String.valueOf(acceptRate));
+            defaults.setProperty("clientrate", String.valueOf(clientRate));
+            defaults.setProperty("overload", overload.name());
+            defaults.setProperty("queuetimeout", String.valueOf(queueTimeoutMillis));
+            defaults.setProperty("bandwidth", String.valueOf(bandwidthKB));
+            defaults.setProperty("clientbandwidth", String.valueOf(clientBandwidthKB));
+            File configFile = new File(cl.getOptionValue(configParam.getOpt()));
+            try {
+                routes = RouteConfig.load(configFile, defaults);
+            } catch (IOException e) {
+                System.err.println("Unable to read routes from " + configFile + ": " + e);
+                exitJvm();
+                return;
+            } catch (IllegalArgumentException iae) {
+                System.err.println(iae.getMessage());
+                this.showHelpAndExit(opts);
+                return;
+            }
+        }
+        else {
+            if(port == -1 || backends == null) {
+                showHelpAndExit(opts);
+                return;
+            }
+            if ("udp".equals(proxyType) && backends.size() > 1) {
+                System.err.println("Udp is proxied to a single destination.");
+                this.showHelpAndExit(opts);
+                return;
+            }
+            Route route = new Route(port, balance.create(backends), logPrefix);
+            route.setUdp("udp".equals(proxyType));
+            route.setConnectTimeoutMillis(connectTimeoutMillis);
+            route.setCapture(!cl.hasOption(noCaptureParam.getOpt()));
+            route.setCaptureFormat(captureFormat);
+            route.setCapturePolicy(routeCapturePolicy);
+            route.setUpstreamPoolSize(upstreamPoolSize);
+            route.setBacklog(backlog);
+            route.setAcceptors(acceptors);
+            route.setReadAheadBytes(readAheadKB * 1024);
+            route.setIdleTimeoutMillis(idleTimeoutSeconds * 1000L);
+            route.setMaxLifetimeMillis(maxLifetimeSeconds * 1000L);
+            route.setAdmission(Admission.create(maxConns, maxClientConns, acceptRate, clientRate, overload,
+                    queueTimeoutMillis));
+            route.setBandwidthBytesPerSecond(bandwidthKB * 1024L);
+            route.setClientBandwidthBytesPerSecond(clientBandwidthKB * 1024L);
+            routes = Collections.singletonList(route);
+        }
+        boolean capturing = false;
+        for (Route route : routes) {
+            capturing |= route.isCapture();
+        }
 
         // we've got valid parameters, fire it up
+        Resolver.configure(dnsTtlSeconds * 1000L);
+        if ("thread".equals(engine) && workers > 0) {
+            Threads.useWorkerPool(workers);
+        }
+        if (capturing && cl.hasOption(storeParam.getOpt())) {
+            File storeDir = new File(cl.getOptionValue(storeParam.getOpt()));
+            try {
+                CaptureStore.startShared(storeDir, storeSegmentMB * 1024 * 1024, storeRollSeconds * 1000L, storeKeep);
+            } catch (IOException e) {
+                System.err.println("Unable to open capture store in " + storeDir);
+                e.printStackTrace();
+                exitJvm();
+                return;
+            }
+        }
+        if (capturing && capturePolicy != null) {
+            CaptureWriter.startShared(captureQueueSize, capturePolicy);
+        }
+        if (capturing && captureLevel > 0) {
+            CaptureCompression.configure(captureLevel);
+        }
 
-        if ("udp".equals(proxyType)) {
-            UdpListener udpListener = new UdpListener(port, destHost, destPort, logPrefix);
-            udpListener.run();
+        try {
+            Metrics.registerMBean();
+        } catch (JMException e) {
+            System.err.println("Unable to register metrics with JMX.");
+            e.printStackTrace();
         }
-        else {
-            System.out.println("TCP Proxy starting");
-            Listener l = new Listener(port, destHost, destPort, logPrefix);
-            l.run();
+        if (metricsPort > 0) {
+            try {
+                new MetricsServer(metricsPort);
+            } catch (IOException e) {
+                System.err.println("Unable to serve metrics on port " + metricsPort);
+                e.printStackTrace();
+                exitJvm();
+                return;
+            }
         }
+        BufferPool.configure(poolRetainMB * 1024L * 1024);
+        if (poolStatsSeconds > 0) {
+            BufferPool.startReporting(poolStatsSeconds * 1000L);
+        }
+
+        Throttle globalBandwidth = globalBandwidthKB > 0 ? new Throttle(globalBandwidthKB * 1024L) : null;
+
+        // event loops are shared by all routes of the same protocol
+        NioEventLoop[] nioLoops = null;
+        UdpEventLoop[] udpLoops = null;
+        List<Backend> balanced = new ArrayList<Backend>();
+        List<Runnable> listeners = new ArrayList<Runnable>();
+        for (Route route : routes) {
+            List<Backend> routeBackends = route.getBalancer().getBackends();
+            if (route.getUpstreamPoolSize() > 0 && !route.isUdp()) {
+                for (Backend b : routeBackends) {
+                    UpstreamPool upstreamPool = new UpstreamPool(b.getHost(), b.getPort(), route.getUpstreamPoolSize(),
+                            upstreamIdleSeconds * 1000L);
+                    b.setUpstreamPool(upstreamPool);
+                    upstreamPool.start();
+                }
+            }
+            if (routeBackends.size() > 1) {
+                System.out.println("Balancing connections of port " + route.getPort() + " across " + routeBackends.size()
+                        + " destinations, health checked every " + healthSeconds + "s");
+                new HealthChecker(routeBackends, healthSeconds * 1000L).start();
+                balanced.addAll(routeBackends);
+            }
+            route.setBandwidth(Bandwidth.create(globalBandwidth, route.getBandwidthBytesPerSecond(),
+                    route.getClientBandwidthBytesPerSecond()));
+
+            try {
+                if (route.isUdp()) {
+                    Backend dest = routeBackends.get(0);
+                    UdpCapture udpCapture = route.isCapture() ? UdpCapture.open(route.getLogPrefix() + "-udp") : null;
+                    if ("nio".equals(engine)) {
+                        if (udpLoops == null) {
+                            udpLoops = new UdpEventLoop[Math.max(loops, shards)];
+                            for (int i = 0; i < udpLoops.length; i++) {
+                                udpLoops[i] = UdpEventLoop.start("udp_loop_" + i);
+                            }
+                        }
+                        UdpNioListener listener = new UdpNioListener(route.getPort(), dest.getHost(), dest.getPort(),
+                                route.getLogPrefix(), udpIdleSeconds * 1000L, udpLoops, shards, udpCapture);
+                        listener.setBandwidth(route.getBandwidth());
+                        listeners.add(listener);
+                    }
+                    else {
+                        UdpListener listener = new UdpListener(route.getPort(), dest.getHost(), dest.getPort(),
+                                route.getLogPrefix(), udpIdleSeconds * 1000L, shards, udpCapture);
+                        listener.setBandwidth(route.getBandwidth());
+                        listeners.add(listener);
+                    }
+                }
+                else if ("nio".equals(engine)) {
+                    if (nioLoops == null) {
+                        nioLoops = new NioEventLoop[loops];
+                        for (int i = 0; i < nioLoops.length; i++) {
+                            nioLoops[i] = NioEventLoop.start("nio_loop_" + i);
+                        }
+                    }
+                    listeners.add(new NioListener(route, nioLoops));
+                }
+                else {
+                    listeners.add(new Listener(route));
+                }
+            } catch (IOException e) {
+                System.err.println("Unable to start route " + route);
+                e.printStackTrace();
+                exitJvm();
+                return;
+            }
+        }
+        if (!balanced.isEmpty()) {
+            Metrics.get().setBackends(balanced);
+        }
+
+        System.out.println("Proxy starting " + routes.size() + (routes.size() == 1 ? " route" : " routes")
+                + ("thread".equals(engine) && Threads.isVirtual() ? " on virtual threads" : ""));
+        // the last listener accepts on this thread, the others on their own
+        for (int i = 0; i < listeners.size() - 1; i++) {
+            Thread t = new Thread(listeners.get(i));
+            t.setName("listener_" + routes.get(i).getPort());
+            t.start();
+        }
+        listeners.get(listeners.size() - 1).run();
     }
 
 
+    /**
+     * Returns the value of an optional positive integer option, the default if the option is absent, or -1 after
+     * showing help if the value isn't a positive integer.
+     *
+     * @param cl
+     * @param opt
+     * @param defaultValue
+     * @param what describes the value in the error message
+     * @param opts
+     * @return
+     */
+    private int parsePositive(CommandLine cl, Option opt, int defaultValue, String what, Options opts) {
+        if (!cl.hasOption(opt.getOpt())) {
+            return defaultValue;
+        }
+        String val = cl.getOptionValue(opt.getOpt());
+        int result;
+        try {
+            result = Integer.parseInt(val);
+        } catch(NumberFormatException nfe) {
+            result = -1;
+        }
+        if (result < 1) {
+            System.err.println("Specified " + what + " '" + val + "' is not a positive integer.");
+            this.showHelpAndExit(opts);
+            return -1;
+        }
+        return result;
+    }
+
     /**
      * Prints the usage help on the command line.
      *
@@ -0,0 +1,580 @@
+package markboydcode.socketproxy;
+
+import markboydcode.socketproxy.balance.Backend;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Process wide registry of the proxy's counters and histograms. Every engine reports into the single instance returned
+ * by {@link #get()} through methods that neither allocate nor lock: counters are {@link LongAdder}s and histograms are
+ * striped, so spooling threads and event loops updating them at the same time don't contend. Metrics are read by the
+ * {@link markboydcode.socketproxy.MetricsServer} in the Prometheus text format and through JMX as
+ * {@link #OBJECT_NAME}.
+ */
+public class Metrics implements MetricsMXBean {
+
+    public static final String OBJECT_NAME = "markboydcode.socketproxy:type=Metrics";
+
+    private static final String PREFIX = "socketproxy_";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private static final Metrics instance = new Metrics();
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder acceptFailures = new LongAdder();
+    private final LongAdder closed = new LongAdder();
+    private final LongAdder[] failed = new LongAdder[ConnectionState.values().length];
+    private final LongAdder[] reaped = new LongAdder[Reaper.Reason.values().length];
+    private final LongAdder[] shed = new LongAdder[Admission.Limit.values().length];
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder captureSkipped = new LongAdder();
+    private final LongAdder captureDiscarded = new LongAdder();
+    private final LongAdder throttledNanosToDest = new LongAdder();
+    private final LongAdder throttledNanosToClient = new LongAdder();
+    private final LongAdder udpThrottled = new LongAdder();
+    private final LongAdder bytesToDest = new LongAdder();
+    private final LongAdder bytesToClient = new LongAdder();
+    private final LongAdder udpPacketsToDest = new LongAdder();
+    private final LongAdder udpPacketsToClient = new LongAdder();
+    private final LongAdder udpDropped = new LongAdder();
+    private final LongAdder udpSessionsOpened = new LongAdder();
+    private final LongAdder udpSessionsClosed = new LongAdder();
+    private final LongAdder upstreamPoolHits = new LongAdder();
+    private final LongAdder upstreamPoolMisses = new LongAdder();
+    private final LongAdder upstreamPoolDiscarded = new LongAdder();
+
+    private volatile List<Backend> backends = Collections.emptyList();
+
+    private final Histogram connectTime = new Histogram("connect_time_microseconds",
+            "Time taken to connect to the destination.");
+    private final Histogram lifetime = new Histogram("connection_lifetime_milliseconds",
+            "Time from accepting a connection until it closed or failed.");
+    private final Histogram chunkSize = new Histogram("chunk_size_bytes",
+            "Bytes moved by a single read and write of a spooler.");
+
+    private Metrics() {
+        for (int i = 0; i < failed.length; i++) {
+            failed[i] = new LongAdder();
+        }
+        for (int i = 0; i < reaped.length; i++) {
+            reaped[i] = new LongAdder();
+        }
+        for (int i = 0; i < shed.length; i++) {
+            shed[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Returns the registry all engines report into.
+     *
+     * @return
+     */
+    public static Metrics get() {
+        return instance;
+    }
+
+    /**
+     * Registers the registry with the platform MBean server.
+     *
+     * @throws JMException
+     */
+    public static void registerMBean() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName(OBJECT_NAME));
+    }
+
+    /**
+     * Counts a newly accepted tcp connection.
+     */
+    public void connectionAccepted() {
+        accepted.increment();
+    }
+
+    /**
+     * Records how long connecting to the destination took.
+     *
+     * @param nanos
+     */
+    public void destinationConnected(long nanos) {
+        connectTime.record(nanos / 1000);
+    }
+
+    /**
+     * Counts a failure to accept a connection, like when the process ran out of file descriptors.
+     */
+    public void acceptFailed() {
+        acceptFailures.increment();
+    }
+
+    /**
+     * Counts a connection that ended as expected.
+     *
+     * @param lifetimeMillis
+     */
+    public void connectionClosed(long lifetimeMillis) {
+        closed.increment();
+        lifetime.record(lifetimeMillis);
+    }
+
+    /**
+     * Counts a connection that was terminated by a failure.
+     *
+     * @param state the connection was in when it failed
+     * @param lifetimeMillis
+     */
+    public void connectionFailed(ConnectionState state, long lifetimeMillis) {
+        failed[state.ordinal()].increment();
+        lifetime.record(lifetimeMillis);
+    }
+
+    /**
+     * Counts a connection terminated by the {@link markboydcode.socketproxy.Reaper}.
+     *
+     * @param reason
+     * @param lifetimeMillis
+     */
+    public void connectionReaped(Reaper.Reason reason, long lifetimeMillis) {
+        reaped[reason.ordinal()].increment();
+        lifetime.record(lifetimeMillis);
+    }
+
+    /**
+     * Counts a connection reset by {@link markboydcode.socketproxy.Admission} control rather than proxied.
+     *
+     * @param limit the connection exceeded
+     */
+    public void connectionShed(Admission.Limit limit) {
+        shed[limit.ordinal()].increment();
+    }
+
+    /**
+     * Counts a connection held by an acceptor until it is admitted.
+     */
+    public void connectionQueued() {
+        queued.increment();
+    }
+
+    /**
+     * Counts a held connection that was admitted or shed.
+     */
+    public void connectionDequeued() {
+        queued.decrement();
+    }
+
+    /**
+     * Counts a connection left uncaptured by its route's {@link markboydcode.socketproxy.CapturePolicy}.
+     */
+    public void captureSkipped() {
+        captureSkipped.increment();
+    }
+
+    /**
+     * Counts a capture held in memory and discarded since its connection didn't fail.
+     */
+    public void captureDiscarded() {
+        captureDiscarded.increment();
+    }
+
+    /**
+     * Counts a chunk of bytes spooled in the given direction.
+     *
+     * @param direction
+     * @param bytes
+     */
+    public void spooled(LogMoniker direction, int bytes) {
+        (direction == LogMoniker.TODEST ? bytesToDest : bytesToClient).add(bytes);
+        chunkSize.record(bytes);
+    }
+
+    /**
+     * Adds to the time spooling in the given direction waited for a {@link markboydcode.socketproxy.Bandwidth} limit.
+     *
+     * @param direction
+     * @param nanos
+     */
+    public void throttled(LogMoniker direction, long nanos) {
+        (direction == LogMoniker.TODEST ? throttledNanosToDest : throttledNanosToClient).add(nanos);
+    }
+
+    /**
+     * Counts a datagram dropped for exceeding a {@link markboydcode.socketproxy.Bandwidth} limit.
+     */
+    public void udpThrottled() {
+        udpThrottled.increment();
+    }
+
+    /**
+     * Counts a datagram forwarded in the given direction.
+     *
+     * @param direction
+     * @param bytes
+     */
+    public void udpForwarded(LogMoniker direction, int bytes) {
+        (direction == LogMoniker.TODEST ? udpPacketsToDest : udpPacketsToClient).increment();
+        (direction == LogMoniker.TODEST ? bytesToDest : bytesToClient).add(bytes);
+    }
+
+    /**
+     * Counts a datagram that was dropped.
+     */
+    public void udpDropped() {
+        udpDropped.increment();
+    }
+
+    public void udpSessionOpened() {
+        udpSessionsOpened.increment();
+    }
+
+    public void udpSessionClosed() {
+        udpSessionsClosed.increment();
+    }
+
+    /**
+     * Sets the backends of a balanced route whose connection counts and health are exposed.
+     *
+     * @param backends
+     */
+    public void setBackends(List<Backend> backends) {
+        this.backends = backends;
+    }
+
+    /**
+     * Counts a connection handed out by an {@link markboydcode.socketproxy.UpstreamPool}.
+     */
+    public void upstreamPoolHit() {
+        upstreamPoolHits.increment();
+    }
+
+    /**
+     * Counts a client left to dial because its route's upstream pool was empty.
+     */
+    public void upstreamPoolMiss() {
+        upstreamPoolMisses.increment();
+    }
+
+    /**
+     * Counts a pooled connection closed for having been idle too long or found unhealthy.
+     */
+    public void upstreamPoolDiscarded() {
+        upstreamPoolDiscarded.increment();
+    }
+
+    /**
+     * Appends all metrics in the Prometheus text exposition format. Histograms are exposed as summaries of their
+     * quantiles.
+     *
+     * @param sb
+     */
+    public void writePrometheus(StringBuilder sb) {
+        counter(sb, "connections_accepted_total", "Accepted tcp connections.", getAcceptedConnections());
+        counter(sb, "accept_failures_total", "Failures to accept a tcp connection, each followed by a back off.",
+                getAcceptFailures());
+        gauge(sb, "connections_active", "Tcp connections not closed, failed or reaped yet.", getActiveConnections());
+        counter(sb, "connections_closed_total", "Tcp connections that ended as expected.", getClosedConnections());
+        header(sb, "connections_failed_total", "counter", "Tcp connections terminated by a failure, by the state they failed in.");
+        for (ConnectionState s : ConnectionState.values()) {
+            sb.append(PREFIX).append("connections_failed_total{state=\"").append(s.name()).append("\"} ")
+                    .append(failed[s.ordinal()].sum()).append('\n');
+        }
+        header(sb, "connections_reaped_total", "counter", "Tcp connections terminated for having been idle or open too long, by reason.");
+        for (Reaper.Reason r : Reaper.Reason.values()) {
+            sb.append(PREFIX).append("connections_reaped_total{reason=\"").append(r.name().toLowerCase()).append("\"} ")
+                    .append(reaped[r.ordinal()].sum()).append('\n');
+        }
+        header(sb, "connections_shed_total", "counter", "Tcp connections reset by admission control, by the limit they exceeded.");
+        for (Admission.Limit l : Admission.Limit.values()) {
+            sb.append(PREFIX).append("connections_shed_total{limit=\"").append(l.name().toLowerCase()).append("\"} ")
+                    .append(shed[l.ordinal()].sum()).append('\n');
+        }
+        gauge(sb, "connections_queued", "Tcp connections accepted and held until admission control lets them in.",
+                getQueuedConnections());
+        counter(sb, "capture_skipped_total", "Tcp connections left uncaptured by the capture policy.",
+                getCaptureSkipped());
+        counter(sb, "capture_discarded_total", "Captures held in memory and discarded since the connection didn't fail.",
+                getCaptureDiscarded());
+        counter(sb, "capture_dropped_total", "Captured chunks discarded as the capture writer's queue was full.",
+                getCaptureDropped());
+        counter(sb, "capture_spilled_total", "Captured chunks kept on the heap as the capture writer's queue was full.",
+                getCaptureSpilled());
+        header(sb, "bytes_total", "counter", "Bytes passed through, by direction.");
+        sb.append(PREFIX).append("bytes_total{direction=\"to_dest\"} ").append(getBytesToDest()).append('\n');
+        sb.append(PREFIX).append("bytes_total{direction=\"to_client\"} ").append(getBytesToClient()).append('\n');
+        header(sb, "throttled_microseconds_total", "counter", "Time tcp spooling waited for bandwidth limits, by direction.");
+        sb.append(PREFIX).append("throttled_microseconds_total{direction=\"to_dest\"} ").append(getThrottledMicrosToDest()).append('\n');
+        sb.append(PREFIX).append("throttled_microseconds_total{direction=\"to_client\"} ").append(getThrottledMicrosToClient()).append('\n');
+        header(sb, "udp_packets_total", "counter", "Datagrams forwarded, by direction.");
+        sb.append(PREFIX).append("udp_packets_total{direction=\"to_dest\"} ").append(getUdpPacketsToDest()).append('\n');
+        sb.append(PREFIX).append("udp_packets_total{direction=\"to_client\"} ").append(getUdpPacketsToClient()).append('\n');
+        counter(sb, "udp_dropped_total", "Datagrams dropped.", getUdpDropped());
+        counter(sb, "udp_throttled_total", "Datagrams dropped for exceeding a bandwidth limit, also counted as dropped.",
+                getUdpThrottled());
+        gauge(sb, "udp_sessions_active", "Udp client sessions not evicted yet.", getActiveUdpSessions());
+        header(sb, "upstream_pool_total", "counter", "Destination connections wanted from upstream pools, by outcome.");
+        sb.append(PREFIX).append("upstream_pool_total{outcome=\"hit\"} ").append(getUpstreamPoolHits()).append('\n');
+        sb.append(PREFIX).append("upstream_pool_total{outcome=\"miss\"} ").append(getUpstreamPoolMisses()).append('\n');
+        counter(sb, "upstream_pool_discarded_total", "Pooled destination connections closed as expired or unhealthy.",
+                getUpstreamPoolDiscarded());
+        if (!backends.isEmpty()) {
+            header(sb, "backend_connections_active", "gauge", "Tcp connections assigned to each destination.");
+            for (Backend b : backends) {
+                sb.append(PREFIX).append("backend_connections_active{backend=\"").append(b).append("\"} ")
+                        .append(b.getActive()).append('\n');
+            }
+            header(sb, "backend_healthy", "gauge", "Whether each destination is in rotation.");
+            for (Backend b : backends) {
+                sb.append(PREFIX).append("backend_healthy{backend=\"").append(b).append("\"} ")
+                        .append(b.isHealthy() ? 1 : 0).append('\n');
+            }
+        }
+        summary(sb, connectTime);
+        summary(sb, lifetime);
+        summary(sb, chunkSize);
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        header(sb, name, "counter", help);
+        sb.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, long value) {
+        header(sb, name, "gauge", help);
+        sb.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder sb, Histogram h) {
+        Histogram.Snapshot s = h.snapshot();
+        header(sb, h.getName(), "summary", h.getHelp());
+        for (double q : QUANTILES) {
+            sb.append(PREFIX).append(h.getName()).append("{quantile=\"").append(q).append("\"} ")
+                    .append(s.getValueAt(q)).append('\n');
+        }
+        sb.append(PREFIX).append(h.getName()).append("_sum ").append(s.getSum()).append('\n');
+        sb.append(PREFIX).append(h.getName()).append("_count ").append(s.getCount()).append('\n');
+        gauge(sb, h.getName() + "_max", "Highest value of " + h.getName() + ".", s.getMax());
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return accepted.sum();
+    }
+
+    @Override
+    public long getAcceptFailures() {
+        return acceptFailures.sum();
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return getAcceptedConnections() - getClosedConnections() - getFailedConnections() - getReapedConnections();
+    }
+
+    @Override
+    public long getClosedConnections() {
+        return closed.sum();
+    }
+
+    @Override
+    public long getFailedConnections() {
+        long total = 0;
+        for (LongAdder f : failed) {
+            total += f.sum();
+        }
+        return total;
+    }
+
+    @Override
+    public Map<String, Long> getFailedConnectionsByState() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (ConnectionState s : ConnectionState.values()) {
+            result.put(s.name(), failed[s.ordinal()].sum());
+        }
+        return result;
+    }
+
+    @Override
+    public long getReapedConnections() {
+        long total = 0;
+        for (LongAdder r : reaped) {
+            total += r.sum();
+        }
+        return total;
+    }
+
+    @Override
+    public Map<String, Long> getReapedConnectionsByReason() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (Reaper.Reason r : Reaper.Reason.values()) {
+            result.put(r.name(), reaped[r.ordinal()].sum());
+        }
+        return result;
+    }
+
+    @Override
+    public long getShedConnections() {
+        long total = 0;
+        for (LongAdder s : shed) {
+            total += s.sum();
+        }
+        return total;
+    }
+
+    @Override
+    public Map<String, Long> getShedConnectionsByLimit() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (Admission.Limit l : Admission.Limit.values()) {
+            result.put(l.name(), shed[l.ordinal()].sum());
+        }
+        return result;
+    }
+
+    @Override
+    public long getQueuedConnections() {
+        return queued.sum();
+    }
+
+    @Override
+    public long getCaptureSkipped() {
+        return captureSkipped.sum();
+    }
+
+    @Override
+    public long getCaptureDiscarded() {
+        return captureDiscarded.sum();
+    }
+
+    @Override
+    public long getCaptureDropped() {
+        CaptureWriter writer = CaptureWriter.getShared();
+        return writer == null ? 0 : writer.getDroppedCount();
+    }
+
+    @Override
+    public long getCaptureSpilled() {
+        CaptureWriter writer = CaptureWriter.getShared();
+        return writer == null ? 0 : writer.getSpilledCount();
+    }
+
+    @Override
+    public long getBytesToDest() {
+        return bytesToDest.sum();
+    }
+
+    @Override
+    public long getBytesToClient() {
+        return bytesToClient.sum();
+    }
+
+    @Override
+    public long getUdpPacketsToDest() {
+        return udpPacketsToDest.sum();
+    }
+
+    @Override
+    public long getUdpPacketsToClient() {
+        return udpPacketsToClient.sum();
+    }
+
+    @Override
+    public long getUdpDropped() {
+        return udpDropped.sum();
+    }
+
+    @Override
+    public long getUdpThrottled() {
+        return udpThrottled.sum();
+    }
+
+    @Override
+    public long getThrottledMicrosToDest() {
+        return throttledNanosToDest.sum() / 1000;
+    }
+
+    @Override
+    public long getThrottledMicrosToClient() {
+        return throttledNanosToClient.sum() / 1000;
+    }
+
+    @Override
+    public long getActiveUdpSessions() {
+        return udpSessionsOpened.sum() - udpSessionsClosed.sum();
+    }
+
+    @Override
+    public long getUpstreamPoolHits() {
+        return upstreamPoolHits.sum();
+    }
+
+    @Override
+    public long getUpstreamPoolMisses() {
+        return upstreamPoolMisses.sum();
+    }
+
+    @Override
+    public long getUpstreamPoolDiscarded() {
+        return upstreamPoolDiscarded.sum();
+    }
+
+    @Override
+    public Map<String, Long> getBackendActiveConnections() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (Backend b : backends) {
+            result.put(b.toString(), (long) b.getActive());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Boolean> getBackendHealth() {
+        Map<String, Boolean> result = new LinkedHashMap<String, Boolean>();
+        for (Backend b : backends) {
+            result.put(b.toString(), b.isHealthy());
+        }
+        return result;
+    }
+
+    @Override
+    public long getConnectTimeMicrosP50() {
+        return connectTime.snapshot().getValueAt(0.5);
+    }
+
+    @Override
+    public long getConnectTimeMicrosP99() {
+        return connectTime.snapshot().getValueAt(0.99);
+    }
+
+    @Override
+    public long getConnectTimeMicrosMax() {
+        return connectTime.snapshot().getMax();
+    }
+
+    @Override
+    public long getLifetimeMillisP50() {
+        return lifetime.snapshot().getValueAt(0.5);
+    }
+
+    @Override
+    public long getLifetimeMillisP99() {
+        return lifetime.snapshot().getValueAt(0.99);
+    }
+
+    @Override
+    public long getChunkBytesP50() {
+        return chunkSize.snapshot().getValueAt(0.5);
+    }
+
+    @Override
+    public long getChunkBytesP99() {
+        return chunkSize.snapshot().getValueAt(0.99);
+    }
+}
@@ -0,0 +1,81 @@
+package markboydcode.socketproxy;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link markboydcode.socketproxy.Metrics}.
+ */
+public interface MetricsMXBean {
+
+    long getAcceptedConnections();
+
+    long getAcceptFailures();
+
+    long getActiveConnections();
+
+    long getClosedConnections();
+
+    long getFailedConnections();
+
+    Map<String, Long> getFailedConnectionsByState();
+
+    long getReapedConnections();
+
+    Map<String, Long> getReapedConnectionsByReason();
+
+    long getShedConnections();
+
+    Map<String, Long> getShedConnectionsByLimit();
+
+    long getQueuedConnections();
+
+    long getCaptureSkipped();
+
+    long getCaptureDiscarded();
+
+    long getCaptureDropped();
+
+    long getCaptureSpilled();
+
+    long getBytesToDest();
+
+    long getBytesToClient();
+
+    long getUdpPacketsToDest();
+
+    long getUdpPacketsToClient();
+
+    long getUdpDropped();
+
+    long getUdpThrottled();
+
+    long getThrottledMicrosToDest();
+
+    long getThrottledMicrosToClient();
+
+    long getActiveUdpSessions();
+
+    long getUpstreamPoolHits();
+
+    long getUpstreamPoolMisses();
+
+    long getUpstreamPoolDiscarded();
+
+    Map<String, Long> getBackendActiveConnections();
+
+    Map<String, Boolean> getBackendHealth();
+
+    long getConnectTimeMicrosP50();
+
+    long getConnectTimeMicrosP99();
+
+    long getConnectTimeMicrosMax();
+
+    long getLifetimeMillisP50();
+
+    long getLifetimeMillisP99();
+
+    long getChunkBytesP50();
+
+    long getChunkBytesP99();
+}
@@ -0,0 +1,65 @@
+package markboydcode.socketproxy;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Serves {@link markboydcode.socketproxy.Metrics} in the Prometheus text format at <code>/metrics</code> on the
+ * loopback interface only, from a single daemon thread of its own so that scraping never takes time from spooling.
+ */
+public class MetricsServer {
+
+    private final HttpServer server;
+
+    /**
+     * Binds the endpoint to the port on the loopback interface and starts serving.
+     *
+     * @param port
+     * @throws IOException if the port can't be bound
+     */
+    public MetricsServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                StringBuilder sb = new StringBuilder(4096);
+                Metrics.get().writePrometheus(sb);
+                byte[] body = sb.toString().getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    out.write(body);
+                } finally {
+                    out.close();
+                }
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "metrics_server");
+                t.setDaemon(true);
+                return t;
+            }
+        }));
+        server.start();
+        System.out.println("Metrics served at http://" + server.getAddress().getHostString() + ":"
+                + server.getAddress().getPort() + "/metrics");
+    }
+
+    /**
+     * Stops serving.
+     */
+    public void stop() {
+        server.stop(0);
+    }
+}
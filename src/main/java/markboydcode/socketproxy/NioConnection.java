@@ -0,0 +1,653 @@
+package markboydcode.socketproxy;
+
+import markboydcode.socketproxy.balance.Backend;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Date;
+
+/**
+ * Event driven counterpart of {@link markboydcode.socketproxy.ConnectionHandler} plus its two
+ * {@link markboydcode.socketproxy.Spooler}s. Walks through the same {@link markboydcode.socketproxy.ConnectionState}s,
+ * writes the same log file and console lines, but performs all of its i/o from the
+ * {@link markboydcode.socketproxy.NioEventLoop} that owns it rather than from dedicated threads.
+ */
+public class NioConnection implements Reaper.Reapable {
+
+    private final Route route;
+    private final Backend backend;
+    private InetAddress[] destAddresses;
+    private UnknownHostException resolveFailure;
+    private Connector connector;
+    private final Date startTS;
+    private final String id;
+
+    private ConnectionState state;
+    private CaptureFile captureFile;
+    private CaptureWriter.Target captureTarget;
+
+    private final SocketChannel clientChannel;
+    private SelectionKey clientKey;
+    private Pipe clientToDest;
+
+    private SocketChannel destChannel;
+    private SelectionKey destKey;
+    private Pipe destToClient;
+
+    private volatile long lastActivityTS = 0;
+    private long connectStartNanos;
+    private NioEventLoop loop;
+    private Reaper.Timeout reaperTimeout;
+    private Bandwidth.Share bandwidthShare;
+    private boolean throttled = false;
+
+    /**
+     * Creates a connection for the accepted client channel. Nothing happens until the owning event loop calls
+     * {@link #start(NioEventLoop, java.nio.channels.Selector)}.
+     *
+     * @param clientChannel
+     * @param route
+     * @param backend chosen by the route's balancer, counting this connection from now on
+     */
+    public NioConnection(SocketChannel clientChannel, Route route, Backend backend) {
+        this.state = ConnectionState.RECEIVED;
+        this.clientChannel = clientChannel;
+        this.route = route;
+        this.backend = backend;
+        backend.connectionOpened();
+        this.id = ConnectionHandler.nextId(route.getLogPrefix());
+        this.startTS = new Date();
+        Metrics.get().connectionAccepted();
+    }
+
+    /**
+     * Looks up the addresses of the backend's host. Called before the connection is handed to its event loop, which
+     * mustn't block on name lookups, even when a pooled connection may spare connecting since the pool can run dry in
+     * the meantime. A failure terminates the connection once started.
+     */
+    void resolve() {
+        try {
+            destAddresses = Resolver.resolve(backend.getHost());
+        } catch (UnknownHostException e) {
+            resolveFailure = e;
+        }
+    }
+
+    /**
+     * Opens the log file, registers the client channel and starts the non-blocking connect to the destination.
+     * Called on the event loop's thread.
+     *
+     * @param loop     owning this connection from now on
+     * @param selector of the loop
+     */
+    void start(NioEventLoop loop, Selector selector) {
+        this.loop = loop;
+        System.out.println(this.id + " created @ " + this.startTS);
+
+        // set up logging, unless the route's policy leaves this connection out
+        CapturePolicy policy = route.getCapturePolicy();
+        boolean capture = route.isCapture();
+        if (capture && policy != null && !policy.selects(clientChannel.socket().getInetAddress())) {
+            Metrics.get().captureSkipped();
+            capture = false;
+        }
+        if (capture) {
+            try {
+                this.captureFile = policy != null && policy.isFailedOnly()
+                        ? CaptureFile.hold(this.id, route.getCaptureFormat(), this.startTS.getTime())
+                        : CaptureFile.open(this.id, route.getCaptureFormat(), this.startTS.getTime());
+            } catch (Exception e) {
+                terminate("Unable to open file for logging.", e);
+                return;
+            }
+        }
+
+        // register client channel, not interested in reading until the destination is connected
+        this.state = ConnectionState.CLIENT_IO;
+        try {
+            clientChannel.configureBlocking(false);
+            clientKey = clientChannel.register(selector, 0, this);
+        } catch (IOException e) {
+            terminate(id + " Unable to register client channel.", e);
+            return;
+        }
+
+        // resolved before the connection was handed over, only needed without a pooled connection
+        this.state = ConnectionState.RESOLVING;
+        UpstreamPool pool = backend.getUpstreamPool();
+        SocketChannel pooled = pool != null ? pool.take() : null;
+        if (pooled == null && resolveFailure != null) {
+            terminate(id + " Unable to resolve destination " + backend + ".", resolveFailure);
+            return;
+        }
+
+        // connect to destination
+        this.state = ConnectionState.CONNECTING;
+        connectStartNanos = System.nanoTime();
+        try {
+            if (pooled != null) {
+                pooled.configureBlocking(false);
+                connected(pooled, pooled.register(selector, 0, this));
+                return;
+            }
+            connector = new Connector(backend.getHost(), destAddresses, backend.getPort(),
+                    route.getConnectTimeoutMillis(), selector, this);
+            SocketChannel channel = connector.getConnected();
+            if (channel != null) {
+                connected(channel, channel.keyFor(selector));
+            }
+        } catch (IOException e) {
+            terminate(id + " Unable to connect to destination " + backend + ".", e);
+        }
+    }
+
+    /**
+     * Indicates that the destination connection is still being established, meaning the event loop has to call
+     * {@link #poll(long)} once {@link #getWakeup()} has passed.
+     *
+     * @return
+     */
+    boolean isConnecting() {
+        return state == ConnectionState.CONNECTING && connector != null;
+    }
+
+    /**
+     * Returns when {@link #poll(long)} needs to be called next while connecting, in millis.
+     *
+     * @return
+     */
+    long getWakeup() {
+        return connector.getWakeup();
+    }
+
+    /**
+     * Starts further connection attempts or terminates the connection once the connect timeout has passed. Called on
+     * the event loop's thread.
+     *
+     * @param now
+     */
+    void poll(long now) {
+        try {
+            connector.poll(now);
+            SocketChannel channel = connector.getConnected();
+            if (channel != null && destChannel == null) {
+                connected(channel, channel.keyFor(clientKey.selector()));
+            }
+        } catch (IOException e) {
+            terminate(id + " Unable to connect to destination " + backend + ".", e);
+        }
+    }
+
+    /**
+     * Sets up both directions once the destination connection is established.
+     */
+    private void connected(SocketChannel channel, SelectionKey key) {
+        Metrics.get().destinationConnected(System.nanoTime() - connectStartNanos);
+        destChannel = channel;
+        destKey = key;
+        connector = null;
+        this.state = ConnectionState.DEST_IO;
+        if (route.getBandwidth() != null) {
+            bandwidthShare = route.getBandwidth().share(clientChannel.socket().getInetAddress());
+        }
+        clientToDest = new Pipe(LogMoniker.TODEST, clientChannel, destChannel, createLogger(LogMoniker.TODEST),
+                route.getReadAheadBytes());
+        destToClient = new Pipe(LogMoniker.TOCLNT, destChannel, clientChannel, createLogger(LogMoniker.TOCLNT),
+                route.getReadAheadBytes());
+
+        this.state = ConnectionState.SPOOLING;
+        updateInterest();
+        reaperTimeout = Reaper.track(this, route.getIdleTimeoutMillis(), route.getMaxLifetimeMillis());
+    }
+
+    /**
+     * Creates the logger of a direction, handing blocks to the shared capture writer if there is one, or returns null
+     * if traffic isn't captured. Captures held in memory until the connection ends are written directly. Limited to
+     * the bytes per direction of the route's capture policy.
+     *
+     * @param direction
+     * @return
+     */
+    private ConnectionLogger createLogger(LogMoniker direction) {
+        if (captureFile == null) {
+            return null;
+        }
+        CapturePolicy policy = route.getCapturePolicy();
+        CaptureWriter writer = policy != null && policy.isFailedOnly() ? null : CaptureWriter.getShared();
+        ConnectionLogger logger;
+        if (writer == null) {
+            logger = new ConnectionLogger(direction, captureFile);
+        }
+        else {
+            if (captureTarget == null) {
+                captureTarget = writer.open(captureFile);
+            }
+            logger = new ConnectionLogger(direction, writer, captureTarget);
+        }
+        if (policy != null && policy.getMaxBytes() > 0) {
+            logger.setMaxBytes(policy.getMaxBytes());
+        }
+        return logger;
+    }
+
+    /**
+     * Dispatches readiness of one of this connection's keys. Called on the event loop's thread.
+     *
+     * @param key
+     */
+    void handle(SelectionKey key) {
+        if (state == ConnectionState.TERMINATING || state == ConnectionState.TERMINATED) {
+            return;
+        }
+        try {
+            if (state == ConnectionState.CONNECTING) {
+                SocketChannel channel;
+                try {
+                    channel = connector.finish(key);
+                } catch (IOException e) {
+                    terminate(id + " Unable to connect to destination " + backend + ".", e);
+                    return;
+                }
+                if (channel != null) {
+                    connected(channel, channel.keyFor(key.selector()));
+                }
+                return;
+            }
+            Pipe in = key == clientKey ? clientToDest : destToClient;
+            Pipe out = key == clientKey ? destToClient : clientToDest;
+
+            if (key.isWritable() && !out.flush()) {
+                return;
+            }
+            if (key.isReadable() && !in.spool()) {
+                return;
+            }
+            updateInterest();
+        } catch (CancelledKeyException e) {
+            terminate(id + " selection key cancelled.", e);
+        }
+    }
+
+    /**
+     * Returns the earliest time a pipe waiting for bandwidth limits may read again.
+     *
+     * @return nanos as of {@link System#nanoTime()}
+     */
+    long getResumeAt() {
+        if (clientToDest.resumeAt == 0 || destToClient.resumeAt == 0) {
+            return clientToDest.resumeAt + destToClient.resumeAt;
+        }
+        return Math.min(clientToDest.resumeAt, destToClient.resumeAt);
+    }
+
+    /**
+     * Lets pipes whose wait for bandwidth limits is over read again. Called on the event loop's thread.
+     *
+     * @param now nanos as of {@link System#nanoTime()}
+     * @return false once no pipe waits anymore or the connection has terminated
+     */
+    boolean resume(long now) {
+        if (state != ConnectionState.SPOOLING) {
+            throttled = false;
+            return false;
+        }
+        boolean resumed = clientToDest.resume(now);
+        resumed |= destToClient.resume(now);
+        if (resumed) {
+            updateInterest();
+        }
+        throttled = clientToDest.resumeAt != 0 || destToClient.resumeAt != 0;
+        return throttled;
+    }
+
+    /**
+     * Sets the interest of both keys from the current state of both pipes: read from a side only while the bytes read
+     * earlier and still waiting to be written to the other side stay below the pipe's limit and the pipe isn't waiting
+     * for bandwidth limits, and ask for writability only while such bytes exist.
+     */
+    private void updateInterest() {
+        clientKey.interestOps((clientToDest.isFull() ? 0 : SelectionKey.OP_READ)
+                | (destToClient.isDraining() ? SelectionKey.OP_WRITE : 0));
+        destKey.interestOps((destToClient.isFull() ? 0 : SelectionKey.OP_READ)
+                | (clientToDest.isDraining() ? SelectionKey.OP_WRITE : 0));
+    }
+
+    /**
+     * Changes state to {@link markboydcode.socketproxy.ConnectionState#TERMINATING}, closes client and destination
+     * channels if they exist and changes state to {@link markboydcode.socketproxy.ConnectionState#TERMINATED}
+     */
+    public void terminate(String reason, Exception e) {
+        if (state != ConnectionState.TERMINATING &&
+                state != ConnectionState.TERMINATED) {
+            System.out.println(id + " terminating: " + reason);
+            if (e != null) {
+                e.printStackTrace();
+            }
+            logClosedEvent(e != null ? e.toString() : reason);
+            Metrics.get().connectionFailed(state, System.currentTimeMillis() - startTS.getTime());
+            if (captureFile != null) {
+                // a capture held until the connection ends is written only for failures
+                captureFile.keep();
+            }
+
+            _terminate();
+        }
+    }
+
+    /**
+     * Terminates this connection as expected like when a client or server properly disconnected.
+     */
+    public void close() {
+        if (state != ConnectionState.TERMINATING &&
+                state != ConnectionState.TERMINATED) {
+            logClosedEvent(null);
+            Metrics.get().connectionClosed(System.currentTimeMillis() - startTS.getTime());
+            _terminate();
+        }
+    }
+
+    /**
+     * Hands termination for having been idle or open too long to the owning event loop, which alone may touch this
+     * connection. Reported apart from failures since neither side did anything wrong.
+     *
+     * @param reason
+     * @param millis the connection has been idle or open for
+     */
+    @Override
+    public void reap(final Reaper.Reason reason, final long millis) {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (state == ConnectionState.TERMINATING || state == ConnectionState.TERMINATED) {
+                    return;
+                }
+                String why = ConnectionHandler.formatReapReason(reason, millis);
+                System.out.println(id + " reaping: " + why);
+                System.out.println(ConnectionHandler.formatClosedEvent(id, startTS,
+                        clientToDest != null ? clientToDest.getByteCount() : 0,
+                        destToClient != null ? destToClient.getByteCount() : 0, lastActivityTS, ", reaped " + why));
+                Metrics.get().connectionReaped(reason, System.currentTimeMillis() - startTS.getTime());
+                _terminate();
+            }
+        });
+    }
+
+    @Override
+    public long getStartMillis() {
+        return startTS.getTime();
+    }
+
+    @Override
+    public long getLastActivity() {
+        return lastActivityTS;
+    }
+
+    private void logClosedEvent(String failure) {
+        System.out.println(ConnectionHandler.formatClosedEvent(id, startTS,
+                clientToDest != null ? clientToDest.getByteCount() : 0,
+                destToClient != null ? destToClient.getByteCount() : 0, lastActivityTS, state, failure));
+    }
+
+    private void _terminate() {
+        this.state = ConnectionState.TERMINATING;
+        if (reaperTimeout != null) {
+            reaperTimeout.cancel();
+        }
+        if (route.getAdmission() != null) {
+            route.getAdmission().release(clientChannel.socket().getInetAddress());
+        }
+        if (bandwidthShare != null) {
+            bandwidthShare.release();
+        }
+        backend.connectionClosed();
+        cancelAndClose(clientKey, clientChannel);
+        cancelAndClose(destKey, destChannel);
+        if (connector != null) {
+            connector.abandon();
+        }
+        if (clientToDest != null) {
+            clientToDest.release();
+        }
+        if (destToClient != null) {
+            destToClient.release();
+        }
+
+        if (this.captureTarget != null) {
+            // flushed and closed by the writer once everything logged before has been written
+            this.captureTarget.close();
+        }
+        else if (this.captureFile != null) {
+            this.captureFile.close();
+        }
+
+        this.state = ConnectionState.TERMINATED;
+    }
+
+    private void cancelAndClose(SelectionKey key, SocketChannel channel) {
+        if (key != null) {
+            key.cancel();
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore it
+            }
+        }
+    }
+
+    public String getId() {
+        return this.id;
+    }
+
+    /**
+     * Moves bytes in one direction. Reading from the source is suspended while the chunks previously read and not yet
+     * completely written to the sink reach the read ahead limit, which bounds the memory of a connection per
+     * direction. With the default limit of zero that is a single chunk. Pending chunks are written together with a
+     * single gathering write. Without a logger the buffers are direct so that uncaptured bytes never get copied into
+     * the java heap. A buffer is taken from the {@link markboydcode.socketproxy.BufferPool} when readable bytes arrive
+     * and given back once they have been written, so idle connections hold no buffer at all.
+     */
+    private class Pipe {
+        private final String name;
+        private final LogMoniker direction;
+        private final SocketChannel source;
+        private final SocketChannel sink;
+        private final ConnectionLogger logger;
+        private final BufferPool pool;
+        private final BufferPool.Sizer sizer = new BufferPool.Sizer(BufferPool.MIN_SIZE, BufferPool.MAX_SIZE);
+        private final int readAhead;
+        private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+        private int pendingBytes = 0;
+        private ByteBuffer[] gather = new ByteBuffer[0];
+        private ByteBuffer buffer;
+        private int bufferSize;
+        private long byteCount = 0;
+        private long resumeAt = 0;
+        private boolean finished = false;
+
+        Pipe(LogMoniker dir, SocketChannel source, SocketChannel sink, ConnectionLogger logger, int readAhead) {
+            this.name = id + "_pipe_" + dir.getString();
+            this.direction = dir;
+            this.source = source;
+            this.sink = sink;
+            this.logger = logger;
+            this.readAhead = readAhead;
+            this.pool = logger == null ? BufferPool.direct() : BufferPool.heap();
+            this.bufferSize = logger == null ? Spooler.DIRECT_BUFFER_SIZE : BufferPool.MIN_SIZE;
+        }
+
+        /**
+         * Indicates that bytes read earlier still await being written to the sink.
+         *
+         * @return
+         */
+        boolean isDraining() {
+            return !pending.isEmpty();
+        }
+
+        /**
+         * Indicates that no more bytes are to be read from the source until some pending ones have been written or the
+         * wait for bandwidth limits is over, or at all since the source has ended.
+         *
+         * @return
+         */
+        boolean isFull() {
+            return finished || resumeAt != 0 || (!pending.isEmpty() && pendingBytes >= readAhead);
+        }
+
+        /**
+         * Reads what is available from the source and writes as much of what is pending as the sink accepts. Once the
+         * source has ended the connection is closed as soon as the chunks read before have been written, like the
+         * thread engine's {@link markboydcode.socketproxy.ReadAheadQueue#finish()}.
+         *
+         * @return false if the connection was closed or terminated as a result
+         */
+        boolean spool() {
+            if (buffer == null) {
+                buffer = pool.acquire(bufferSize);
+            }
+            int bytes;
+            try {
+                bytes = source.read(buffer);
+            } catch (Exception e) {
+                terminate(name + " incurred reading exception.", e);
+                return false;
+            }
+            if (bytes == -1) {
+                pool.release(buffer);
+                buffer = null;
+                finished = true;
+                if (pending.isEmpty()) {
+                    close();
+                    return false;
+                }
+                return true;
+            }
+            if (bytes == 0) {
+                pool.release(buffer);
+                buffer = null;
+                return true;
+            }
+            bufferSize = sizer.record(bytes, buffer.capacity());
+            buffer.flip();
+            pending.add(buffer);
+            pendingBytes += bytes;
+            buffer = null;
+            if (bandwidthShare != null) {
+                throttle(bytes);
+            }
+            return flush();
+        }
+
+        /**
+         * Ends the wait for bandwidth limits if it is over.
+         *
+         * @param now nanos as of {@link System#nanoTime()}
+         * @return true if the pipe may read again as of now
+         */
+        boolean resume(long now) {
+            if (resumeAt != 0 && now - resumeAt >= 0) {
+                resumeAt = 0;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Takes the bytes read from the connection's share of bandwidth limits and, if they exceed it, stops reading
+         * until the limits allow more. The bytes themselves are written without delay.
+         *
+         * @param bytes
+         */
+        private void throttle(int bytes) {
+            long wait = bandwidthShare.take(bytes);
+            if (wait <= 0) {
+                return;
+            }
+            Metrics.get().throttled(direction, wait);
+            resumeAt = System.nanoTime() + wait;
+            if (resumeAt == 0) {
+                resumeAt = 1;
+            }
+            if (!throttled) {
+                throttled = true;
+                loop.throttled(NioConnection.this);
+            }
+        }
+
+        /**
+         * Writes pending chunks to the sink. Once a chunk has been written completely it is counted and logged and
+         * its buffer goes back to the pool. Closes the connection once the last chunk of a source that ended has been
+         * written.
+         *
+         * @return false if the connection was closed or terminated as a result
+         */
+        boolean flush() {
+            if (!isDraining()) {
+                return true;
+            }
+            try {
+                if (pending.size() == 1) {
+                    sink.write(pending.peek());
+                }
+                else {
+                    gather = pending.toArray(gather);
+                    sink.write(gather, 0, pending.size());
+                }
+            } catch (Exception e) {
+                terminate(name + " incurred writing exception.", e);
+                return false;
+            }
+            while (!pending.isEmpty() && !pending.peek().hasRemaining()) {
+                ByteBuffer chunk = pending.poll();
+                int bytes = chunk.limit();
+                pendingBytes -= bytes;
+                this.byteCount += bytes;
+                lastActivityTS = System.currentTimeMillis();
+                Metrics.get().spooled(direction, bytes);
+                if (this.logger != null) {
+                    try {
+                        this.logger.log(bytes, chunk.array());
+                    } catch (Exception e) {
+                        pool.release(chunk);
+                        terminate(name + " incurred logging exception.", e);
+                        return false;
+                    }
+                }
+                pool.release(chunk);
+            }
+            if (finished && pending.isEmpty()) {
+                close();
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Gives all buffers back to the pool. Only called on the event loop's thread.
+         */
+        void release() {
+            if (buffer != null) {
+                pool.release(buffer);
+                buffer = null;
+            }
+            for (ByteBuffer chunk : pending) {
+                pool.release(chunk);
+            }
+            pending.clear();
+            pendingBytes = 0;
+        }
+
+        long getByteCount() {
+            return byteCount;
+        }
+    }
+}
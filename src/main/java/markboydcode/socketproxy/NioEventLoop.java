@@ -0,0 +1,212 @@
+package markboydcode.socketproxy;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Single threaded selector loop servicing the i/o of any number of {@link markboydcode.socketproxy.NioConnection}s.
+ * All state of a connection is only ever touched by the loop that owns it so connections need no locking. The loop
+ * also keeps track of the connections still connecting to their destination, waking up in time to start their next
+ * connect attempt or time them out, and of the connections waiting for bandwidth limits, waking up in time to let them
+ * read again.
+ */
+public class NioEventLoop implements Runnable {
+
+    private final Selector selector;
+    private final Queue<NioConnection> pending = new ConcurrentLinkedQueue<NioConnection>();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final List<NioConnection> connecting = new ArrayList<NioConnection>();
+    private final List<NioConnection> throttled = new ArrayList<NioConnection>();
+    private final String name;
+    private volatile boolean terminated = false;
+
+    private NioEventLoop(String name) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Creates an event loop and starts its underlying suitably named thread.
+     *
+     * @param name
+     * @return
+     * @throws IOException if the selector can't be opened
+     */
+    public static NioEventLoop start(String name) throws IOException {
+        NioEventLoop loop = new NioEventLoop(name);
+        Thread t = new Thread(loop);
+        t.setName(name);
+        t.start();
+        return loop;
+    }
+
+    /**
+     * Hands a newly accepted connection to this loop. May be called from any thread. The connection is started on
+     * the loop's own thread during its next pass.
+     *
+     * @param conn
+     */
+    public void register(NioConnection conn) {
+        pending.add(conn);
+        selector.wakeup();
+    }
+
+    /**
+     * Hands a batch of newly accepted connections to this loop at the cost of a single wakeup. May be called from any
+     * thread.
+     *
+     * @param conns
+     */
+    public void register(Collection<NioConnection> conns) {
+        pending.addAll(conns);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the task on the loop's thread during its next pass, like terminating a connection the loop owns. May be
+     * called from any thread.
+     *
+     * @param task
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Keeps track of a connection that stopped reading for bandwidth limits until it may read again. Only called on
+     * the loop's thread.
+     *
+     * @param conn
+     */
+    void throttled(NioConnection conn) {
+        throttled.add(conn);
+    }
+
+    @Override
+    public void run() {
+        BufferPool.useThreadCache();
+        while (!terminated) {
+            try {
+                long timeout = Math.min(nextWakeup() - System.currentTimeMillis(), nextResume());
+                if (connecting.isEmpty() && throttled.isEmpty()) {
+                    selector.select();
+                }
+                else if (timeout > 0) {
+                    selector.select(timeout);
+                }
+                else {
+                    selector.selectNow();
+                }
+            } catch (IOException e) {
+                System.err.println(name + " unable to select. Terminating loop...");
+                e.printStackTrace();
+                return;
+            }
+
+            NioConnection conn;
+            while ((conn = pending.poll()) != null) {
+                conn.start(this, selector);
+                if (conn.isConnecting()) {
+                    connecting.add(conn);
+                }
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                ((NioConnection) key.attachment()).handle(key);
+            }
+
+            pollConnecting();
+            pollThrottled();
+        }
+    }
+
+    /**
+     * Returns the time until the earliest throttled connection may read again, in millis rounded up.
+     *
+     * @return
+     */
+    private long nextResume() {
+        if (throttled.isEmpty()) {
+            return Long.MAX_VALUE;
+        }
+        long now = System.nanoTime();
+        long wait = Long.MAX_VALUE;
+        for (NioConnection conn : throttled) {
+            wait = Math.min(wait, conn.getResumeAt() - now);
+        }
+        return (wait + 999999) / 1000000;
+    }
+
+    /**
+     * Lets throttled connections whose wait is over read again and forgets them.
+     */
+    private void pollThrottled() {
+        if (throttled.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        Iterator<NioConnection> it = throttled.iterator();
+        while (it.hasNext()) {
+            if (!it.next().resume(now)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the earliest time a connecting connection needs to be polled, in millis.
+     *
+     * @return
+     */
+    private long nextWakeup() {
+        long wakeup = Long.MAX_VALUE;
+        for (NioConnection conn : connecting) {
+            if (conn.isConnecting()) {
+                wakeup = Math.min(wakeup, conn.getWakeup());
+            }
+        }
+        return wakeup;
+    }
+
+    /**
+     * Polls connecting connections whose next connect attempt or timeout is due and forgets those that have connected
+     * or terminated since.
+     */
+    private void pollConnecting() {
+        long now = System.currentTimeMillis();
+        Iterator<NioConnection> it = connecting.iterator();
+        while (it.hasNext()) {
+            NioConnection conn = it.next();
+            if (conn.isConnecting() && now >= conn.getWakeup()) {
+                conn.poll(now);
+            }
+            if (!conn.isConnecting()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Stops the loop after its current pass. Connections it owns are left as they are.
+     */
+    public void terminate() {
+        this.terminated = true;
+        selector.wakeup();
+    }
+}
@@ -0,0 +1,97 @@
+package markboydcode.socketproxy;
+
+import markboydcode.socketproxy.balance.Backend;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking alternative to {@link markboydcode.socketproxy.Listener}. Accepts connections with the route's
+ * {@link markboydcode.socketproxy.Acceptor}s and hands each to one of a small, fixed set of
+ * {@link markboydcode.socketproxy.NioEventLoop} threads which then spool the conversation without dedicating any
+ * threads to the connection. The loops are either the listener's own or shared with the listeners of other routes.
+ */
+public class NioListener implements Runnable {
+
+    private final Route route;
+    private final int loopCount;
+    private NioEventLoop[] loops;
+
+    /**
+     * Listener for socket proxy meaning it opens the ServerSocketChannel and distributes connections round robin
+     * across its event loops.
+     *
+     * @param route
+     * @param loopCount number of event loop threads, must be at least one
+     */
+    public NioListener(Route route, int loopCount) {
+        System.out.println("NIO Listener started, " + route + (route.isCapture() ? "" : " without capture")
+                + " with " + loopCount + " event loops @ " + new Date());
+
+        this.route = route;
+        this.loopCount = loopCount;
+    }
+
+    /**
+     * Listener distributing connections round robin across event loops shared with other listeners.
+     *
+     * @param route
+     * @param loops started event loops, at least one
+     */
+    public NioListener(Route route, NioEventLoop[] loops) {
+        this(route, loops.length);
+        this.loops = loops;
+    }
+
+    @Override
+    public void run() {
+        ServerSocketChannel[] channels;
+        try {
+            channels = Acceptor.open(route.getPort(), route.getBacklog(), route.getAcceptors());
+
+            if (loops == null) {
+                loops = new NioEventLoop[loopCount];
+                for (int i = 0; i < loops.length; i++) {
+                    loops[i] = NioEventLoop.start("nio_loop_" + i);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to create connection listener on port " + route.getPort());
+            e.printStackTrace();
+            System.exit(1);
+            return;
+        }
+        final AtomicInteger next = new AtomicInteger();
+
+        Acceptor.serve("acceptor_" + route.getPort(), channels, route.getAdmission(), new Acceptor.Handler() {
+            @Override
+            public void accepted(List<SocketChannel> batch) {
+                // spread round robin, each loop woken up once per batch
+                List<List<NioConnection>> perLoop = new ArrayList<List<NioConnection>>(loops.length);
+                for (int i = 0; i < loops.length; i++) {
+                    perLoop.add(new ArrayList<NioConnection>());
+                }
+                // reduced first, first + i would overflow once the counter nears Integer.MAX_VALUE
+                int first = Math.floorMod(next.getAndAdd(batch.size()), loops.length);
+                for (int i = 0; i < batch.size(); i++) {
+                    SocketChannel s = batch.get(i);
+                    // chosen and resolved here rather than on the event loop, which mustn't block on name lookups
+                    Backend backend = route.getBalancer().choose(s.socket().getInetAddress());
+                    NioConnection conn = new NioConnection(s, route, backend);
+                    conn.resolve();
+                    perLoop.get((first + i) % loops.length).add(conn);
+                }
+                for (int i = 0; i < loops.length; i++) {
+                    if (!perLoop.get(i).isEmpty()) {
+                        loops[i].register(perLoop.get(i));
+                    }
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,120 @@
+package markboydcode.socketproxy;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Chunks of one direction of a connection read ahead of being written, bounded by the number of bytes they hold. The
+ * reader blocks once the limit is reached, which stops it from reading and so lets tcp flow control push back on the
+ * sender, while the writer takes all queued chunks at once so that it can write them with a single call. A chunk is
+ * always accepted while the queue is empty so that a limit below the chunk size doesn't stall the connection.
+ * <p>
+ * Guarded by an explicit lock rather than monitors so that virtual threads waiting on it don't pin their carriers.
+ */
+class ReadAheadQueue {
+
+    private final int limit;
+    private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<ByteBuffer>();
+    private final Lock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition notEmpty = lock.newCondition();
+    private int bytes = 0;
+    private boolean finished = false;
+    private boolean closed = false;
+
+    /**
+     * @param limit bytes queued beyond which the reader has to wait
+     */
+    ReadAheadQueue(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Queues a chunk, waiting while the queue is full.
+     *
+     * @param chunk flipped, ready to be written
+     * @return false if the queue was closed, in which case the chunk remains the caller's
+     * @throws InterruptedException
+     */
+    boolean put(ByteBuffer chunk) throws InterruptedException {
+        lock.lock();
+        try {
+            while (!closed && bytes > 0 && bytes + chunk.remaining() > limit) {
+                notFull.await();
+            }
+            if (closed) {
+                return false;
+            }
+            chunks.add(chunk);
+            bytes += chunk.remaining();
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks the end of the stream. The writer takes what is still queued and then learns of the end.
+     */
+    void finish() {
+        lock.lock();
+        try {
+            finished = true;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves all queued chunks to the list, waiting while there are none.
+     *
+     * @param into
+     * @return false if the stream ended and everything was taken, or the queue was closed
+     * @throws InterruptedException
+     */
+    boolean takeAll(List<ByteBuffer> into) throws InterruptedException {
+        lock.lock();
+        try {
+            while (!closed && !finished && chunks.isEmpty()) {
+                notEmpty.await();
+            }
+            if (closed || chunks.isEmpty()) {
+                return false;
+            }
+            into.addAll(chunks);
+            chunks.clear();
+            bytes = 0;
+            notFull.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the queue, waking up both sides, and releases the chunks nobody will write anymore.
+     *
+     * @param pool the chunks are released to
+     */
+    void close(BufferPool pool) {
+        lock.lock();
+        try {
+            closed = true;
+            for (ByteBuffer chunk : chunks) {
+                pool.release(chunk);
+            }
+            chunks.clear();
+            bytes = 0;
+            notFull.signal();
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package markboydcode.socketproxy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Terminates tcp connections that have been idle or open for too long, for all connections of the process from a
+ * single thread. Connections are kept on a hashed timing wheel of {@link #WHEEL_SIZE} slots that advances one slot
+ * every {@link #TICK_MILLIS}, each connection in the slot of its earliest deadline. A slot holds the connections whose
+ * deadline falls in any revolution of the wheel, with the number of revolutions still to go, so adding a connection
+ * and advancing the wheel cost the same however many connections there are.
+ * <p>
+ * Spooling only ever writes the time of the last activity of a connection. The reaper reads it once the connection's
+ * slot comes up and, if the connection has been active since, moves it to the slot of its new deadline rather than
+ * terminating it. Hence deadlines are enforced with a precision of one tick, and stale reads of the last activity
+ * only delay reaping.
+ * <p>
+ * A connection that ended by itself cancels its timeout, which is dropped the next time its slot comes up, at the
+ * latest one revolution later.
+ */
+public class Reaper implements Runnable {
+
+    static final long TICK_MILLIS = 1000;
+    static final int WHEEL_SIZE = 512;
+
+    /**
+     * Why a connection was reaped.
+     */
+    public enum Reason {
+        /**
+         * No bytes passed in either direction for longer than the idle timeout.
+         */
+        IDLE,
+        /**
+         * Open longer than the maximum lifetime, however active.
+         */
+        LIFETIME
+    }
+
+    /**
+     * A connection the reaper can terminate.
+     */
+    public interface Reapable {
+        /**
+         * @return millis the connection was accepted at
+         */
+        long getStartMillis();
+
+        /**
+         * @return millis of the last time bytes passed through the connection, zero if they never did
+         */
+        long getLastActivity();
+
+        /**
+         * Terminates the connection. Called on the reaper's thread.
+         *
+         * @param reason
+         * @param millis the connection has been idle or open for
+         */
+        void reap(Reason reason, long millis);
+    }
+
+    /**
+     * Handle of a connection's place on the wheel.
+     */
+    public static final class Timeout {
+        private final Reapable conn;
+        private final long idleMillis;
+        private final long lifetimeMillis;
+        private int rounds;
+        private volatile boolean cancelled = false;
+
+        private Timeout(Reapable conn, long idleMillis, long lifetimeMillis) {
+            this.conn = conn;
+            this.idleMillis = idleMillis;
+            this.lifetimeMillis = lifetimeMillis;
+        }
+
+        /**
+         * Stops tracking the connection. May be called from any thread.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private static Reaper instance;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final List<Timeout>[] wheel = new List[WHEEL_SIZE];
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+    private final List<Timeout> due = new ArrayList<Timeout>();
+    private long tick = 0;
+
+    private Reaper() {
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new ArrayList<Timeout>();
+        }
+    }
+
+    /**
+     * Starts tracking a connection, starting the reaper's thread on first use.
+     *
+     * @param conn
+     * @param idleMillis     the connection may go without activity, zero for no limit
+     * @param lifetimeMillis the connection may stay open, zero for no limit
+     * @return handle to cancel tracking with once the connection has ended, or null if there are no limits
+     */
+    public static Timeout track(Reapable conn, long idleMillis, long lifetimeMillis) {
+        if (idleMillis <= 0 && lifetimeMillis <= 0) {
+            return null;
+        }
+        Timeout t = new Timeout(conn, idleMillis, lifetimeMillis);
+        get().added.add(t);
+        return t;
+    }
+
+    private static synchronized Reaper get() {
+        if (instance == null) {
+            instance = new Reaper();
+            Thread t = new Thread(instance);
+            t.setName("reaper");
+            t.setDaemon(true);
+            t.start();
+        }
+        return instance;
+    }
+
+    @Override
+    public void run() {
+        long next = System.currentTimeMillis() + TICK_MILLIS;
+        while (true) {
+            long now = System.currentTimeMillis();
+            if (now < next) {
+                try {
+                    Thread.sleep(next - now);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            next += TICK_MILLIS;
+            try {
+                advance(now);
+            } catch (Exception e) {
+                System.err.println("Reaper unable to reap connections: " + e);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Moves newly tracked connections onto the wheel and checks those of the slot that comes up.
+     *
+     * @param now
+     */
+    private void advance(long now) {
+        Timeout t;
+        while ((t = added.poll()) != null) {
+            schedule(t, now);
+        }
+
+        tick++;
+        List<Timeout> slot = wheel[(int) (tick % WHEEL_SIZE)];
+        int kept = 0;
+        for (int i = 0; i < slot.size(); i++) {
+            t = slot.get(i);
+            if (t.cancelled) {
+                continue;
+            }
+            if (t.rounds > 0) {
+                t.rounds--;
+                slot.set(kept++, t);
+                continue;
+            }
+            due.add(t);
+        }
+        slot.subList(kept, slot.size()).clear();
+
+        for (Timeout d : due) {
+            check(d, now);
+        }
+        due.clear();
+    }
+
+    /**
+     * Reaps the connection if one of its deadlines has passed, or puts it in the slot of the earliest one otherwise.
+     */
+    private void check(Timeout t, long now) {
+        long start = t.conn.getStartMillis();
+        long last = Math.max(start, t.conn.getLastActivity());
+        if (t.lifetimeMillis > 0 && now - start >= t.lifetimeMillis) {
+            t.conn.reap(Reason.LIFETIME, now - start);
+            return;
+        }
+        if (t.idleMillis > 0 && now - last >= t.idleMillis) {
+            t.conn.reap(Reason.IDLE, now - last);
+            return;
+        }
+        schedule(t, now);
+    }
+
+    private void schedule(Timeout t, long now) {
+        long start = t.conn.getStartMillis();
+        long deadline = Long.MAX_VALUE;
+        if (t.lifetimeMillis > 0) {
+            deadline = start + t.lifetimeMillis;
+        }
+        if (t.idleMillis > 0) {
+            deadline = Math.min(deadline, Math.max(start, t.conn.getLastActivity()) + t.idleMillis);
+        }
+        long ticks = Math.max(1, (deadline - now + TICK_MILLIS - 1) / TICK_MILLIS);
+        t.rounds = (int) ((ticks - 1) / WHEEL_SIZE);
+        wheel[(int) ((tick + ticks) % WHEEL_SIZE)].add(t);
+    }
+}
@@ -0,0 +1,123 @@
+package markboydcode.socketproxy;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Process wide cache of destination host name resolutions so that connections don't each pay for a lookup. Entries
+ * live for the configured time to live, failed lookups for at most {@link #NEGATIVE_TTL_MILLIS}. An expired entry keeps
+ * being served to other connections while the first connection to find it expired looks the name up again, and is
+ * kept when that lookup fails, so that a slow or failing DNS server holds up one connection per expiry at most. The
+ * JVM offers no way to read the time to live of the records themselves, so the JVM's own cache is disabled by
+ * {@link #configure(long)} and this one used in its place.
+ * <p>
+ * Addresses are returned ordered for connecting in the manner of happy eyeballs (RFC 8305): alternating between IPv6
+ * and IPv4 starting with the family the resolver returned first.
+ */
+public class Resolver {
+
+    public static final long DEFAULT_TTL_MILLIS = 30000;
+    public static final long NEGATIVE_TTL_MILLIS = 5000;
+
+    private static volatile long ttlMillis = DEFAULT_TTL_MILLIS;
+    private static final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+
+    private Resolver() {
+    }
+
+    /**
+     * Sets the time to live of resolutions and disables the JVM's own cache beneath this one. Must be called before
+     * anything is resolved for the JVM's cache to be disabled.
+     *
+     * @param ttl milliseconds
+     */
+    public static void configure(long ttl) {
+        ttlMillis = ttl;
+        java.security.Security.setProperty("networkaddress.cache.ttl", "0");
+        java.security.Security.setProperty("networkaddress.cache.negative.ttl", "0");
+    }
+
+    /**
+     * Returns the addresses of the host ordered for connecting, from the cache when possible.
+     *
+     * @param host name or literal address
+     * @return at least one address, shared and so not to be modified
+     * @throws UnknownHostException if the host can't be resolved, possibly remembered from a recent attempt
+     */
+    public static InetAddress[] resolve(String host) throws UnknownHostException {
+        long now = System.currentTimeMillis();
+        Entry e = cache.get(host);
+        if (e == null) {
+            e = lookup(host, now);
+            cache.put(host, e);
+        }
+        else if (now >= e.expiresAt && e.refreshing.compareAndSet(false, true)) {
+            Entry fresh = lookup(host, now);
+            if (fresh.failure != null && e.addresses != null) {
+                // keep serving the last known addresses rather than failing every connection while DNS is down
+                fresh = new Entry(e.addresses, null, now + NEGATIVE_TTL_MILLIS);
+            }
+            cache.put(host, fresh);
+            e = fresh;
+        }
+        if (e.failure != null) {
+            throw e.failure;
+        }
+        return e.addresses;
+    }
+
+    private static Entry lookup(String host, long now) {
+        try {
+            return new Entry(order(InetAddress.getAllByName(host)), null, now + ttlMillis);
+        } catch (UnknownHostException ex) {
+            return new Entry(null, ex, now + Math.min(ttlMillis, NEGATIVE_TTL_MILLIS));
+        }
+    }
+
+    /**
+     * Interleaves the addresses by family starting with the family of the first.
+     */
+    static InetAddress[] order(InetAddress[] addresses) {
+        if (addresses.length < 2) {
+            return addresses;
+        }
+        boolean firstV6 = addresses[0] instanceof Inet6Address;
+        List<InetAddress> first = new ArrayList<InetAddress>();
+        List<InetAddress> second = new ArrayList<InetAddress>();
+        for (InetAddress a : addresses) {
+            ((a instanceof Inet6Address) == firstV6 ? first : second).add(a);
+        }
+        InetAddress[] ordered = new InetAddress[addresses.length];
+        int n = 0;
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) {
+                ordered[n++] = first.get(i);
+            }
+            if (i < second.size()) {
+                ordered[n++] = second.get(i);
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * Resolution of a host, or the failure to resolve it, and when it expires.
+     */
+    private static class Entry {
+        final InetAddress[] addresses;
+        final UnknownHostException failure;
+        final long expiresAt;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(InetAddress[] addresses, UnknownHostException failure, long expiresAt) {
+            this.addresses = addresses;
+            this.failure = failure;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
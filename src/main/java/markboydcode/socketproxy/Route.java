@@ -0,0 +1,298 @@
+package markboydcode.socketproxy;
+
+import markboydcode.socketproxy.balance.Backend;
+import markboydcode.socketproxy.balance.Balancer;
+import markboydcode.socketproxy.balance.RoundRobinBalancer;
+
+import java.util.Collections;
+
+/**
+ * Settings of a single proxied route: whether it proxies tcp or udp, the local port connections are received on, the
+ * destinations they are proxied to and how one is chosen for each connection, how long connecting to it may take, the
+ * prefix of connection identifiers and hence their log files, how their traffic is captured and buffered, how
+ * connections are accepted and admitted, how long they may stay idle or open and how much bandwidth they may use.
+ */
+public class Route {
+
+    private final int port;
+    private final Balancer balancer;
+    private final String logPrefix;
+    private boolean udp = false;
+    private boolean capture = true;
+    private CaptureFormat captureFormat = CaptureFormat.TEXT;
+    private CapturePolicy capturePolicy;
+    private long connectTimeoutMillis = Connector.DEFAULT_TIMEOUT_MILLIS;
+    private int upstreamPoolSize = 0;
+    private int backlog = Acceptor.DEFAULT_BACKLOG;
+    private int acceptors = 1;
+    private int readAheadBytes = 0;
+    private long idleTimeoutMillis = 0;
+    private long maxLifetimeMillis = 0;
+    private Admission admission;
+    private long bandwidthBytesPerSecond = 0;
+    private long clientBandwidthBytesPerSecond = 0;
+    private Bandwidth bandwidth;
+
+    /**
+     * Creates a route to a single destination with traffic capture enabled.
+     *
+     * @param port
+     * @param destHost
+     * @param destPort
+     * @param logPrefix
+     */
+    public Route(int port, String destHost, int destPort, String logPrefix) {
+        this(port, new RoundRobinBalancer(Collections.singletonList(new Backend(destHost, destPort))), logPrefix);
+    }
+
+    /**
+     * Creates a route to the backends of the balancer with traffic capture enabled.
+     *
+     * @param port
+     * @param balancer
+     * @param logPrefix
+     */
+    public Route(int port, Balancer balancer, String logPrefix) {
+        this.port = port;
+        this.balancer = balancer;
+        this.logPrefix = logPrefix;
+    }
+
+    /**
+     * Indicates if the route proxies udp datagrams rather than tcp connections. Udp routes have a single destination.
+     *
+     * @return
+     */
+    public boolean isUdp() {
+        return udp;
+    }
+
+    public void setUdp(boolean udp) {
+        this.udp = udp;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Returns the strategy choosing the destination of each connection among the route's backends.
+     *
+     * @return
+     */
+    public Balancer getBalancer() {
+        return balancer;
+    }
+
+    public String getLogPrefix() {
+        return logPrefix;
+    }
+
+    /**
+     * Indicates if the traffic of each connection is recorded to its log file. When false no log file is opened and
+     * bytes are moved between the sockets without passing through the java heap.
+     *
+     * @return
+     */
+    public boolean isCapture() {
+        return capture;
+    }
+
+    public void setCapture(boolean capture) {
+        this.capture = capture;
+    }
+
+    /**
+     * Returns the layout connections' traffic is captured in. Defaults to
+     * {@link markboydcode.socketproxy.CaptureFormat#TEXT}.
+     *
+     * @return
+     */
+    public CaptureFormat getCaptureFormat() {
+        return captureFormat;
+    }
+
+    public void setCaptureFormat(CaptureFormat captureFormat) {
+        this.captureFormat = captureFormat;
+    }
+
+    /**
+     * Returns which tcp connections are captured and how much of them, when capture is enabled. Null, the default, to
+     * capture every byte of every connection.
+     *
+     * @return
+     */
+    public CapturePolicy getCapturePolicy() {
+        return capturePolicy;
+    }
+
+    public void setCapturePolicy(CapturePolicy capturePolicy) {
+        this.capturePolicy = capturePolicy;
+    }
+
+    /**
+     * Returns the time connections may take to connect to their destination, across all addresses tried, before they
+     * fail. Defaults to {@link markboydcode.socketproxy.Connector#DEFAULT_TIMEOUT_MILLIS}.
+     *
+     * @return
+     */
+    public long getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public void setConnectTimeoutMillis(long connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    /**
+     * Returns the number of connections to each destination kept established ahead of clients, zero for none.
+     *
+     * @return
+     */
+    public int getUpstreamPoolSize() {
+        return upstreamPoolSize;
+    }
+
+    public void setUpstreamPoolSize(int upstreamPoolSize) {
+        this.upstreamPoolSize = upstreamPoolSize;
+    }
+
+    /**
+     * Returns the length of the queue of connections the kernel has completed but the proxy not yet accepted, per
+     * acceptor. The kernel caps it, on linux at net.core.somaxconn. Defaults to
+     * {@link markboydcode.socketproxy.Acceptor#DEFAULT_BACKLOG}.
+     *
+     * @return
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public void setBacklog(int backlog) {
+        this.backlog = backlog;
+    }
+
+    /**
+     * Returns the number of threads accepting connections, each with its own server socket where SO_REUSEPORT is
+     * supported. Defaults to one.
+     *
+     * @return
+     */
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    public void setAcceptors(int acceptors) {
+        this.acceptors = acceptors;
+    }
+
+    /**
+     * Returns the number of bytes each direction of a tcp connection may read ahead of writing them to the other side
+     * before it stops reading, so that a slow receiver pushes back on the sender through tcp flow control. Zero, the
+     * default, reads again only once the last chunk read has been written.
+     *
+     * @return
+     */
+    public int getReadAheadBytes() {
+        return readAheadBytes;
+    }
+
+    public void setReadAheadBytes(int readAheadBytes) {
+        this.readAheadBytes = readAheadBytes;
+    }
+
+    /**
+     * Returns the time a spooling tcp connection may pass no bytes in either direction before the
+     * {@link markboydcode.socketproxy.Reaper} terminates it, zero, the default, for no limit.
+     *
+     * @return
+     */
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Returns the time a spooling tcp connection may stay open, counted from its accept, before the
+     * {@link markboydcode.socketproxy.Reaper} terminates it however active it is, zero, the default, for no limit.
+     *
+     * @return
+     */
+    public long getMaxLifetimeMillis() {
+        return maxLifetimeMillis;
+    }
+
+    public void setMaxLifetimeMillis(long maxLifetimeMillis) {
+        this.maxLifetimeMillis = maxLifetimeMillis;
+    }
+
+    /**
+     * Returns the admission control limiting the tcp connections of the route, null, the default, to proxy every
+     * connection accepted.
+     *
+     * @return
+     */
+    public Admission getAdmission() {
+        return admission;
+    }
+
+    public void setAdmission(Admission admission) {
+        this.admission = admission;
+    }
+
+    /**
+     * Returns the bytes per second all connections of the route together may pass, zero, the default, for no limit.
+     *
+     * @return
+     */
+    public long getBandwidthBytesPerSecond() {
+        return bandwidthBytesPerSecond;
+    }
+
+    public void setBandwidthBytesPerSecond(long bandwidthBytesPerSecond) {
+        this.bandwidthBytesPerSecond = bandwidthBytesPerSecond;
+    }
+
+    /**
+     * Returns the bytes per second all connections of a client address together may pass, zero, the default, for no
+     * limit.
+     *
+     * @return
+     */
+    public long getClientBandwidthBytesPerSecond() {
+        return clientBandwidthBytesPerSecond;
+    }
+
+    public void setClientBandwidthBytesPerSecond(long clientBandwidthBytesPerSecond) {
+        this.clientBandwidthBytesPerSecond = clientBandwidthBytesPerSecond;
+    }
+
+    /**
+     * Returns the bandwidth limits of the route's tcp connections and udp sessions as created from the route's rates
+     * and the process wide one, null, the default, for none.
+     *
+     * @return
+     */
+    public Bandwidth getBandwidth() {
+        return bandwidth;
+    }
+
+    public void setBandwidth(Bandwidth bandwidth) {
+        this.bandwidth = bandwidth;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("port: ").append(port).append(" ---> dest: ");
+        for (Backend b : balancer.getBackends()) {
+            if (sb.charAt(sb.length() - 1) != ' ') {
+                sb.append(", ");
+            }
+            sb.append(b);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,245 @@
+package markboydcode.socketproxy;
+
+import markboydcode.socketproxy.balance.Backend;
+import markboydcode.socketproxy.balance.Balancer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Reads the routes a single process serves from a file in java properties format. Each route is a group of keys
+ * sharing the route's name, like:
+ * <pre>
+ * route.web.port=8080
+ * route.web.dest=10.0.0.1:80,10.0.0.2:80
+ * route.web.lb=leastactive
+ * route.web.capture=false
+ *
+ * route.dns.type=udp
+ * route.dns.port=5353
+ * route.dns.dest=10.0.0.3:53
+ * route.dns.prefix=DNS
+ * </pre>
+ * Only port and dest are required. The prefix defaults to the route's name, all other keys to the defaults given,
+ * which hold the command line options of the same meaning: type, capture, format, capsample, capclients, capbytes
+ * in kilobytes, capfailed, lb, connecttimeout, upstreampool, backlog, acceptors, readahead in kilobytes, idletimeout
+ * and maxlifetime in seconds, maxconns, maxclientconns, acceptrate, clientrate, overload, queuetimeout in millis and
+ * bandwidth and clientbandwidth in kilobytes per second. Routes are returned ordered by name.
+ */
+public class RouteConfig {
+
+    static final String PREFIX = "route.";
+
+    private static final Set<String> KEYS = new HashSet<String>(Arrays.asList("type", "port", "dest",
+            "prefix", "capture", "format", "capsample", "capclients", "capbytes", "capfailed", "lb", "connecttimeout",
+            "upstreampool", "backlog", "acceptors",
+            "readahead", "idletimeout", "maxlifetime", "maxconns", "maxclientconns", "acceptrate", "clientrate", "overload",
+            "queuetimeout", "bandwidth", "clientbandwidth"));
+
+    private RouteConfig() {
+    }
+
+    /**
+     * Reads the routes of the file.
+     *
+     * @param file
+     * @param defaults values of keys routes leave out, keyed by the name of the key without route prefix
+     * @return at least one route
+     * @throws IOException              if the file can't be read
+     * @throws IllegalArgumentException naming the route and key of the first invalid setting
+     */
+    public static List<Route> load(File file, Properties defaults) throws IOException {
+        Properties props = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+        return parse(props, defaults);
+    }
+
+    /**
+     * Creates the routes of the properties.
+     *
+     * @param props
+     * @param defaults
+     * @return
+     * @throws IllegalArgumentException naming the route and key of the first invalid setting
+     */
+    static List<Route> parse(Properties props, Properties defaults) {
+        Set<String> names = new TreeSet<String>();
+        for (String key : props.stringPropertyNames()) {
+            int dot = key.lastIndexOf('.');
+            if (!key.startsWith(PREFIX) || dot <= PREFIX.length() || !KEYS.contains(key.substring(dot + 1))) {
+                throw new IllegalArgumentException("Unknown setting '" + key + "', expected route.<name>.<key> with"
+                        + " key one of " + new TreeSet<String>(KEYS) + ".");
+            }
+            names.add(key.substring(PREFIX.length(), dot));
+        }
+        if (names.isEmpty()) {
+            throw new IllegalArgumentException("No routes configured.");
+        }
+
+        List<Route> routes = new ArrayList<Route>();
+        Set<String> bound = new HashSet<String>();
+        for (String name : names) {
+            Route route = parseRoute(name, props, defaults);
+            if (!bound.add((route.isUdp() ? "udp:" : "tcp:") + route.getPort())) {
+                throw new IllegalArgumentException("Route '" + name + "' listens on " + (route.isUdp() ? "udp" : "tcp")
+                        + " port " + route.getPort() + " like another route.");
+            }
+            routes.add(route);
+        }
+        return routes;
+    }
+
+    private static Route parseRoute(String name, Properties props, Properties defaults) {
+        String type = get(name, "type", props, defaults, "tcp").toLowerCase();
+        if (!"tcp".equals(type) && !"udp".equals(type)) {
+            throw invalid(name, "type", type, "is not one of 'tcp' or 'udp'");
+        }
+        int port = parseInt(name, "port", get(name, "port", props, null, null), 1);
+        String dest = get(name, "dest", props, null, null);
+        if (dest == null) {
+            throw new IllegalArgumentException("Route '" + name + "' has no dest.");
+        }
+        List<Backend> backends;
+        try {
+            backends = Backend.parseList(dest);
+        } catch (IllegalArgumentException iae) {
+            throw new IllegalArgumentException("Route '" + name + "': " + iae.getMessage());
+        }
+        if ("udp".equals(type) && backends.size() > 1) {
+            throw invalid(name, "dest", dest, "is more than one destination, udp is proxied to a single destination");
+        }
+        String lb = get(name, "lb", props, defaults, "roundrobin");
+        Balancer.Strategy strategy;
+        try {
+            strategy = Balancer.Strategy.valueOf(lb.toUpperCase());
+        } catch (IllegalArgumentException iae) {
+            throw invalid(name, "lb", lb, "is not one of 'roundrobin', 'leastactive' or 'hash'");
+        }
+
+        Route route = new Route(port, strategy.create(backends), get(name, "prefix", props, null, name));
+        route.setUdp("udp".equals(type));
+
+        String capture = get(name, "capture", props, defaults, "true");
+        if (!"true".equalsIgnoreCase(capture) && !"false".equalsIgnoreCase(capture)) {
+            throw invalid(name, "capture", capture, "is not one of 'true' or 'false'");
+        }
+        route.setCapture(Boolean.parseBoolean(capture));
+
+        String format = get(name, "format", props, defaults, "text");
+        try {
+            route.setCaptureFormat(CaptureFormat.valueOf(format.toUpperCase()));
+        } catch (IllegalArgumentException iae) {
+            throw invalid(name, "format", format, "is not one of 'text' or 'binary'");
+        }
+        if (route.getCaptureFormat() == CaptureFormat.PCAP) {
+            // only for udp which is always captured as pcap
+            throw invalid(name, "format", format, "is not one of 'text' or 'binary'");
+        }
+
+        String failed = get(name, "capfailed", props, defaults, "false");
+        if (!"true".equalsIgnoreCase(failed) && !"false".equalsIgnoreCase(failed)) {
+            throw invalid(name, "capfailed", failed, "is not one of 'true' or 'false'");
+        }
+        int sample = parseInt(name, "capsample", get(name, "capsample", props, defaults, "1"), 1);
+        int captureBytes = parseOptionalInt(name, "capbytes", props, defaults) * 1024;
+        try {
+            route.setCapturePolicy(CapturePolicy.create(sample, get(name, "capclients", props, defaults, null),
+                    captureBytes, Boolean.parseBoolean(failed)));
+        } catch (IllegalArgumentException iae) {
+            throw new IllegalArgumentException("Route '" + name + "': " + iae.getMessage());
+        }
+
+        String timeout = get(name, "connecttimeout", props, defaults, null);
+        if (timeout != null) {
+            route.setConnectTimeoutMillis(parseInt(name, "connecttimeout", timeout, 1));
+        }
+        String pool = get(name, "upstreampool", props, defaults, null);
+        if (pool != null) {
+            route.setUpstreamPoolSize(parseInt(name, "upstreampool", pool, 0));
+        }
+        String backlog = get(name, "backlog", props, defaults, null);
+        if (backlog != null) {
+            route.setBacklog(parseInt(name, "backlog", backlog, 1));
+        }
+        String acceptors = get(name, "acceptors", props, defaults, null);
+        if (acceptors != null) {
+            route.setAcceptors(parseInt(name, "acceptors", acceptors, 1));
+        }
+        String readAhead = get(name, "readahead", props, defaults, null);
+        if (readAhead != null) {
+            route.setReadAheadBytes(parseInt(name, "readahead", readAhead, 0) * 1024);
+        }
+        String idle = get(name, "idletimeout", props, defaults, null);
+        if (idle != null) {
+            route.setIdleTimeoutMillis(parseInt(name, "idletimeout", idle, 0) * 1000L);
+        }
+        String lifetime = get(name, "maxlifetime", props, defaults, null);
+        if (lifetime != null) {
+            route.setMaxLifetimeMillis(parseInt(name, "maxlifetime", lifetime, 0) * 1000L);
+        }
+
+        String overload = get(name, "overload", props, defaults, "queue");
+        Admission.Action action;
+        try {
+            action = Admission.Action.valueOf(overload.toUpperCase());
+        } catch (IllegalArgumentException iae) {
+            throw invalid(name, "overload", overload, "is not one of 'queue', 'reject' or 'pause'");
+        }
+        route.setAdmission(Admission.create(parseOptionalInt(name, "maxconns", props, defaults),
+                parseOptionalInt(name, "maxclientconns", props, defaults),
+                parseOptionalInt(name, "acceptrate", props, defaults),
+                parseOptionalInt(name, "clientrate", props, defaults), action,
+                parseInt(name, "queuetimeout", get(name, "queuetimeout", props, defaults,
+                        String.valueOf(Admission.DEFAULT_QUEUE_MILLIS)), 1)));
+        route.setBandwidthBytesPerSecond(parseOptionalInt(name, "bandwidth", props, defaults) * 1024L);
+        route.setClientBandwidthBytesPerSecond(parseOptionalInt(name, "clientbandwidth", props, defaults) * 1024L);
+        return route;
+    }
+
+    private static String get(String name, String key, Properties props, Properties defaults, String fallback) {
+        String val = props.getProperty(PREFIX + name + "." + key);
+        if (val == null && defaults != null) {
+            val = defaults.getProperty(key);
+        }
+        return val != null ? val.trim() : fallback;
+    }
+
+    private static int parseOptionalInt(String name, String key, Properties props, Properties defaults) {
+        return parseInt(name, key, get(name, key, props, defaults, "0"), 0);
+    }
+
+    private static int parseInt(String name, String key, String val, int min) {
+        if (val == null) {
+            throw new IllegalArgumentException("Route '" + name + "' has no " + key + ".");
+        }
+        int result;
+        try {
+            result = Integer.parseInt(val);
+        } catch (NumberFormatException nfe) {
+            result = -1;
+        }
+        if (result < min) {
+            throw invalid(name, key, val, min > 0 ? "is not a positive integer" : "is not a non-negative integer");
+        }
+        return result;
+    }
+
+    private static IllegalArgumentException invalid(String name, String key, String val, String problem) {
+        return new IllegalArgumentException("Route '" + name + "': specified " + key + " '" + val + "' " + problem
+                + ".");
+    }
+}
@@ -0,0 +1,51 @@
+package markboydcode.socketproxy;
+
+import java.io.IOException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+
+/**
+ * Socket options that not every JVM the proxy runs on knows. SO_REUSEPORT only became a standard option in java 9, so
+ * it is looked up reflectively like {@link markboydcode.socketproxy.Threads} looks up virtual threads, and the proxy
+ * still compiles and runs on java 8 where callers fall back to a single socket per port.
+ */
+public final class SocketOptions {
+
+    private static final SocketOption<Boolean> reusePort = lookUp("SO_REUSEPORT");
+
+    private SocketOptions() {
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> lookUp(String name) {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField(name).get(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Indicates that the JVM and the platform allow binding several channels like this one to the same port.
+     *
+     * @param channel
+     * @return
+     */
+    public static boolean supportsReusePort(NetworkChannel channel) {
+        return reusePort != null && channel.supportedOptions().contains(reusePort);
+    }
+
+    /**
+     * Enables SO_REUSEPORT on a channel that isn't bound yet.
+     *
+     * @param channel
+     * @throws IOException if the option can't be set or isn't supported, see {@link #supportsReusePort(NetworkChannel)}
+     */
+    public static void setReusePort(NetworkChannel channel) throws IOException {
+        if (!supportsReusePort(channel)) {
+            throw new IOException("SO_REUSEPORT is not supported on this platform.");
+        }
+        channel.setOption(reusePort, true);
+    }
+}
@@ -3,35 +3,114 @@ package markboydcode.socketproxy;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * Spools byest received from the input stream to the output stream.
+ * Spools byest received from the input stream to the output stream, or between the channels of the sockets. When
+ * traffic isn't captured, bytes spooled between channels go through a direct buffer so that they are never copied into
+ * the java heap. Captured traffic between channels goes through heap buffers whose arrays are logged. Channels are
+ * used rather than their sockets' streams whenever there are channels, since before java 13 the streams of a channel's
+ * socket share one lock, so a spooler blocked reading from a socket keeps the other one from writing to it. Buffers
+ * come from the shared {@link markboydcode.socketproxy.BufferPool} and are swapped for larger or smaller ones as the
+ * connection's {@link markboydcode.socketproxy.BufferPool.Sizer} recommends.
+ * <p>
+ * By default a spooler reads again only once its last chunk was written, so a slow receiver stalls reading from the
+ * sender. With read ahead a second thread writes while the spooler's own keeps reading into a
+ * {@link markboydcode.socketproxy.ReadAheadQueue} of bounded size, and all chunks queued by the time a write starts
+ * are written at once: gathered into a single call between channels, copied into one buffer of up to
+ * {@link #COALESCE_SIZE} bytes between streams.
+ * <p>
+ * Under {@link markboydcode.socketproxy.Bandwidth} limits the reading thread waits after each read for as long as the
+ * connection's share requires, so that a throttled connection also stops reading and pushes back on its sender.
  *
  * Created by markboyd on 3/18/14.
  */
 public class Spooler implements Runnable {
+
+    /**
+     * Initial size of the direct buffer used when spooling between channels. Larger than the heap buffer since nothing
+     * but the kernel touches its bytes and fewer, larger reads and writes are what keeps bulk transfers at wire speed.
+     */
+    static final int DIRECT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Most bytes of small chunks copied together into a single write to a stream.
+     */
+    static final int COALESCE_SIZE = 64 * 1024;
+
     private ConnectionHandler handler;
     private OutputStream out;
     private InputStream in;
     private String name;
-    private byte[] buffer;
+    private final LogMoniker direction;
+    private ReadableByteChannel inChannel;
+    private WritableByteChannel outChannel;
     private ConnectionLogger logger;
     private boolean terminated = false;
     private long byteCount = 0;
     private Thread executor;
+    private ReadAheadQueue queue;
+    private Thread writer;
+    private final Bandwidth.Share share;
+    private final BufferPool pool;
 
-    private Spooler(ConnectionHandler connectionHandler, ConnectionLogger logger, String name, InputStream in, OutputStream out) {
-        this.name = name;
+    private Spooler(ConnectionHandler connectionHandler, ConnectionLogger logger, LogMoniker direction, InputStream in, OutputStream out, int readAhead) {
+        this.name = connectionHandler.getId() + "_spooler_" + direction.getString();
+        this.direction = direction;
         this.handler = connectionHandler;
+        this.share = connectionHandler.getBandwidthShare();
         this.logger = logger;
         this.in = in;
         this.out = out;
-        this.buffer = new byte[4096];
+        this.pool = BufferPool.heap();
+        if (readAhead > 0) {
+            this.queue = new ReadAheadQueue(readAhead);
+        }
 
         // start spooling
-        executor = new Thread(this);
-        executor.setName(this.name);
-        executor.start();
+        executor = Threads.start(this.name, this);
+        if (queue != null) {
+            writer = Threads.start(this.name + "_writer", new Runnable() {
+                @Override
+                public void run() {
+                    writeBehind();
+                }
+            });
+        }
+    }
+
+    private Spooler(ConnectionHandler connectionHandler, ConnectionLogger logger, LogMoniker direction, ReadableByteChannel in, WritableByteChannel out, int readAhead) {
+        this.name = connectionHandler.getId() + "_spooler_" + direction.getString();
+        this.direction = direction;
+        this.handler = connectionHandler;
+        this.share = connectionHandler.getBandwidthShare();
+        this.logger = logger;
+        this.inChannel = in;
+        this.outChannel = out;
+        // logged bytes have to be in an array, and streams wrapped as channels copy through one anyway
+        this.pool = logger == null && in instanceof SelectableChannel && out instanceof SelectableChannel
+                ? BufferPool.direct() : BufferPool.heap();
+        if (readAhead > 0) {
+            this.queue = new ReadAheadQueue(readAhead);
+        }
+
+        // start spooling
+        executor = Threads.start(this.name, this);
+        if (queue != null) {
+            writer = Threads.start(this.name + "_writer", new Runnable() {
+                @Override
+                public void run() {
+                    writeBehind();
+                }
+            });
+        }
     }
 
     /**
@@ -46,7 +125,66 @@ public class Spooler implements Runnable {
      * @return
      */
     public static final Spooler create(LogMoniker dir, ConnectionHandler handler, ConnectionLogger logger, InputStream in, OutputStream out) {
-        return new Spooler(handler, logger, handler.getId() + "_spooler_" + dir.getString(), in, out);
+        return new Spooler(handler, logger, dir, in, out, 0);
+    }
+
+    /**
+     * Create spooler between streams that reads ahead of writing.
+     *
+     * @param dir
+     * @param handler
+     * @param logger
+     * @param in
+     * @param out
+     * @param readAhead most bytes read but not yet written, zero to read only once the last chunk was written
+     * @return
+     */
+    public static final Spooler create(LogMoniker dir, ConnectionHandler handler, ConnectionLogger logger, InputStream in, OutputStream out, int readAhead) {
+        return new Spooler(handler, logger, dir, in, out, readAhead);
+    }
+
+    /**
+     * Create spooler with underlying suitably named thread for spooling bytes between blocking channels without
+     * logging them. Bytes pass through a direct buffer only and hence are never copied into the java heap.
+     *
+     * @param dir
+     * @param handler
+     * @param in
+     * @param out
+     * @return
+     */
+    public static final Spooler create(LogMoniker dir, ConnectionHandler handler, ReadableByteChannel in, WritableByteChannel out) {
+        return new Spooler(handler, null, dir, in, out, 0);
+    }
+
+    /**
+     * Create spooler between channels that reads ahead of writing.
+     *
+     * @param dir
+     * @param handler
+     * @param in
+     * @param out
+     * @param readAhead most bytes read but not yet written, zero to read only once the last chunk was written
+     * @return
+     */
+    public static final Spooler create(LogMoniker dir, ConnectionHandler handler, ReadableByteChannel in, WritableByteChannel out, int readAhead) {
+        return new Spooler(handler, null, dir, in, out, readAhead);
+    }
+
+    /**
+     * Create spooler between blocking channels that logs what it spools, through heap buffers, and reads ahead of
+     * writing.
+     *
+     * @param dir
+     * @param handler
+     * @param logger null to spool through direct buffers without logging
+     * @param in
+     * @param out
+     * @param readAhead most bytes read but not yet written, zero to read only once the last chunk was written
+     * @return
+     */
+    public static final Spooler create(LogMoniker dir, ConnectionHandler handler, ConnectionLogger logger, ReadableByteChannel in, WritableByteChannel out, int readAhead) {
+        return new Spooler(handler, logger, dir, in, out, readAhead);
     }
 
     /**
@@ -54,37 +192,305 @@ public class Spooler implements Runnable {
      */
     @Override
     public void run() {
+        if (this.queue != null) {
+            readAhead();
+            return;
+        }
+        if (this.inChannel != null) {
+            spoolChannels();
+            return;
+        }
         int bytes = 0;
         // use stable local handles to these guys to avoid NPEs during termination
         ConnectionHandler handler = this.handler;
         InputStream in = this.in;
         OutputStream out = this.out;
+        ConnectionLogger logger = this.logger;
+        Metrics metrics = Metrics.get();
+        BufferPool pool = BufferPool.heap();
+        BufferPool.Sizer sizer = new BufferPool.Sizer(BufferPool.MIN_SIZE, BufferPool.MAX_SIZE);
+        ByteBuffer pooled = pool.acquire(BufferPool.MIN_SIZE);
+        byte[] buffer = pooled.array();
 
+        try {
+            while(!terminated) {
+                try {
+                     bytes = in.read(buffer);
+                } catch (Exception e) {
+                    handler.terminate(name + " incurred reading exception.", e);
+                    return;
+                }
+                if (bytes == -1) {
+                    handler.close();
+                    return;
+                }
+                if (share != null) {
+                    throttle(bytes);
+                }
+                try {
+                    out.write(buffer, 0, bytes);
+                } catch (Exception e) {
+                    handler.terminate(name + " incurred writing exception.", e);
+                    return;
+                }
+                this.byteCount += bytes;
+                handler.setLastActivity();
+                metrics.spooled(direction, bytes);
+                if (logger != null) {
+                    try {
+                        logger.log(bytes, buffer);
+                    } catch (Exception e) {
+                        handler.terminate(name + " incurred logging exception.", e);
+                    }
+                }
 
-        while(!terminated) {
+                int size = sizer.record(bytes, buffer.length);
+                if (size != buffer.length) {
+                    pool.release(pooled);
+                    pooled = pool.acquire(size);
+                    buffer = pooled.array();
+                }
+            }
+        } finally {
+            // only ever released by this thread since termination may happen while a read is still using it
+            pool.release(pooled);
+        }
+    }
+
+    /**
+     * Implements the spooling between channels.
+     */
+    private void spoolChannels() {
+        int bytes = 0;
+        // use stable local handles to these guys to avoid NPEs during termination
+        ConnectionHandler handler = this.handler;
+        ReadableByteChannel in = this.inChannel;
+        WritableByteChannel out = this.outChannel;
+        ConnectionLogger logger = this.logger;
+        Metrics metrics = Metrics.get();
+        BufferPool pool = this.pool;
+        BufferPool.Sizer sizer = new BufferPool.Sizer(BufferPool.MIN_SIZE, BufferPool.MAX_SIZE);
+        ByteBuffer buffer = pool.acquire(logger == null ? DIRECT_BUFFER_SIZE : BufferPool.MIN_SIZE);
+
+        try {
+            while(!terminated) {
+                buffer.clear();
+                try {
+                    bytes = in.read(buffer);
+                } catch (Exception e) {
+                    handler.terminate(name + " incurred reading exception.", e);
+                    return;
+                }
+                if (bytes == -1) {
+                    handler.close();
+                    return;
+                }
+                if (share != null) {
+                    throttle(bytes);
+                }
+                buffer.flip();
+                try {
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                } catch (Exception e) {
+                    handler.terminate(name + " incurred writing exception.", e);
+                    return;
+                }
+                this.byteCount += bytes;
+                handler.setLastActivity();
+                metrics.spooled(direction, bytes);
+                if (logger != null) {
+                    try {
+                        logger.log(bytes, buffer.array());
+                    } catch (Exception e) {
+                        handler.terminate(name + " incurred logging exception.", e);
+                    }
+                }
+
+                int size = sizer.record(bytes, buffer.capacity());
+                if (size != buffer.capacity()) {
+                    pool.release(buffer);
+                    buffer = pool.acquire(size);
+                }
+            }
+        } finally {
+            // only ever released by this thread since termination may happen while a read is still using it
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Implements the reading side of read ahead: reads chunks and queues them for the writer thread.
+     */
+    private void readAhead() {
+        // use stable local handles to these guys to avoid NPEs during termination
+        ConnectionHandler handler = this.handler;
+        InputStream in = this.in;
+        ReadableByteChannel inChannel = this.inChannel;
+        ReadAheadQueue queue = this.queue;
+        BufferPool pool = this.pool;
+        BufferPool.Sizer sizer = new BufferPool.Sizer(BufferPool.MIN_SIZE, BufferPool.MAX_SIZE);
+        int size = pool == BufferPool.direct() ? DIRECT_BUFFER_SIZE : BufferPool.MIN_SIZE;
+
+        while (!terminated) {
+            ByteBuffer chunk = pool.acquire(size);
+            int bytes;
             try {
-                 bytes = in.read(this.buffer);
+                if (inChannel != null) {
+                    bytes = inChannel.read(chunk);
+                    chunk.flip();
+                }
+                else {
+                    bytes = in.read(chunk.array(), 0, chunk.capacity());
+                    chunk.limit(Math.max(bytes, 0));
+                }
             } catch (Exception e) {
+                pool.release(chunk);
                 handler.terminate(name + " incurred reading exception.", e);
                 return;
             }
             if (bytes == -1) {
-                handler.close();
+                // the writer closes the connection once everything read has been written
+                pool.release(chunk);
+                queue.finish();
                 return;
             }
+            size = sizer.record(bytes, chunk.capacity());
+            if (share != null) {
+                throttle(bytes);
+            }
             try {
-                out.write(buffer, 0, bytes);
-            } catch (Exception e) {
-                handler.terminate(name + " incurred writing exception.", e);
+                if (!queue.put(chunk)) {
+                    pool.release(chunk);
+                    return;
+                }
+            } catch (InterruptedException e) {
+                pool.release(chunk);
                 return;
             }
-            this.byteCount += bytes;
-            this.handler.setLastActivity();
-            try {
-                this.logger.log(bytes, buffer);
-            } catch (Exception e) {
-                handler.terminate(name + " incurred logging exception.", e);
+        }
+    }
+
+    /**
+     * Implements the writing side of read ahead: writes all chunks queued at once and closes the connection once the
+     * reader reached the end of the stream and everything has been written.
+     */
+    private void writeBehind() {
+        // use stable local handles to these guys to avoid NPEs during termination
+        ConnectionHandler handler = this.handler;
+        OutputStream out = this.out;
+        WritableByteChannel outChannel = this.outChannel;
+        ConnectionLogger logger = this.logger;
+        ReadAheadQueue queue = this.queue;
+        Metrics metrics = Metrics.get();
+        BufferPool pool = this.pool;
+        List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+        ByteBuffer coalesced = outChannel != null ? null : BufferPool.heap().acquire(COALESCE_SIZE);
+
+        try {
+            while (queue.takeAll(chunks)) {
+                try {
+                    if (outChannel != null) {
+                        write(chunks, outChannel);
+                    }
+                    else {
+                        write(chunks, out, coalesced);
+                    }
+                } catch (Exception e) {
+                    handler.terminate(name + " incurred writing exception.", e);
+                    return;
+                }
+                for (ByteBuffer chunk : chunks) {
+                    int bytes = chunk.limit();
+                    this.byteCount += bytes;
+                    metrics.spooled(direction, bytes);
+                    if (logger != null) {
+                        try {
+                            logger.log(bytes, chunk.array());
+                        } catch (Exception e) {
+                            handler.terminate(name + " incurred logging exception.", e);
+                            return;
+                        }
+                    }
+                }
+                handler.setLastActivity();
+                for (ByteBuffer chunk : chunks) {
+                    pool.release(chunk);
+                }
+                chunks.clear();
+            }
+            if (!terminated) {
+                handler.close();
+            }
+        } catch (InterruptedException e) {
+            // terminated
+        } finally {
+            for (ByteBuffer chunk : chunks) {
+                pool.release(chunk);
+            }
+            queue.close(pool);
+            if (coalesced != null) {
+                BufferPool.heap().release(coalesced);
+            }
+        }
+    }
+
+    /**
+     * Writes the chunks to the channel, gathered into as few calls as the channel allows.
+     */
+    private static void write(List<ByteBuffer> chunks, WritableByteChannel out) throws IOException {
+        if (chunks.size() > 1 && out instanceof GatheringByteChannel) {
+            ByteBuffer[] srcs = chunks.toArray(new ByteBuffer[chunks.size()]);
+            ByteBuffer last = srcs[srcs.length - 1];
+            while (last.hasRemaining()) {
+                ((GatheringByteChannel) out).write(srcs);
+            }
+            return;
+        }
+        for (ByteBuffer chunk : chunks) {
+            while (chunk.hasRemaining()) {
+                out.write(chunk);
+            }
+        }
+    }
+
+    /**
+     * Writes the chunks to the stream, copying consecutive chunks that fit together into the coalescing buffer. Leaves
+     * the chunks' positions untouched so their bytes can still be logged.
+     */
+    private static void write(List<ByteBuffer> chunks, OutputStream out, ByteBuffer coalesced) throws IOException {
+        byte[] buf = coalesced.array();
+        int n = 0;
+        for (ByteBuffer chunk : chunks) {
+            int bytes = chunk.limit();
+            if (n > 0 && n + bytes > buf.length) {
+                out.write(buf, 0, n);
+                n = 0;
+            }
+            if (bytes > buf.length || chunks.size() == 1) {
+                out.write(chunk.array(), 0, bytes);
             }
+            else {
+                System.arraycopy(chunk.array(), 0, buf, n, bytes);
+                n += bytes;
+            }
+        }
+        if (n > 0) {
+            out.write(buf, 0, n);
+        }
+    }
+
+    /**
+     * Waits as long as the connection's bandwidth limits require before passing on the bytes read.
+     *
+     * @param bytes
+     */
+    private void throttle(int bytes) {
+        long wait = share.take(bytes);
+        if (wait > 0) {
+            Metrics.get().throttled(direction, wait);
+            LockSupport.parkNanos(wait);
         }
     }
 
@@ -94,11 +500,15 @@ public class Spooler implements Runnable {
     public void terminate() {
         this.terminated = true;
         executor.interrupt();
+        if (writer != null) {
+            writer.interrupt();
+        }
         this.handler = null;
         this.out = null;
         this.in = null;
         this.logger = null;
-        this.buffer = null;
+        this.inChannel = null;
+        this.outChannel = null;
     }
 
     /**
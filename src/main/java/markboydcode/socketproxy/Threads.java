@@ -0,0 +1,138 @@
+package markboydcode.socketproxy;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Starts the threads of the blocking engine, ie: the startup thread of each
+ * {@link markboydcode.socketproxy.ConnectionHandler} and the two threads of its
+ * {@link markboydcode.socketproxy.Spooler}s. By default these are platform threads. When virtual threads are enabled
+ * and the running JVM offers them (java 21 and later) they are started as virtual threads instead so that idle
+ * connections cost a few kilobytes of heap rather than two thread stacks. Virtual threads are looked up reflectively
+ * so that the proxy still compiles and runs on JVMs that lack them.
+ * <p>
+ * Short lived tasks like the startup of a connection are {@link #execute(String, Runnable) executed} on a fixed pool of
+ * worker threads instead when one is configured and threads aren't virtual, so that a storm of connections queues up
+ * rather than starting a platform thread each. The pool's queue is bounded, tasks that don't fit are refused so the
+ * caller can shed them rather than have them wait behind workers blocked on unreachable destinations.
+ */
+public final class Threads {
+
+    /**
+     * Tasks queued per worker of the pool before further tasks are refused.
+     */
+    public static final int QUEUED_PER_WORKER = 16;
+
+    private static volatile boolean virtual = false;
+    private static Method ofVirtual;
+    private static Method builderName;
+    private static Method builderStart;
+    private static volatile ExecutorService workers;
+
+    private Threads() {
+    }
+
+    /**
+     * Switches all subsequently started threads to virtual threads if the running JVM supports them.
+     *
+     * @return true if virtual threads are now in use, false if the JVM doesn't support them
+     */
+    public static synchronized boolean useVirtualThreads() {
+        if (virtual) {
+            return true;
+        }
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            builderName = builder.getMethod("name", String.class);
+            builderStart = builder.getMethod("start", Runnable.class);
+            ofVirtual.invoke(null); // fails on JVMs where they are only a disabled preview feature
+        } catch (Exception e) {
+            return false;
+        }
+        virtual = true;
+        return true;
+    }
+
+    /**
+     * Executes subsequent tasks on a pool of this many platform threads rather than a thread each, queueing up to
+     * {@link #QUEUED_PER_WORKER} tasks per thread while all are busy. Ignored while threads are virtual.
+     *
+     * @param size
+     */
+    public static synchronized void useWorkerPool(int size) {
+        if (workers != null) {
+            return;
+        }
+        final AtomicInteger count = new AtomicInteger();
+        workers = new ThreadPoolExecutor(size, size, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(size * QUEUED_PER_WORKER), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r);
+                        t.setName("worker_" + count.getAndIncrement());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /**
+     * Runs a task on the worker pool if there is one and threads aren't virtual, otherwise on a thread of its own.
+     *
+     * @param name of the task's own thread
+     * @param r
+     * @return false if the task was refused since the worker pool's queue is full
+     */
+    public static boolean execute(String name, Runnable r) {
+        ExecutorService pool = workers;
+        if (pool != null && !virtual) {
+            try {
+                pool.execute(r);
+            } catch (RejectedExecutionException e) {
+                return false;
+            }
+        }
+        else {
+            start(name, r);
+        }
+        return true;
+    }
+
+    /**
+     * Indicates if threads are being started as virtual threads.
+     *
+     * @return
+     */
+    public static boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Starts a suitably named thread running the runnable.
+     *
+     * @param name
+     * @param r
+     * @return the started thread
+     */
+    public static Thread start(String name, Runnable r) {
+        if (virtual) {
+            try {
+                Object builder = builderName.invoke(ofVirtual.invoke(null), name);
+                return (Thread) builderStart.invoke(builder, r);
+            } catch (Exception e) {
+                throw new IllegalStateException("Unable to start virtual thread " + name, e);
+            }
+        }
+        Thread t = new Thread(r);
+        t.setName(name);
+        t.start();
+        return t;
+    }
+}
@@ -0,0 +1,81 @@
+package markboydcode.socketproxy;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket limiting a flow of bytes to a rate, holding a tenth of a second's worth of bytes but at least
+ * {@link markboydcode.socketproxy.BufferPool#MAX_SIZE} so that every chunk fits. Kept as the single time at which
+ * the bucket will have refilled completely, as in the generic cell rate algorithm, so that taking bytes is one
+ * compare-and-set on a number and neither locks nor allocates, however many threads share the bucket.
+ */
+public class Throttle {
+
+    private final long bytesPerSecond;
+    private final long burstNanos;
+    private final AtomicLong fullAt;
+
+    /**
+     * @param bytesPerSecond
+     */
+    public Throttle(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.burstNanos = nanosFor(Math.max(bytesPerSecond / 10, BufferPool.MAX_SIZE));
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Takes the bytes from the bucket, going into debt if it doesn't hold them.
+     *
+     * @param bytes
+     * @param now   as returned by {@link System#nanoTime()}
+     * @return nanos to wait before passing the bytes on so as not to exceed the rate, zero if they may go at once
+     */
+    public long take(int bytes, long now) {
+        long cost = nanosFor(bytes);
+        while (true) {
+            long current = fullAt.get();
+            long next = Math.max(current, now) + cost;
+            if (fullAt.compareAndSet(current, next)) {
+                return Math.max(0, next - now - burstNanos);
+            }
+        }
+    }
+
+    /**
+     * Takes the bytes from the bucket only if it holds them.
+     *
+     * @param bytes
+     * @param now   as returned by {@link System#nanoTime()}
+     * @return false if the bytes would exceed the rate
+     */
+    public boolean tryTake(int bytes, long now) {
+        long cost = nanosFor(bytes);
+        while (true) {
+            long current = fullAt.get();
+            long next = Math.max(current, now) + cost;
+            if (next - now > burstNanos) {
+                return false;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Puts back bytes taken, like when another bucket of a hierarchy turned them down.
+     *
+     * @param bytes
+     */
+    public void refund(int bytes) {
+        fullAt.addAndGet(-nanosFor(bytes));
+    }
+
+    private long nanosFor(long bytes) {
+        return bytes * 1000000000L / bytesPerSecond;
+    }
+}
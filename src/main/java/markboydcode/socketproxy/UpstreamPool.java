@@ -0,0 +1,242 @@
+package markboydcode.socketproxy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Warm pool of connections to a route's destination, established before clients need them so that an accepted client
+ * doesn't wait for an upstream handshake and DNS lookup before its first byte moves. A background thread keeps the
+ * pool at its target size, closes connections idle for longer than the maximum idle age and checks the health of the
+ * rest. Connections are taken newest first so that the oldest ones age out at the other end of the pool.
+ * <p>
+ * A connection is healthy when the destination has neither closed it nor sent anything on it. This makes the pool
+ * suitable for protocols in which the client speaks first only: connections to destinations greeting their clients
+ * are discarded as unhealthy, leaving clients to dial as without a pool.
+ * <p>
+ * Pooled connections are channels in blocking mode, so they serve both spooling with streams and spooling between
+ * channels.
+ */
+public class UpstreamPool {
+
+    public static final long DEFAULT_MAX_IDLE_MILLIS = 30000;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final long FAILURE_BACKOFF_MILLIS = 1000;
+
+    private final String destHost;
+    private final int destPort;
+    private final int targetSize;
+    private final long maxIdleMillis;
+    private final long checkMillis;
+    private final ConcurrentLinkedDeque<Pooled> idle = new ConcurrentLinkedDeque<Pooled>();
+    private final AtomicInteger size = new AtomicInteger();
+    private volatile Thread filler;
+    private volatile boolean stopped = false;
+
+    /**
+     * Creates a pool, which stays empty until {@link #start()}ed.
+     *
+     * @param destHost
+     * @param destPort
+     * @param targetSize    number of idle connections kept ready
+     * @param maxIdleMillis age after which an idle connection is closed and replaced, since many destinations and
+     *                      firewalls silently drop connections idle for long
+     */
+    public UpstreamPool(String destHost, int destPort, int targetSize, long maxIdleMillis) {
+        this.destHost = destHost;
+        this.destPort = destPort;
+        this.targetSize = targetSize;
+        this.maxIdleMillis = maxIdleMillis;
+        this.checkMillis = Math.max(100, Math.min(1000, maxIdleMillis / 4));
+    }
+
+    /**
+     * Starts the daemon thread filling and checking the pool.
+     */
+    public void start() {
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                fill();
+            }
+        }, "upstream_pool");
+        t.setDaemon(true);
+        filler = t;
+        t.start();
+        System.out.println("Upstream pool of " + targetSize + " connections to " + destHost + ":" + destPort
+                + " started, idle for at most " + maxIdleMillis / 1000.0 + "s");
+    }
+
+    /**
+     * Takes a healthy connection from the pool, or returns null if none is ready and the caller has to dial. Wakes up
+     * the background thread to replace it either way.
+     *
+     * @return connected channel in blocking mode owned by the caller, or null
+     */
+    public SocketChannel take() {
+        try {
+            Pooled p;
+            while ((p = idle.pollLast()) != null) {
+                size.decrementAndGet();
+                if (p.isExpired(System.currentTimeMillis()) || !isHealthy(p.channel)) {
+                    discard(p);
+                    continue;
+                }
+                Metrics.get().upstreamPoolHit();
+                return p.channel;
+            }
+            Metrics.get().upstreamPoolMiss();
+            return null;
+        } finally {
+            Thread t = filler;
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+        }
+    }
+
+    /**
+     * Closes all pooled connections and stops refilling.
+     */
+    public void stop() {
+        stopped = true;
+        Thread t = filler;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+        Pooled p;
+        while ((p = idle.pollFirst()) != null) {
+            size.decrementAndGet();
+            close(p.channel);
+        }
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Refills the pool, and checks it every so often, until stopped. Backs off after failing to connect rather than
+     * hammering a destination that is down.
+     */
+    private void fill() {
+        long lastCheck = System.currentTimeMillis();
+        boolean failing = false;
+        while (!stopped) {
+            long now = System.currentTimeMillis();
+            if (now - lastCheck >= checkMillis) {
+                check(now);
+                lastCheck = now;
+            }
+            while (!stopped && size.get() < targetSize) {
+                SocketChannel channel;
+                try {
+                    channel = dial();
+                } catch (IOException e) {
+                    if (!failing) {
+                        System.err.println("Upstream pool unable to connect to " + destHost + ":" + destPort + ": " + e);
+                        failing = true;
+                    }
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(FAILURE_BACKOFF_MILLIS));
+                    break;
+                }
+                if (failing) {
+                    System.out.println("Upstream pool connected to " + destHost + ":" + destPort + " again");
+                    failing = false;
+                }
+                if (stopped) {
+                    close(channel);
+                }
+                else {
+                    idle.offerLast(new Pooled(channel, System.currentTimeMillis()));
+                    size.incrementAndGet();
+                }
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(checkMillis));
+        }
+    }
+
+    private SocketChannel dial() throws IOException {
+        return Connector.connect(destHost, destPort, CONNECT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Takes the idle connections out of the pool, discards the expired and unhealthy ones and puts the rest back in
+     * their order at the old end of the pool. They are out of the pool while checked so that no connection is handed
+     * out while in non-blocking mode.
+     */
+    private void check(long now) {
+        List<Pooled> kept = new ArrayList<Pooled>();
+        for (int n = size.get(); n > 0; n--) {
+            Pooled p = idle.pollFirst();
+            if (p == null) {
+                break;
+            }
+            if (p.isExpired(now) || !isHealthy(p.channel)) {
+                size.decrementAndGet();
+                discard(p);
+            }
+            else {
+                kept.add(p);
+            }
+        }
+        for (int i = kept.size() - 1; i >= 0; i--) {
+            idle.offerFirst(kept.get(i));
+        }
+    }
+
+    /**
+     * Indicates if the destination neither closed the connection nor sent anything on it, by attempting a
+     * non-blocking read. Anything read is lost, which is why such a connection isn't healthy either.
+     */
+    private boolean isHealthy(SocketChannel channel) {
+        if (!channel.isOpen()) {
+            return false;
+        }
+        try {
+            channel.configureBlocking(false);
+            int n = channel.read(ByteBuffer.allocate(1));
+            channel.configureBlocking(true);
+            return n == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void discard(Pooled p) {
+        Metrics.get().upstreamPoolDiscarded();
+        close(p.channel);
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // discarding anyway
+        }
+    }
+
+    /**
+     * An idle connection and when it was established.
+     */
+    private class Pooled {
+        final SocketChannel channel;
+        final long connectedTS;
+
+        Pooled(SocketChannel channel, long connectedTS) {
+            this.channel = channel;
+            this.connectedTS = connectedTS;
+        }
+
+        boolean isExpired(long now) {
+            return now - connectedTS > maxIdleMillis;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package markboydcode.socketproxy.balance;
+
+import markboydcode.socketproxy.UpstreamPool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One destination of a route's pool of destinations. Tracks the number of connections proxied to it, whether its
+ * health checks pass and optionally holds the warm pool of connections to it.
+ */
+public class Backend {
+
+    private final String host;
+    private final int port;
+    private final AtomicInteger active = new AtomicInteger();
+    private volatile boolean healthy = true;
+    private UpstreamPool upstreamPool;
+
+    public Backend(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Parses a comma separated list of destinations like "10.0.0.1:8080,10.0.0.2:8080".
+     *
+     * @param val
+     * @return
+     * @throws IllegalArgumentException naming the first destination that isn't a host and an integer port
+     */
+    public static List<Backend> parseList(String val) {
+        List<Backend> backends = new ArrayList<Backend>();
+        for (String dest : val.split(",")) {
+            dest = dest.trim();
+            int colon = dest.lastIndexOf(':');
+            if (colon < 1 || colon == dest.length() - 1) {
+                throw new IllegalArgumentException("Specified destination '" + dest + "' is not of the form host:port.");
+            }
+            try {
+                backends.add(new Backend(dest.substring(0, colon), Integer.parseInt(dest.substring(colon + 1))));
+            } catch (NumberFormatException nfe) {
+                throw new IllegalArgumentException("Specified destination port '" + dest.substring(colon + 1)
+                        + "' is not an integer.");
+            }
+        }
+        return backends;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Counts a connection assigned to this backend, from being chosen until it is terminated.
+     */
+    public void connectionOpened() {
+        active.incrementAndGet();
+    }
+
+    public void connectionClosed() {
+        active.decrementAndGet();
+    }
+
+    /**
+     * Returns the number of connections currently assigned to this backend.
+     *
+     * @return
+     */
+    public int getActive() {
+        return active.get();
+    }
+
+    /**
+     * Indicates if this backend is in rotation. Backends are healthy until health checks find otherwise.
+     *
+     * @return
+     */
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    public void setHealthy(boolean healthy) {
+        this.healthy = healthy;
+    }
+
+    /**
+     * Returns the pool of connections to this backend established ahead of clients, or null if clients dial it once
+     * accepted.
+     *
+     * @return
+     */
+    public UpstreamPool getUpstreamPool() {
+        return upstreamPool;
+    }
+
+    public void setUpstreamPool(UpstreamPool upstreamPool) {
+        this.upstreamPool = upstreamPool;
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
@@ -0,0 +1,64 @@
+package markboydcode.socketproxy.balance;
+
+import java.net.InetAddress;
+import java.util.List;
+
+/**
+ * Strategy choosing the backend each accepted connection is proxied to. Implementations choose among the healthy
+ * backends and fall back to all of them when none is healthy, since a health check failing everywhere at once more
+ * likely means the checks themselves can't get through than that every backend is down.
+ */
+public interface Balancer {
+
+    /**
+     * Chooses the backend for a connection from the client.
+     *
+     * @param client address of the client
+     * @return
+     */
+    Backend choose(InetAddress client);
+
+    /**
+     * Returns the backends chosen among.
+     *
+     * @return
+     */
+    List<Backend> getBackends();
+
+    /**
+     * Balancing strategies selectable on the command line.
+     */
+    enum Strategy {
+        /**
+         * Each backend in turn.
+         */
+        ROUNDROBIN,
+
+        /**
+         * The backend with the fewest connections assigned.
+         */
+        LEASTACTIVE,
+
+        /**
+         * The same backend for every connection of a client address, as long as it stays healthy.
+         */
+        HASH;
+
+        /**
+         * Creates a balancer of this strategy over the backends.
+         *
+         * @param backends
+         * @return
+         */
+        public Balancer create(List<Backend> backends) {
+            switch (this) {
+                case LEASTACTIVE:
+                    return new LeastActiveBalancer(backends);
+                case HASH:
+                    return new ConsistentHashBalancer(backends);
+                default:
+                    return new RoundRobinBalancer(backends);
+            }
+        }
+    }
+}
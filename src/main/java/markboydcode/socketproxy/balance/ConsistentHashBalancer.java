@@ -0,0 +1,74 @@
+package markboydcode.socketproxy.balance;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Chooses backends by consistent hashing of the client's address, so that all connections of a client go to the same
+ * backend. Each backend owns {@link #POINTS_PER_BACKEND} points of a hash ring and a client goes to the owner of the
+ * first point at or after its own hash. When that backend is unhealthy its clients move on to the owners of the
+ * following points, spreading them over the remaining backends while every other client stays where it was.
+ */
+public class ConsistentHashBalancer implements Balancer {
+
+    static final int POINTS_PER_BACKEND = 160;
+
+    private final List<Backend> list;
+    private final TreeMap<Integer, Backend> ring = new TreeMap<Integer, Backend>();
+
+    public ConsistentHashBalancer(List<Backend> backends) {
+        this.list = Collections.unmodifiableList(backends);
+        for (Backend b : backends) {
+            for (int i = 0; i < POINTS_PER_BACKEND; i++) {
+                ring.put(hash((b + "#" + i).getBytes(StandardCharsets.UTF_8)), b);
+            }
+        }
+    }
+
+    @Override
+    public Backend choose(InetAddress client) {
+        int h = hash(client.getAddress());
+        Map.Entry<Integer, Backend> first = ring.ceilingEntry(h);
+        if (first == null) {
+            first = ring.firstEntry();
+        }
+        Map.Entry<Integer, Backend> e = first;
+        do {
+            if (e.getValue().isHealthy()) {
+                return e.getValue();
+            }
+            e = ring.higherEntry(e.getKey());
+            if (e == null) {
+                e = ring.firstEntry();
+            }
+        } while (e != first);
+        return first.getValue();
+    }
+
+    @Override
+    public List<Backend> getBackends() {
+        return list;
+    }
+
+    /**
+     * 32 bit FNV-1a hash followed by a final mix, which spreads addresses differing only in their last byte across
+     * the whole ring.
+     */
+    static int hash(byte[] bytes) {
+        int h = 0x811C9DC5;
+        for (byte b : bytes) {
+            h ^= b & 0xFF;
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
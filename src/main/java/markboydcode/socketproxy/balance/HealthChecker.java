@@ -0,0 +1,94 @@
+package markboydcode.socketproxy.balance;
+
+import markboydcode.socketproxy.Connector;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Background probe of a route's backends. Every interval each backend is connected to, at any of the addresses its
+ * host resolves to, and the connection closed again. A backend failing {@link #FALL} probes in a row is taken out of
+ * rotation, one passing {@link #RISE} probes in a row is put back, so that a single lost probe doesn't flap a backend.
+ */
+public class HealthChecker implements Runnable {
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 5000;
+
+    public static final int FALL = 2;
+    public static final int RISE = 2;
+
+    private final List<Backend> backends;
+    private final long intervalMillis;
+    private final int timeoutMillis;
+    private final int[] streak;
+
+    /**
+     * @param backends
+     * @param intervalMillis time between probes of a backend, also bounding the time a probe may take to connect
+     */
+    public HealthChecker(List<Backend> backends, long intervalMillis) {
+        this.backends = backends;
+        this.intervalMillis = intervalMillis;
+        this.timeoutMillis = (int) Math.min(intervalMillis, 2000);
+        this.streak = new int[backends.size()];
+    }
+
+    /**
+     * Starts probing on a daemon thread.
+     */
+    public void start() {
+        Thread t = new Thread(this, "health_check");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < backends.size(); i++) {
+                probe(i);
+            }
+            long sleep = intervalMillis - (System.currentTimeMillis() - start);
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Probes a backend. The streak counts consecutive results contradicting the backend's current state, positive
+     * while a healthy backend fails and while an unhealthy one passes.
+     */
+    private void probe(int i) {
+        Backend b = backends.get(i);
+        IOException failure = null;
+        try {
+            Connector.connect(b.getHost(), b.getPort(), timeoutMillis).close();
+        } catch (IOException e) {
+            failure = e;
+        }
+        boolean passed = failure == null;
+        if (passed == b.isHealthy()) {
+            streak[i] = 0;
+            return;
+        }
+        streak[i]++;
+        if (b.isHealthy() && streak[i] >= FALL) {
+            b.setHealthy(false);
+            streak[i] = 0;
+            System.out.println("Backend " + b + " out of rotation after " + FALL + " failed health checks: " + failure
+                    + " @ " + new Date());
+        }
+        else if (!b.isHealthy() && streak[i] >= RISE) {
+            b.setHealthy(true);
+            streak[i] = 0;
+            System.out.println("Backend " + b + " back in rotation @ " + new Date());
+        }
+    }
+}
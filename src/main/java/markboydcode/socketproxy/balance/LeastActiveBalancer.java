@@ -0,0 +1,41 @@
+package markboydcode.socketproxy.balance;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses the healthy backend with the fewest connections assigned. The scan starts at a rotating position so that
+ * ties, like when all backends are idle, are spread rather than all going to the first backend.
+ */
+public class LeastActiveBalancer implements Balancer {
+
+    private final List<Backend> list;
+    private final Backend[] backends;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public LeastActiveBalancer(List<Backend> backends) {
+        this.list = Collections.unmodifiableList(backends);
+        this.backends = backends.toArray(new Backend[backends.size()]);
+    }
+
+    @Override
+    public Backend choose(InetAddress client) {
+        // reduced first, start + i would overflow once the counter nears Integer.MAX_VALUE
+        int start = Math.floorMod(next.getAndIncrement(), backends.length);
+        Backend best = null;
+        for (int i = 0; i < backends.length; i++) {
+            Backend b = backends[(start + i) % backends.length];
+            if (b.isHealthy() && (best == null || b.getActive() < best.getActive())) {
+                best = b;
+            }
+        }
+        return best != null ? best : backends[start];
+    }
+
+    @Override
+    public List<Backend> getBackends() {
+        return list;
+    }
+}
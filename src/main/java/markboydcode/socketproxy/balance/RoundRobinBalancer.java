@@ -0,0 +1,41 @@
+package markboydcode.socketproxy.balance;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses each healthy backend in turn, skipping unhealthy ones.
+ */
+public class RoundRobinBalancer implements Balancer {
+
+    private final List<Backend> list;
+    private final Backend[] backends;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public RoundRobinBalancer(List<Backend> backends) {
+        this.list = Collections.unmodifiableList(backends);
+        this.backends = backends.toArray(new Backend[backends.size()]);
+    }
+
+    @Override
+    public Backend choose(InetAddress client) {
+        int first = next.getAndIncrement() & Integer.MAX_VALUE;
+        int n = first;
+        for (int i = 0; i < backends.length; i++) {
+            Backend b = backends[n % backends.length];
+            if (b.isHealthy()) {
+                return b;
+            }
+            // advance the shared position rather than a local one so unhealthy backends' turns are spread evenly
+            n = next.getAndIncrement() & Integer.MAX_VALUE;
+        }
+        return backends[first % backends.length];
+    }
+
+    @Override
+    public List<Backend> getBackends() {
+        return list;
+    }
+}
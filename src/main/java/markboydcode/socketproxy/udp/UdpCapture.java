@@ -0,0 +1,160 @@
+package markboydcode.socketproxy.udp;
+
+import markboydcode.socketproxy.BufferPool;
+import markboydcode.socketproxy.CaptureFile;
+import markboydcode.socketproxy.CaptureFormat;
+import markboydcode.socketproxy.CaptureWriter;
+import markboydcode.socketproxy.ConnectionLogger;
+import markboydcode.socketproxy.LogMoniker;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Captures the datagrams of all sessions of a listener, in both directions, into a single
+ * {@link markboydcode.socketproxy.CaptureFormat#PCAP} file. Each datagram becomes a pcap record with a nanosecond
+ * timestamp, a synthesized ip and udp header carrying the client's and the destination's address, and the full payload.
+ * Records are framed on the forwarding thread and, like tcp capture, handed to the shared
+ * {@link markboydcode.socketproxy.CaptureWriter} when there is one so that writing them never holds up forwarding.
+ *
+ * Synthesized udp headers carry no checksum, which analyzers may flag for ipv6 but otherwise ignore.
+ */
+public class UdpCapture {
+
+    private static final int PCAP_RECORD_HEADER_LENGTH = 16;
+    private static final int IPV4_HEADER_LENGTH = 20;
+    private static final int IPV6_HEADER_LENGTH = 40;
+    private static final int UDP_HEADER_LENGTH = 8;
+    private static final int PROTOCOL_UDP = 17;
+
+    private final CaptureFile file;
+    private final ConnectionLogger toDest;
+    private final ConnectionLogger toClient;
+    private final long startEpochNanos;
+    private volatile boolean failed = false;
+
+    /**
+     * @param file capture file in the {@link markboydcode.socketproxy.CaptureFormat#PCAP} format
+     * @param startMillis epoch millis at which the file was opened
+     */
+    public UdpCapture(CaptureFile file, long startMillis) {
+        this.file = file;
+        this.startEpochNanos = startMillis * 1000000L;
+        CaptureWriter writer = CaptureWriter.getShared();
+        if (writer == null) {
+            this.toDest = new ConnectionLogger(LogMoniker.TODEST, file);
+            this.toClient = new ConnectionLogger(LogMoniker.TOCLNT, file);
+        } else {
+            CaptureWriter.Target target = writer.open(file);
+            this.toDest = new ConnectionLogger(LogMoniker.TODEST, writer, target);
+            this.toClient = new ConnectionLogger(LogMoniker.TOCLNT, writer, target);
+        }
+    }
+
+    /**
+     * Opens the capture file of a listener in the working directory, or in the shared capture store if there is one.
+     *
+     * @param name of the file without suffix
+     * @return
+     * @throws IOException
+     */
+    public static UdpCapture open(String name) throws IOException {
+        long startMillis = System.currentTimeMillis();
+        return new UdpCapture(CaptureFile.open(name, CaptureFormat.PCAP, startMillis), startMillis);
+    }
+
+    /**
+     * Records a datagram. Called on forwarding threads, never throws. When capture fails it is reported once and
+     * stops while forwarding carries on.
+     *
+     * @param direction
+     * @param from
+     * @param to
+     * @param datagram positioned at the payload, left as it is
+     */
+    public void record(LogMoniker direction, InetSocketAddress from, InetSocketAddress to, ByteBuffer datagram) {
+        if (failed) {
+            return;
+        }
+        boolean v6 = from.getAddress() instanceof Inet6Address || to.getAddress() instanceof Inet6Address;
+        int payloadLength = datagram.remaining();
+        int packetLength = (v6 ? IPV6_HEADER_LENGTH : IPV4_HEADER_LENGTH) + UDP_HEADER_LENGTH + payloadLength;
+        long nanos = startEpochNanos + (System.nanoTime() - file.getStartNanos());
+
+        ByteBuffer record = BufferPool.heap().acquire(PCAP_RECORD_HEADER_LENGTH + packetLength);
+        try {
+            record.putInt((int) (nanos / 1000000000L));
+            record.putInt((int) (nanos % 1000000000L));
+            record.putInt(packetLength);
+            record.putInt(packetLength);
+            if (v6) {
+                record.putInt(0x60000000);
+                record.putShort((short) (UDP_HEADER_LENGTH + payloadLength));
+                record.put((byte) PROTOCOL_UDP);
+                record.put((byte) 64);
+                record.put(ipv6Bytes(from.getAddress()));
+                record.put(ipv6Bytes(to.getAddress()));
+            } else {
+                int start = record.position();
+                record.put((byte) 0x45);
+                record.put((byte) 0);
+                record.putShort((short) packetLength);
+                record.putInt(0x00004000); // no identification, don't fragment
+                record.put((byte) 64);
+                record.put((byte) PROTOCOL_UDP);
+                record.putShort((short) 0);
+                record.put(from.getAddress().getAddress());
+                record.put(to.getAddress().getAddress());
+                record.putShort(start + 10, ipv4Checksum(record.array(), start));
+            }
+            record.putShort((short) from.getPort());
+            record.putShort((short) to.getPort());
+            record.putShort((short) (UDP_HEADER_LENGTH + payloadLength));
+            record.putShort((short) 0);
+            record.put(datagram.duplicate());
+
+            (direction == LogMoniker.TODEST ? toDest : toClient).log(record.position(), record.array());
+        } catch (Exception e) {
+            failed = true;
+            System.err.println("UDP capture failed, continuing without capture.");
+            e.printStackTrace();
+        } finally {
+            BufferPool.heap().release(record);
+        }
+    }
+
+    /**
+     * Flushes and closes the capture file.
+     */
+    public void close() {
+        file.close();
+    }
+
+    private static byte[] ipv6Bytes(InetAddress addr) {
+        byte[] b = addr.getAddress();
+        if (addr instanceof Inet4Address) {
+            // ipv4 mapped ipv6 address
+            byte[] mapped = new byte[16];
+            mapped[10] = (byte) 0xff;
+            mapped[11] = (byte) 0xff;
+            System.arraycopy(b, 0, mapped, 12, 4);
+            return mapped;
+        }
+        return b;
+    }
+
+    private static short ipv4Checksum(byte[] header, int off) {
+        int sum = 0;
+        for (int i = off; i < off + IPV4_HEADER_LENGTH; i += 2) {
+            sum += ((header[i] & 0xff) << 8) | (header[i + 1] & 0xff);
+        }
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xffff) + (sum >>> 16);
+        }
+        return (short) ~sum;
+    }
+}
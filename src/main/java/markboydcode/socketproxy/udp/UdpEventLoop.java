@@ -0,0 +1,194 @@
+package markboydcode.socketproxy.udp;
+
+import markboydcode.socketproxy.BufferPool;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Single threaded selector loop servicing non-blocking datagram channels: the client facing channels of the listeners
+ * it was given, one per route and shard, and the upstream channels of any number of {@link markboydcode.socketproxy.udp.UdpSession}s. Each time
+ * a channel is readable the loop receives every datagram that is ready, up to {@link #BATCH_SIZE}, before sending any of
+ * them on, so a burst of small datagrams costs one selector wakeup rather than one per datagram.
+ */
+public class UdpEventLoop implements Runnable {
+
+    /**
+     * Most datagrams received from one channel before they are sent on and the next channel gets its turn.
+     */
+    public static final int BATCH_SIZE = 32;
+
+    private final Selector selector;
+    private final Queue<UdpSession> pending = new ConcurrentLinkedQueue<UdpSession>();
+    private final String name;
+    private final ByteBuffer[] batch = new ByteBuffer[BATCH_SIZE];
+    private final InetSocketAddress[] senders = new InetSocketAddress[BATCH_SIZE];
+    private volatile boolean terminated = false;
+
+    private final Queue<UdpSessionTable> pendingListeners = new ConcurrentLinkedQueue<UdpSessionTable>();
+
+    private UdpEventLoop(String name) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Creates an event loop and starts its underlying suitably named thread.
+     *
+     * @param name
+     * @return
+     * @throws IOException if the selector can't be opened
+     */
+    public static UdpEventLoop start(String name) throws IOException {
+        UdpEventLoop loop = new UdpEventLoop(name);
+        Thread t = new Thread(loop);
+        t.setName(name);
+        t.start();
+        return loop;
+    }
+
+    /**
+     * Makes this loop receive the datagrams of clients and forward them through their sessions. The channel is
+     * registered on the loop's own thread during its next pass. A loop may listen on any number of channels.
+     *
+     * @param sessions table of the non-blocking listener channel
+     */
+    public void listen(UdpSessionTable sessions) {
+        pendingListeners.add(sessions);
+        selector.wakeup();
+    }
+
+    /**
+     * Hands a newly created session to this loop. May be called from any thread. The session's upstream channel is
+     * registered on the loop's own thread during its next pass.
+     *
+     * @param session
+     * @throws IOException if the upstream channel can't be made non-blocking
+     */
+    public void register(UdpSession session) throws IOException {
+        session.getUpstream().configureBlocking(false);
+        pending.add(session);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        BufferPool.useThreadCache();
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = BufferPool.direct().acquire(BufferPool.MAX_DATAGRAM_SIZE);
+        }
+        while (!terminated) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                System.err.println(name + " unable to select. Terminating loop...");
+                e.printStackTrace();
+                return;
+            }
+
+            UdpSessionTable listener;
+            while ((listener = pendingListeners.poll()) != null) {
+                try {
+                    listener.getClientChannel().register(selector, SelectionKey.OP_READ, listener);
+                } catch (ClosedChannelException e) {
+                    System.err.println(name + " unable to listen on closed channel.");
+                }
+            }
+
+            UdpSession session;
+            while ((session = pending.poll()) != null) {
+                try {
+                    session.getUpstream().register(selector, SelectionKey.OP_READ, session);
+                } catch (ClosedChannelException e) {
+                    // evicted before it got registered
+                }
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                try {
+                    if (key.attachment() instanceof UdpSessionTable) {
+                        forwardClientDatagrams((DatagramChannel) key.channel(), (UdpSessionTable) key.attachment());
+                    } else {
+                        replyDestinationDatagrams((UdpSession) key.attachment());
+                    }
+                } catch (CancelledKeyException e) {
+                    // session closed while its datagrams were handled
+                }
+            }
+        }
+    }
+
+    /**
+     * Receives ready datagrams of clients and forwards them through their sessions.
+     */
+    private void forwardClientDatagrams(DatagramChannel channel, UdpSessionTable sessions) {
+        int received = 0;
+        try {
+            while (received < batch.length) {
+                ByteBuffer b = batch[received];
+                b.clear();
+                InetSocketAddress from = (InetSocketAddress) channel.receive(b);
+                if (from == null) {
+                    break;
+                }
+                b.flip();
+                senders[received++] = from;
+            }
+        } catch (IOException e) {
+            System.out.println(name + " exception receiving from client.");
+            e.printStackTrace();
+        }
+        for (int i = 0; i < received; i++) {
+            sessions.forward(senders[i], batch[i]);
+            senders[i] = null;
+        }
+    }
+
+    /**
+     * Receives ready replies of the destination and sends them back to the session's client.
+     */
+    private void replyDestinationDatagrams(UdpSession session) {
+        DatagramChannel upstream = session.getUpstream();
+        int received = 0;
+        try {
+            while (received < batch.length) {
+                ByteBuffer b = batch[received];
+                b.clear();
+                if (upstream.receive(b) == null) {
+                    break;
+                }
+                b.flip();
+                received++;
+            }
+        } catch (ClosedChannelException e) {
+            // evicted, the key is cancelled by the close
+            return;
+        } catch (IOException e) {
+            // e.g. an icmp port unreachable of a previous send, the session stays usable
+            System.out.println(session.getId() + " exception receiving from destination: " + e);
+        }
+        for (int i = 0; i < received; i++) {
+            session.reply(batch[i]);
+        }
+    }
+
+    /**
+     * Stops the loop after its current pass. Sessions it owns are left as they are.
+     */
+    public void terminate() {
+        this.terminated = true;
+        selector.wakeup();
+    }
+}
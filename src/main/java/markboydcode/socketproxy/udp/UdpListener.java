@@ -1,26 +1,40 @@
 package markboydcode.socketproxy.udp;
 
+import markboydcode.socketproxy.Bandwidth;
+import markboydcode.socketproxy.BufferPool;
+import markboydcode.socketproxy.SocketOptions;
+
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.SocketException;
 import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.channels.DatagramChannel;
 import java.util.Date;
 
 /**
- * Opens the ServerSocket and creates and launches ConnectionHandler instances per incoming TCP connection.
+ * Opens the datagram channel clients send to and forwards each client's datagrams through the client's
+ * {@link markboydcode.socketproxy.udp.UdpSession}, which relays the destination's replies back to it. With more than
+ * one shard, each shard binds its own channel to the port with SO_REUSEPORT and has its own receiving thread, session
+ * table and buffer. The kernel hashes each client's flow to the same socket, hence the same shard, so shards share no
+ * state while forwarding. Where SO_REUSEPORT isn't available the listener runs a single shard.
  *
  * Created by markboyd on 3/14/14.
  */
 public class UdpListener implements Runnable {
 
+    /**
+     * Default time without traffic after which a client's session is evicted.
+     */
+    public static final long DEFAULT_IDLE_MILLIS = 60 * 1000;
+
     private int port;
     private int destPort;
     private String destHost;
-    private boolean responseHandlerInstalled = false;
-
+    private String logPrefix;
+    private long idleMillis;
+    private int shards;
+    private UdpCapture capture;
+    private Bandwidth bandwidth;
 
     /**
      * Listener for socket proxy meaning it opens the ServerSocket and for each connection launches a ConnectionHandler.
@@ -31,84 +45,160 @@ public class UdpListener implements Runnable {
      * @param logPrefix
      */
     public UdpListener(int port, String destHost, int destPort, String logPrefix) {
-        System.out.println("UDP Listener started, port: " + port + " ---> dest: " + destHost + ":" + destPort + " @ " + new Date());
-        
+        this(port, destHost, destPort, logPrefix, DEFAULT_IDLE_MILLIS, 1, null);
+    }
+
+    /**
+     * Listener evicting sessions of clients that have been idle for the given time.
+     *
+     * @param port
+     * @param destHost
+     * @param destPort
+     * @param logPrefix
+     * @param idleMillis
+     * @param shards number of sockets bound to the port, each with its own receiving thread
+     * @param capture of all datagrams or null if not captured
+     */
+    public UdpListener(int port, String destHost, int destPort, String logPrefix, long idleMillis, int shards,
+                       UdpCapture capture) {
+        shards = supportedShards(shards);
+        System.out.println("UDP Listener started, port: " + port + " ---> dest: " + destHost + ":" + destPort
+                + (shards > 1 ? " with " + shards + " shards" : "") + " @ " + new Date());
+
         this.port = port;
         this.destHost = destHost;
         this.destPort = destPort;
+        this.logPrefix = logPrefix;
+        this.idleMillis = idleMillis;
+        this.shards = shards;
+        this.capture = capture;
     }
 
-    @Override
-    public void run() {
+    /**
+     * Sets the bandwidth limits of the listener's client sessions. Datagrams exceeding them are dropped. Has to be
+     * called before the listener runs.
+     *
+     * @param bandwidth null for no limits
+     */
+    public void setBandwidth(Bandwidth bandwidth) {
+        this.bandwidth = bandwidth;
+    }
 
-        // open our listening channel
-        DatagramChannel clientChannel = null;
+    /**
+     * Returns the number of shards a listener can run, the one requested unless binding several channels to the same
+     * port isn't supported, in which case it is one.
+     *
+     * @param shards
+     * @return
+     */
+    static int supportedShards(int shards) {
+        if (shards <= 1) {
+            return shards;
+        }
+        boolean supported = false;
         try {
-            clientChannel = DatagramChannel.open();
-            clientChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            DatagramChannel probe = DatagramChannel.open();
+            try {
+                supported = SocketOptions.supportsReusePort(probe);
+            } finally {
+                probe.close();
+            }
         } catch (IOException e) {
-            System.out.println("Unable to open incoming datagram channel for listening. Exiting...");
-            e.printStackTrace();
-            return;
+            // opening the listening channels will fail as well
+        }
+        if (!supported) {
+            System.out.println("SO_REUSEPORT is not supported, running a single UDP shard rather than " + shards);
+            return 1;
         }
+        return shards;
+    }
 
-        // bind listener to port
+    /**
+     * Opens a channel bound to the port, with SO_REUSEPORT if other channels are to be bound to the same port.
+     *
+     * @param port
+     * @param reusePort
+     * @return
+     * @throws IOException if the channel can't be opened or bound, or SO_REUSEPORT isn't supported
+     */
+    static DatagramChannel openChannel(int port, boolean reusePort) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
         try {
-            clientChannel.socket().bind(new InetSocketAddress(this.port));
-        } catch (SocketException e) {
-            System.out.println("Unable to bind to port " + this.port + ". Exiting...");
-            e.printStackTrace();
-            return;
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (reusePort) {
+                SocketOptions.setReusePort(channel);
+            }
+            channel.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
         }
+        return channel;
+    }
 
-        // open destination channel
-        DatagramChannel serverChannel = null;
+    @Override
+    public void run() {
+
+        // open and bind all listening channels before any shard starts
+        DatagramChannel[] channels = new DatagramChannel[shards];
         try {
-            serverChannel = DatagramChannel.open();
+            for (int i = 0; i < channels.length; i++) {
+                channels[i] = openChannel(this.port, shards > 1);
+            }
         } catch (IOException e) {
-            System.out.println("Unable to open outgoing datagram channel for sending. Exiting...");
+            System.out.println("Unable to bind to port " + this.port + ". Exiting...");
             e.printStackTrace();
             return;
         }
 
-        if (serverChannel == null) {
-            // couldn't create but message already dumped. so exit.
-            return;
+        // resolved once rather than per datagram
+        InetSocketAddress serverAddr = new InetSocketAddress(this.destHost, this.destPort);
+        Shard[] workers = new Shard[shards];
+        for (int i = 0; i < workers.length; i++) {
+            UdpSessionTable sessions = new UdpSessionTable(channels[i], serverAddr, logPrefix, idleMillis,
+                    UdpSessionTable.THREAD_PER_SESSION, capture, bandwidth);
+            sessions.startReaper();
+            workers[i] = new Shard(channels[i], sessions);
+        }
+        for (int i = 1; i < workers.length; i++) {
+            Thread t = new Thread(workers[i]);
+            t.setName("udp_shard_" + i);
+            t.start();
         }
+        workers[0].run();
+    }
 
-        // buffer for client to server packages
-        ByteBuffer clientToServer = ByteBuffer.allocate(4096);
-        clientToServer.order(ByteOrder.BIG_ENDIAN);
-        InetSocketAddress clientAddr = null;
-        InetSocketAddress serverAddr = new InetSocketAddress(this.destHost, this.destPort);
+    /**
+     * Receives the datagrams of one listening channel and forwards them through the sessions of its own table.
+     */
+    private static class Shard implements Runnable {
+        private final DatagramChannel clientChannel;
+        private final UdpSessionTable sessions;
 
-        while (true) {
-            try {
-                clientToServer.clear();
-                System.out.println(" >>> awaiting from client");
-                clientAddr = (InetSocketAddress) clientChannel.receive(clientToServer);
-                System.out.println(" >>> received [" + clientToServer.position() + "] from client " + clientAddr.toString());
-            } catch (IOException e) {
-                System.out.println("Exception receiving from client.");
-                e.printStackTrace();
-                continue;
-            }
-            clientToServer.flip(); // so we can read out
+        Shard(DatagramChannel clientChannel, UdpSessionTable sessions) {
+            this.clientChannel = clientChannel;
+            this.sessions = sessions;
+        }
 
-            try {
-                System.out.println(" >>> forwarding to server");
-                serverChannel.send(clientToServer, serverAddr);
-                System.out.println(" >>> sent to server");
-            } catch (IOException e) {
-                System.out.println("Exception sending to server.");
-                e.printStackTrace();
-                return;
+        @Override
+        public void run() {
+            // buffer for client to server packages, large enough for any datagram so none gets truncated
+            ByteBuffer clientToServer = BufferPool.heap().acquire(BufferPool.MAX_DATAGRAM_SIZE);
+            InetSocketAddress clientAddr = null;
+
+            while (true) {
+                try {
+                    clientToServer.clear();
+                    clientAddr = (InetSocketAddress) clientChannel.receive(clientToServer);
+                } catch (IOException e) {
+                    System.out.println("Exception receiving from client.");
+                    e.printStackTrace();
+                    continue;
+                }
+                clientToServer.flip(); // so we can read out
+
+                sessions.forward(clientAddr, clientToServer);
             }
-            //if (! responseHandlerInstalled) {
-                System.out.println("--- launching server2client handler for " + clientAddr.toString());
-                new UdpServerToClientHandler(clientChannel, clientAddr, serverChannel);
-                responseHandlerInstalled = true;
-            //}
         }
     }
 }
@@ -0,0 +1,130 @@
+package markboydcode.socketproxy.udp;
+
+import markboydcode.socketproxy.Bandwidth;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.Date;
+
+/**
+ * Non-blocking alternative to {@link markboydcode.socketproxy.udp.UdpListener} running the whole UDP proxy on a small,
+ * fixed set of {@link markboydcode.socketproxy.udp.UdpEventLoop} threads rather than a thread per session. The loops
+ * are either the listener's own or shared with the listeners of other routes. Loops are divided among shards, each of
+ * which binds its own channel to the port, with SO_REUSEPORT when there is more than one, and has its own session
+ * table. A shard's first loop receives the datagrams of the shard's clients and the upstream channels of its new
+ * sessions are spread round robin across the shard's loops. With as many shards as loops each loop serves its clients
+ * entirely on its own. Where SO_REUSEPORT isn't available all loops form a single shard.
+ */
+public class UdpNioListener implements Runnable {
+
+    private final int port;
+    private final String destHost;
+    private final int destPort;
+    private final String logPrefix;
+    private final long idleMillis;
+    private final int loopCount;
+    private UdpEventLoop[] loops;
+    private final int shards;
+    private final UdpCapture capture;
+    private Bandwidth bandwidth;
+
+    /**
+     * @param port
+     * @param destHost
+     * @param destPort
+     * @param logPrefix
+     * @param idleMillis time without traffic after which a client's session is evicted
+     * @param loopCount number of event loop threads, raised to the number of shards if lower
+     * @param shards number of sockets bound to the port, must be at least one
+     * @param capture of all datagrams or null if not captured
+     */
+    public UdpNioListener(int port, String destHost, int destPort, String logPrefix, long idleMillis, int loopCount,
+                          int shards, UdpCapture capture) {
+        shards = UdpListener.supportedShards(shards);
+        this.loopCount = Math.max(loopCount, shards);
+        System.out.println("UDP NIO Listener started, port: " + port + " ---> dest: " + destHost + ":" + destPort
+                + " with " + this.loopCount + " event loops" + (shards > 1 ? " in " + shards + " shards" : "")
+                + " @ " + new Date());
+
+        this.port = port;
+        this.destHost = destHost;
+        this.destPort = destPort;
+        this.logPrefix = logPrefix;
+        this.idleMillis = idleMillis;
+        this.shards = shards;
+        this.capture = capture;
+    }
+
+    /**
+     * Listener running on event loops shared with other listeners.
+     *
+     * @param port
+     * @param destHost
+     * @param destPort
+     * @param logPrefix
+     * @param idleMillis time without traffic after which a client's session is evicted
+     * @param loops started event loops, at least as many as shards
+     * @param shards number of sockets bound to the port, must be at least one
+     * @param capture of all datagrams or null if not captured
+     */
+    public UdpNioListener(int port, String destHost, int destPort, String logPrefix, long idleMillis,
+                          UdpEventLoop[] loops, int shards, UdpCapture capture) {
+        this(port, destHost, destPort, logPrefix, idleMillis, loops.length, shards, capture);
+        this.loops = loops;
+    }
+
+    /**
+     * Sets the bandwidth limits of the listener's client sessions. Datagrams exceeding them are dropped. Has to be
+     * called before the listener runs.
+     *
+     * @param bandwidth null for no limits
+     */
+    public void setBandwidth(Bandwidth bandwidth) {
+        this.bandwidth = bandwidth;
+    }
+
+    @Override
+    public void run() {
+        DatagramChannel[] channels = new DatagramChannel[shards];
+        try {
+            for (int i = 0; i < channels.length; i++) {
+                channels[i] = UdpListener.openChannel(this.port, shards > 1);
+                channels[i].configureBlocking(false);
+            }
+            if (loops == null) {
+                loops = new UdpEventLoop[loopCount];
+                for (int i = 0; i < loops.length; i++) {
+                    loops[i] = UdpEventLoop.start("udp_loop_" + i);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to create datagram listener on port " + this.port);
+            e.printStackTrace();
+            System.exit(1);
+            return;
+        }
+
+        // resolved once rather than per datagram
+        InetSocketAddress serverAddr = new InetSocketAddress(this.destHost, this.destPort);
+        for (int shard = 0; shard < shards; shard++) {
+            final UdpEventLoop[] shardLoops = new UdpEventLoop[(loopCount - shard + shards - 1) / shards];
+            for (int i = 0; i < shardLoops.length; i++) {
+                shardLoops[i] = loops[shard + i * shards];
+            }
+            UdpSessionTable sessions = new UdpSessionTable(channels[shard], serverAddr, logPrefix, idleMillis,
+                    new UdpSessionTable.Starter() {
+                        private int next = 0;
+
+                        @Override
+                        public void start(UdpSession session) throws IOException {
+                            // only called from the shard's first loop, where its client datagrams are received
+                            shardLoops[next].register(session);
+                            next = (next + 1) % shardLoops.length;
+                        }
+                    }, capture, bandwidth);
+            sessions.startReaper();
+            shardLoops[0].listen(sessions);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package markboydcode.socketproxy.udp;
+
+import markboydcode.socketproxy.Bandwidth;
+import markboydcode.socketproxy.BufferPool;
+import markboydcode.socketproxy.LogMoniker;
+import markboydcode.socketproxy.Metrics;
+import markboydcode.socketproxy.Threads;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Proxied conversation of a single client, the way a NAT keeps one. The session owns an upstream channel connected to
+ * the destination which carries all of the client's datagrams, so the destination sees one stable source per client and
+ * every reply arriving on the channel belongs to this client. Replies are sent back to the client through the
+ * listener's channel, either by a thread per session running this session or, when the upstream channel is non-blocking,
+ * by the {@link markboydcode.socketproxy.udp.UdpEventLoop} it is registered with.
+ * <p>
+ * Datagrams in either direction exceeding the session's share of {@link markboydcode.socketproxy.Bandwidth} limits
+ * are dropped rather than delayed, like a policing router would, so that neither the loops nor the listener's
+ * receiving thread ever wait on a single client.
+ */
+public class UdpSession implements Runnable {
+
+    private final String id;
+    private final InetSocketAddress clientAddr;
+    private final DatagramChannel clientChannel;
+    private final DatagramChannel upstream;
+    private final InetSocketAddress destAddr;
+    private final UdpCapture capture;
+    private final Bandwidth.Share share;
+    private final long createdTS;
+
+    private volatile long lastActivityTS;
+    private volatile boolean closed = false;
+    private long toDestCount = 0;
+    private long toClientCount = 0;
+    private long droppedCount = 0;
+
+    /**
+     * Opens the session's upstream channel. Nothing receives replies until the session is run or registered with an
+     * event loop.
+     *
+     * @param id
+     * @param clientAddr
+     * @param clientChannel listener channel replies are sent back through
+     * @param destAddr
+     * @param capture of the session's datagrams or null if not captured
+     * @param share of bandwidth limits or null if there are none, released once the session is closed
+     * @throws IOException if the upstream channel can't be opened
+     */
+    UdpSession(String id, InetSocketAddress clientAddr, DatagramChannel clientChannel, InetSocketAddress destAddr,
+               UdpCapture capture, Bandwidth.Share share) throws IOException {
+        this.id = id;
+        this.clientAddr = clientAddr;
+        this.clientChannel = clientChannel;
+        this.destAddr = destAddr;
+        this.capture = capture;
+        this.share = share;
+        this.createdTS = System.currentTimeMillis();
+        this.lastActivityTS = createdTS;
+
+        this.upstream = DatagramChannel.open();
+        try {
+            // connected so that only the destination's datagrams are received and sends skip the security checks
+            this.upstream.connect(destAddr);
+        } catch (IOException e) {
+            this.upstream.close();
+            throw e;
+        }
+        Metrics.get().udpSessionOpened();
+    }
+
+    /**
+     * Forwards a datagram of the client to the destination. Datagrams dropped for bandwidth limits aren't captured,
+     * nor are those the session couldn't send since it was closed concurrently, which the caller retries.
+     *
+     * @param datagram positioned at the bytes to send
+     * @throws IOException
+     */
+    void send(ByteBuffer datagram) throws IOException {
+        if (share != null && !share.tryTake(datagram.remaining())) {
+            throttled();
+            return;
+        }
+        ByteBuffer payload = capture != null ? datagram.duplicate() : null;
+        int bytes = upstream.write(datagram);
+        if (payload != null) {
+            capture.record(LogMoniker.TODEST, clientAddr, destAddr, payload);
+        }
+        if (bytes == 0 && datagram.hasRemaining()) {
+            // non-blocking channel without room in the socket's send buffer, lost like on a congested link
+            droppedCount++;
+            Metrics.get().udpDropped();
+            return;
+        }
+        toDestCount += bytes;
+        Metrics.get().udpForwarded(LogMoniker.TODEST, bytes);
+        lastActivityTS = System.currentTimeMillis();
+    }
+
+    /**
+     * Sends a reply of the destination back to the client.
+     *
+     * @param datagram positioned at the bytes to send
+     */
+    void reply(ByteBuffer datagram) {
+        if (share != null && !share.tryTake(datagram.remaining())) {
+            throttled();
+            return;
+        }
+        if (capture != null) {
+            capture.record(LogMoniker.TOCLNT, destAddr, clientAddr, datagram);
+        }
+        try {
+            int bytes = clientChannel.send(datagram, clientAddr);
+            if (bytes == 0 && datagram.hasRemaining()) {
+                droppedCount++;
+                Metrics.get().udpDropped();
+                return;
+            }
+            toClientCount += bytes;
+            Metrics.get().udpForwarded(LogMoniker.TOCLNT, bytes);
+        } catch (IOException e) {
+            System.out.println(id + " unable to send reply to client " + clientAddr + ". Dropping.");
+            droppedCount++;
+            Metrics.get().udpDropped();
+            return;
+        }
+        lastActivityTS = System.currentTimeMillis();
+    }
+
+    private void throttled() {
+        droppedCount++;
+        Metrics.get().udpDropped();
+        Metrics.get().udpThrottled();
+    }
+
+    /**
+     * Starts a suitably named thread receiving the replies of a session whose upstream channel is blocking.
+     */
+    void startReplies() {
+        Threads.start(id + "_replies", this);
+    }
+
+    DatagramChannel getUpstream() {
+        return upstream;
+    }
+
+    /**
+     * Receives replies until the session is closed.
+     */
+    @Override
+    public void run() {
+        // large enough for any datagram so none gets truncated
+        ByteBuffer buffer = BufferPool.heap().acquire(BufferPool.MAX_DATAGRAM_SIZE);
+        try {
+            while (!closed) {
+                buffer.clear();
+                try {
+                    upstream.receive(buffer);
+                } catch (ClosedChannelException e) {
+                    // evicted or shut down
+                    return;
+                } catch (IOException e) {
+                    // e.g. an icmp port unreachable of a previous send, the session stays usable
+                    if (!closed) {
+                        System.out.println(id + " exception receiving from destination: " + e);
+                    }
+                    continue;
+                }
+                buffer.flip();
+                reply(buffer);
+            }
+        } finally {
+            BufferPool.heap().release(buffer);
+        }
+    }
+
+    /**
+     * Closes the upstream channel which also ends the thread receiving replies.
+     *
+     * @param reason
+     */
+    void close(String reason) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        Metrics.get().udpSessionClosed();
+        if (share != null) {
+            share.release();
+        }
+        try {
+            upstream.close();
+        } catch (IOException e) {
+            // ignore it
+        }
+        long now = System.currentTimeMillis();
+        System.out.println(id + " closed (" + reason + ") after " + (now - createdTS) / 1000.0 + "s, "
+                + toDestCount + " bytes to dest, " + toClientCount + " bytes to client"
+                + (droppedCount > 0 ? ", " + droppedCount + " datagrams dropped" : ""));
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public InetSocketAddress getClientAddr() {
+        return clientAddr;
+    }
+
+    public long getLastActivityTS() {
+        return lastActivityTS;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+}
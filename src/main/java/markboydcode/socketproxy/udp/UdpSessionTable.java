@@ -0,0 +1,220 @@
+package markboydcode.socketproxy.udp;
+
+import markboydcode.socketproxy.Bandwidth;
+import markboydcode.socketproxy.Metrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sessions of all clients of a listener keyed by client address. Looking up the session of a datagram is a single
+ * concurrent map read; only a client's first datagram creates a session. Sessions without traffic in either direction
+ * for the idle timeout are evicted by a reaper thread.
+ */
+public class UdpSessionTable {
+
+    /**
+     * Arranges for the replies of a newly created session to be received.
+     */
+    public interface Starter {
+        void start(UdpSession session) throws IOException;
+    }
+
+    /**
+     * Starts a thread per session receiving its replies.
+     */
+    public static final Starter THREAD_PER_SESSION = new Starter() {
+        @Override
+        public void start(UdpSession session) {
+            session.startReplies();
+        }
+    };
+
+    private static final AtomicInteger idGen = new AtomicInteger(0);
+
+    private final ConcurrentHashMap<InetSocketAddress, UdpSession> sessions =
+            new ConcurrentHashMap<InetSocketAddress, UdpSession>();
+    private final DatagramChannel clientChannel;
+    private final InetSocketAddress destAddr;
+    private final String logPrefix;
+    private final long idleMillis;
+    private final Starter starter;
+    private final UdpCapture capture;
+    private final Bandwidth bandwidth;
+
+    /**
+     * @param clientChannel listener channel replies are sent back through
+     * @param destAddr
+     * @param logPrefix prefix of session identifiers
+     * @param idleMillis time without traffic after which a session is evicted
+     * @param starter
+     * @param capture of the listener's datagrams or null if not captured
+     * @param bandwidth limits of the sessions or null if there are none
+     */
+    public UdpSessionTable(DatagramChannel clientChannel, InetSocketAddress destAddr, String logPrefix, long idleMillis,
+                           Starter starter, UdpCapture capture, Bandwidth bandwidth) {
+        this.clientChannel = clientChannel;
+        this.destAddr = destAddr;
+        this.logPrefix = logPrefix;
+        this.idleMillis = idleMillis;
+        this.starter = starter;
+        this.capture = capture;
+        this.bandwidth = bandwidth;
+    }
+
+    /**
+     * Returns the session of the client, creating it if this is the client's first datagram or its session was
+     * evicted.
+     *
+     * @param clientAddr
+     * @return
+     * @throws IOException if a new session's upstream channel can't be opened
+     */
+    public UdpSession get(InetSocketAddress clientAddr) throws IOException {
+        UdpSession s = sessions.get(clientAddr);
+        if (s != null && !s.isClosed()) {
+            return s;
+        }
+        Bandwidth.Share share = bandwidth != null ? bandwidth.share(clientAddr.getAddress()) : null;
+        UdpSession created;
+        try {
+            created = new UdpSession(logPrefix + "-" + idGen.incrementAndGet(), clientAddr, clientChannel, destAddr,
+                    capture, share);
+        } catch (IOException e) {
+            if (share != null) {
+                share.release();
+            }
+            throw e;
+        }
+        if (s == null ? sessions.putIfAbsent(clientAddr, created) == null : sessions.replace(clientAddr, s, created)) {
+            System.out.println(created.getId() + " created for client " + clientAddr);
+            try {
+                starter.start(created);
+            } catch (IOException e) {
+                remove(created, "start failed");
+                throw e;
+            }
+            return created;
+        }
+        // another thread won the race
+        created.close("duplicate");
+        return get(clientAddr);
+    }
+
+    /**
+     * Sends a client's datagram through its session. A session evicted between lookup and send is replaced once.
+     * Datagrams that can't be sent are dropped.
+     *
+     * @param clientAddr
+     * @param datagram positioned at the bytes to send
+     */
+    public void forward(InetSocketAddress clientAddr, ByteBuffer datagram) {
+        // captured by the session, which knows whether the datagram passed the bandwidth limits
+        for (int attempt = 0; attempt < 2; attempt++) {
+            UdpSession session;
+            try {
+                session = get(clientAddr);
+            } catch (IOException e) {
+                System.out.println("Unable to open session for client " + clientAddr + ". Dropping.");
+                Metrics.get().udpDropped();
+                e.printStackTrace();
+                return;
+            }
+            try {
+                session.send(datagram);
+                return;
+            } catch (ClosedChannelException e) {
+                // evicted concurrently, retry with a new session
+                datagram.rewind();
+            } catch (IOException e) {
+                System.out.println(session.getId() + " exception sending to server. Dropping.");
+                Metrics.get().udpDropped();
+                e.printStackTrace();
+                remove(session, "send failed");
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes and closes the session of the client, like after its upstream channel failed.
+     *
+     * @param session
+     * @param reason
+     */
+    public void remove(UdpSession session, String reason) {
+        sessions.remove(session.getClientAddr(), session);
+        session.close(reason);
+    }
+
+    /**
+     * Evicts sessions that have been idle for longer than the idle timeout.
+     *
+     * @param now
+     * @return number of sessions evicted
+     */
+    public int evictIdle(long now) {
+        int evicted = 0;
+        for (Iterator<UdpSession> it = sessions.values().iterator(); it.hasNext(); ) {
+            UdpSession s = it.next();
+            if (now - s.getLastActivityTS() >= idleMillis) {
+                it.remove();
+                s.close("idle");
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Starts a daemon thread evicting idle sessions at a fraction of the idle timeout.
+     */
+    public void startReaper() {
+        final long period = Math.max(100, idleMillis / 4);
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(period);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    evictIdle(System.currentTimeMillis());
+                }
+            }
+        }, "udp_session_reaper");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Closes all sessions.
+     */
+    public void closeAll() {
+        for (Iterator<UdpSession> it = sessions.values().iterator(); it.hasNext(); ) {
+            UdpSession s = it.next();
+            it.remove();
+            s.close("shutdown");
+        }
+    }
+
+    /**
+     * Returns the listener channel whose clients this table holds the sessions of.
+     *
+     * @return
+     */
+    public DatagramChannel getClientChannel() {
+        return clientChannel;
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+}